@@ -18,31 +18,72 @@ package org.webrtc.kite;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.webrtc.kite.dao.DBConnectionPool;
 
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
 import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonStructure;
+import javax.json.JsonValue;
+import java.io.StringReader;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-/** A thread managing the queue concerning the input into the database */
+/**
+ * A thread managing the queue concerning the input into the database.
+ *
+ * <p>Received bodies go through two stages: a pool of parser threads turns them into results,
+ * and this thread, the only writer, takes the parsed results in the order the bodies were
+ * received and writes them in batches of up to MAX_BATCH_SIZE, each batch in a single
+ * transaction. Whatever arrives while a batch is being written makes up the next one, so the
+ * batches grow with the load without delaying a lone result. The throughput is logged every
+ * METRICS_INTERVAL.
+ */
 public class DataCenterQueueManager extends Thread {
 
   private static final Log log = LogFactory.getLog(DataCenterQueueManager.class);
 
+  private static final int QUEUE_CAPACITY = 1000;
+  private static final int MAX_BATCH_SIZE = 200;
+  private static final long METRICS_INTERVAL = 60 * 1000;
+
   /* Singleton boiler plate code */
   private static DataCenterQueueManager instance = new DataCenterQueueManager();
-  public BlockingQueue<JsonObject> queue = new ArrayBlockingQueue<JsonObject>(1000);
+  private BlockingQueue<Future<List<JsonObject>>> queue =
+      new ArrayBlockingQueue<Future<List<JsonObject>>>(QUEUE_CAPACITY);
+  private ExecutorService parserService =
+      Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
   private ResultHandler resultHandler;
   /* Singleton boiler plate code */
 
+  /* Slots reserved for the bodies being read. */
+  private int reservedCount;
+
+  private long windowStart = System.currentTimeMillis();
+  private long writtenCount;
+  private long failedCount;
+  private long batchCount;
+  private long writeTime;
+
   private DataCenterQueueManager() {}
 
   public static DataCenterQueueManager getInstance() {
     return instance;
   }
 
-  public void initResultHandler(String databasePath) {
-    this.resultHandler = new ResultHandler(databasePath);
+  public void initResultHandler(DBConnectionPool connectionPool) {
+    this.resultHandler = new ResultHandler(connectionPool);
   }
 
   public void startManager() {
@@ -50,27 +91,191 @@ public class DataCenterQueueManager extends Thread {
   }
 
   public void stopManager() {
+    this.parserService.shutdownNow();
     this.interrupt();
   }
 
+  /**
+   * Reserves a slot in the queue for a body about to be read, unless the queue is full. The slot
+   * is taken by offer() once the body is read, or given back by release() if it never is.
+   *
+   * @return true if a slot was reserved, false if the queue is full.
+   */
+  public synchronized boolean reserve() {
+    if (this.queue.size() + this.reservedCount >= QUEUE_CAPACITY) {
+      return false;
+    }
+    this.reservedCount++;
+    return true;
+  }
+
+  /** Gives back a slot reserved for a body that will not be offered. */
+  public synchronized void release() {
+    if (this.reservedCount > 0) {
+      this.reservedCount--;
+    }
+  }
+
+  /**
+   * Hands a received body, a json result or an array of them, over to the parser threads in the
+   * slot reserved for it. The listener is told from a parser thread whether the body could be
+   * parsed.
+   *
+   * @param body the body of the request.
+   * @param listener told whether the body could be parsed, if it was queued.
+   * @return true if the body was queued, false if the queue is full.
+   */
+  public synchronized boolean offer(final String body, final ParseListener listener) {
+    this.release();
+    // Submitting and queueing under the same lock keeps the queue in the order of arrival.
+    if (this.queue.remainingCapacity() == 0) {
+      return false;
+    }
+    return this.queue.offer(
+        this.parserService.submit(
+            new Callable<List<JsonObject>>() {
+              @Override
+              public List<JsonObject> call() {
+                List<JsonObject> resultList;
+                try {
+                  resultList = parse(body);
+                } catch (RuntimeException e) {
+                  listener.onMalformed(e);
+                  throw e;
+                }
+                listener.onParsed();
+                return resultList;
+              }
+            }));
+  }
+
+  /** Returns true if the manager is running and taking results. */
+  public boolean isRunning() {
+    return this.resultHandler != null && this.isAlive();
+  }
+
   @Override
   public void run() {
-    // TODO Auto-generated method stub
     try {
       while (true) {
-        JsonObject jsonObject = this.queue.take();
-        if (log.isDebugEnabled()) log.debug("Dumping: " + jsonObject);
-        try {
-          this.resultHandler.dumpResult(jsonObject);
-        } catch (ClassNotFoundException | SQLException e) {
-          log.error("dumping result", e);
+        List<JsonObject> batch = new ArrayList<>(this.getParsed(this.queue.take()));
+        Future<List<JsonObject>> next;
+        while (batch.size() < MAX_BATCH_SIZE && (next = this.queue.poll()) != null) {
+          batch.addAll(this.getParsed(next));
+        }
+        if (!batch.isEmpty()) {
+          this.write(batch);
         }
       }
     } catch (InterruptedException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      log.info("DataCenterQueueManager stopped with " + this.queue.size() + " bodies in queue");
     } finally {
       queue.clear();
     }
   }
+
+  /**
+   * Writes a batch of results in a single transaction and updates the throughput metrics.
+   *
+   * @param batch the results.
+   */
+  private void write(List<JsonObject> batch) {
+    if (log.isDebugEnabled()) log.debug("Dumping " + batch.size() + " results");
+    long start = System.currentTimeMillis();
+    int written = 0;
+    try {
+      written = this.resultHandler.dumpResults(batch);
+    } catch (SQLException e) {
+      log.error("dumping results", e);
+    }
+    long now = System.currentTimeMillis();
+    this.writeTime += now - start;
+    this.writtenCount += written;
+    this.failedCount += batch.size() - written;
+    this.batchCount++;
+
+    long elapsed = now - this.windowStart;
+    if (elapsed >= METRICS_INTERVAL) {
+      log.info(
+          "Ingested "
+              + this.writtenCount
+              + " results ("
+              + this.failedCount
+              + " failed) in "
+              + this.batchCount
+              + " transactions over "
+              + elapsed / 1000
+              + "s: "
+              + String.format("%.1f", this.writtenCount * 1000.0 / elapsed)
+              + " results/s, "
+              + String.format("%.1f", (double) (this.writtenCount + this.failedCount) / this.batchCount)
+              + " results per transaction, "
+              + this.writeTime / this.batchCount
+              + " ms per transaction");
+      this.windowStart = now;
+      this.writtenCount = 0;
+      this.failedCount = 0;
+      this.batchCount = 0;
+      this.writeTime = 0;
+    }
+  }
+
+  /**
+   * Waits for a body to be parsed.
+   *
+   * @param future the parsing of the body.
+   * @return the results in the body, none if it could not be parsed.
+   */
+  private List<JsonObject> getParsed(Future<List<JsonObject>> future)
+      throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      // The client has been answered 400.
+      if (log.isDebugEnabled()) log.debug("Skipping a malformed body", e.getCause());
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Parses a body into results.
+   *
+   * @param body a json result or an array of them.
+   * @return the results.
+   * @throws JsonException if the body is not a json result or an array of them.
+   */
+  private static List<JsonObject> parse(String body) {
+    JsonReader jsonReader = Json.createReader(new StringReader(body));
+    try {
+      JsonStructure jsonStructure = jsonReader.read();
+      if (jsonStructure instanceof JsonArray) {
+        for (JsonValue jsonValue : (JsonArray) jsonStructure) {
+          if (!(jsonValue instanceof JsonObject)) {
+            throw new JsonException("Not a result: " + jsonValue);
+          }
+        }
+        return ((JsonArray) jsonStructure).getValuesAs(JsonObject.class);
+      }
+      if (!(jsonStructure instanceof JsonObject)) {
+        throw new JsonException("Not a result: " + jsonStructure);
+      }
+      return Collections.singletonList((JsonObject) jsonStructure);
+    } finally {
+      jsonReader.close();
+    }
+  }
+
+  /** Told whether a queued body could be parsed, from a parser thread. */
+  public interface ParseListener {
+
+    /** Called once the body has been parsed into results. */
+    void onParsed();
+
+    /**
+     * Called if the body is not a json result or an array of them.
+     *
+     * @param e why the body could not be parsed.
+     */
+    void onMalformed(RuntimeException e);
+  }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of the responses of the read endpoints, either a rendered json body or the attributes a
+ * view is rendered from, keyed by the servlet path and the parameters of the request. The
+ * responses that are streamed only have their validators cached.
+ *
+ * <p>Every entry is tagged with the names of the tests it was computed from, or with ANY_TEST if
+ * it depends on all of them. The ResultHandler invalidates the entries of the tests it has written
+ * to once it has committed. An entry computed while results were being written is
+ * not kept, since it may be missing some of them.
+ *
+ * <p>The responses carry an ETag and a Last-Modified header, and a request revalidating an entry
+ * that is still cached gets a 304.
+ */
+public class ResponseCache {
+
+  private static final Log log = LogFactory.getLog(ResponseCache.class);
+
+  /** Tag of the entries that depend on every test. */
+  public static final String ANY_TEST = "*";
+  /** Name under which the entries showing the list of tests are tagged, for any new run. */
+  public static final String TEST_LIST = "*list";
+
+  private static final int MAX_ENTRIES = 1000;
+
+  /* Singleton boiler plate code */
+  private static ResponseCache instance = new ResponseCache();
+
+  private ResponseCache() {}
+
+  public static ResponseCache getInstance() {
+    return instance;
+  }
+  /* Singleton boiler plate code */
+
+  private final Map<String, Entry> entryMap =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * Returns the current version of the cache, to be given to put() by a request about to compute
+   * its response.
+   */
+  public long getVersion() {
+    return this.version.get();
+  }
+
+  /**
+   * Returns the cached response to a request.
+   *
+   * @param request the request.
+   * @return the entry, or null if the response has to be computed.
+   */
+  public synchronized Entry get(HttpServletRequest request) {
+    return this.entryMap.get(getKey(request));
+  }
+
+  /**
+   * Caches the response to a request, unless the cache has been invalidated since the request read
+   * its version.
+   *
+   * @param request the request.
+   * @param version version of the cache when the response started to be computed.
+   * @param body the json body, null for a view or a streamed response.
+   * @param attributes the request attributes of the view, null otherwise.
+   * @param testNames names of the tests the response depends on, ANY_TEST for all of them and
+   *     TEST_LIST if it shows the list of tests.
+   * @return the entry, to be sent whether or not it has been cached.
+   */
+  public synchronized Entry put(
+      HttpServletRequest request,
+      long version,
+      String body,
+      Map<String, Object> attributes,
+      String... testNames) {
+    Set<String> tagSet = new HashSet<>();
+    for (String testName : testNames) {
+      tagSet.add(testName.equals(ANY_TEST) ? ANY_TEST : "test:" + testName);
+    }
+    Entry entry = new Entry(body, attributes, tagSet);
+    if (version == this.version.get()) {
+      this.entryMap.put(getKey(request), entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Removes the cached response to a request, which could not be sent in full.
+   *
+   * @param request the request.
+   */
+  public synchronized void remove(HttpServletRequest request) {
+    this.entryMap.remove(getKey(request));
+  }
+
+  /**
+   * Removes the entries depending on the given tests. No cached response depends on a config
+   * other than through its tests.
+   *
+   * @param testNames names of the tests that have changed.
+   */
+  public synchronized void invalidate(Collection<String> testNames) {
+    if (testNames.isEmpty()) {
+      return;
+    }
+    this.version.incrementAndGet();
+    Set<String> tagSet = new HashSet<>();
+    tagSet.add(ANY_TEST);
+    for (String testName : testNames) {
+      tagSet.add("test:" + testName);
+    }
+    int removed = 0;
+    Iterator<Entry> iterator = this.entryMap.values().iterator();
+    while (iterator.hasNext()) {
+      if (!Collections.disjoint(iterator.next().tagSet, tagSet)) {
+        iterator.remove();
+        removed++;
+      }
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Invalidated " + removed + " responses for " + testNames);
+    }
+  }
+
+  /**
+   * Collects the attributes of a view from the request.
+   *
+   * @param request the request the servlet has set the attributes on.
+   * @param names names of the attributes.
+   * @return the attributes, by name.
+   */
+  public static Map<String, Object> getAttributes(HttpServletRequest request, String... names) {
+    Map<String, Object> attributes = new HashMap<>();
+    for (String name : names) {
+      attributes.put(name, request.getAttribute(name));
+    }
+    return attributes;
+  }
+
+  /**
+   * Sets the validators of an entry on the response and answers 304 if the client already has it.
+   *
+   * @param request the request.
+   * @param response the response.
+   * @param entry the entry being sent.
+   * @return true if the response has been sent, false if the entry remains to be sent.
+   */
+  public static boolean sendNotModified(
+      HttpServletRequest request, HttpServletResponse response, Entry entry) {
+    response.setHeader("ETag", entry.etag);
+    response.setDateHeader("Last-Modified", entry.lastModified);
+    response.setHeader("Cache-Control", "no-cache");
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    boolean notModified;
+    if (ifNoneMatch != null) {
+      notModified = ifNoneMatch.contains(entry.etag) || ifNoneMatch.trim().equals("*");
+    } else {
+      long ifModifiedSince = -1;
+      try {
+        ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      } catch (IllegalArgumentException e) {
+        // An unreadable date is ignored.
+      }
+      notModified = ifModifiedSince >= entry.lastModified;
+    }
+    if (notModified) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+    return notModified;
+  }
+
+  private static String getKey(HttpServletRequest request) {
+    StringBuilder key = new StringBuilder(request.getServletPath());
+    for (Map.Entry<String, String[]> parameter :
+        new TreeMap<>(request.getParameterMap()).entrySet()) {
+      for (String value : parameter.getValue()) {
+        key.append('&').append(parameter.getKey()).append('=').append(value);
+      }
+    }
+    return key.toString();
+  }
+
+  /** A cached response. */
+  public static class Entry {
+
+    private static final AtomicLong count = new AtomicLong();
+
+    private final String body;
+    private final Map<String, Object> attributes;
+    private final Set<String> tagSet;
+    private final String etag;
+    private final long lastModified;
+
+    private Entry(String body, Map<String, Object> attributes, Set<String> tagSet) {
+      this.body = body;
+      this.attributes = attributes;
+      this.tagSet = tagSet;
+      // HTTP dates have a precision of one second.
+      this.lastModified = System.currentTimeMillis() / 1000 * 1000;
+      this.etag =
+          "\"" + Long.toHexString(this.lastModified) + "-" + count.incrementAndGet() + "\"";
+    }
+
+    /** Returns the json body, null if the response is a view or is streamed. */
+    public String getBody() {
+      return body;
+    }
+
+    /**
+     * Sets the attributes of the view on a request.
+     *
+     * @param request the request to forward to the view.
+     */
+    public void setAttributes(HttpServletRequest request) {
+      for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+        request.setAttribute(attribute.getKey(), attribute.getValue());
+      }
+    }
+  }
+}
@@ -28,6 +28,7 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.*;
 
@@ -38,26 +39,22 @@ public class ResultHandler {
   private static final String DEFAULT_PAYLOAD = "INIT PAYLOAD";
 
 
-  private String pathToDB;
+  private DBConnectionPool connectionPool;
+  /* Tests written to by the current batch, whose cached responses are stale. */
+  private Set<String> changedTestSet = new HashSet<>();
 
   /**
-   * Constructs a ResultHandler object with a given path to the database.
+   * Constructs a ResultHandler object writing through the writer connection of the given pool.
    *
-   * @param pathToDB path to the database
+   * @param connectionPool pool of connections to the database
    */
-  public ResultHandler(String pathToDB) {
-    this.pathToDB = pathToDB;
-  }
-
-
-
-  /** Returns the connection to the database. */
-  private Connection getDatabaseConnection() throws SQLException, ClassNotFoundException {
-    return new DBConnectionManager(this.pathToDB).getConnection();
+  public ResultHandler(DBConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
   }
 
   /**
-   * Inserts new config and test to appropriate table and create result table for new test.
+   * Inserts new config and test to appropriate table and the scheduled results of the new test,
+   * unless the test was already inserted by an earlier delivery of the same result.
    *
    * @param connection a JDBC connection to the database.
    * @param configName name of the new configuration.
@@ -73,31 +70,28 @@ public class ResultHandler {
       throws SQLException {
     List<String> queryList = new ArrayList<>();
     long startTime = testJsonObject.getJsonNumber("timeStamp").longValue();
+    String testName = testJsonObject.getString("testName");
+    if (new TestDao(connection).getId(testName, startTime) != 0) {
+      // The engine posts a result again when it is not sure it got through.
+      log.info("Test " + testName + " started at " + startTime + " already exists, skipping");
+      return;
+    }
     int configId = new ExecutionDao(connection).insertNewConfig( configName, startTime);
     int testId = new TestDao(connection).insertNewTest(testJsonObject, startTime, description, testSuiteBrowserPairList.size(), configId);
-    String resultTableName = testJsonObject.getString("testName");
-    String resultTableQuery = "CREATE TABLE IF NOT EXISTS "+resultTableName+" (ID INTEGER NOT NULL, " +
-        "TEST_ID INTEGER NOT NULL, " +
-        "CONFIG_ID INTEGER, " +
-        "START_TIME INTEGER NOT NULL, " +
-        "DURATION INTEGER, " +
-        "BROWSERS TEXT , " +
-        "STAT_ID INTEGER, " +
-        "RESULT TEXT NOT NULL, " +
-        "PRIMARY KEY (ID) )";
-
-    queryList.add(resultTableQuery);
+    this.changedTestSet.add(testName);
+    this.changedTestSet.add(ResponseCache.TEST_LIST);
 
     for (List<Browser> testCaseBrowserList : testSuiteBrowserPairList) {
-      JsonArrayBuilder browserIds = Json.createArrayBuilder();
+      List<Integer> browserIds = new ArrayList<>();
       for (Browser browser: testCaseBrowserList) {
-        int browserID = new BrowserDao(connection).getId(browser);
+        int browserID = BrowserIdCache.getInstance().getId(browser);
         browserIds.add(browserID);
       }
+      int tupleId = new TupleDao(connection).insertNewTuple(browserIds);
       String blankResult =
-          "INSERT INTO " + resultTableName + "(TEST_ID, CONFIG_ID, START_TIME, DURATION, BROWSERS, STAT_ID, RESULT) " +
-              "VALUES("+testId+", " + configId + ", " + startTime + ", 0"
-              + ", '" + browserIds.build().toString() + "', 0, 'SCHEDULED');";
+          "INSERT INTO RESULTS(TEST_NAME, TEST_ID, CONFIG_ID, START_TIME, DURATION, BROWSERS, TUPLE_ID, STAT_ID, RESULT) " +
+              "VALUES('" + testName + "', "+testId+", " + configId + ", " + startTime + ", 0"
+              + ", '" + TupleDao.toBrowsers(browserIds) + "', " + tupleId + ", 0, 'SCHEDULED');";
       queryList.add(blankResult);
     }
 
@@ -123,7 +117,7 @@ public class ResultHandler {
    * Inserts new browser in BROWSERS table update new result in appropriate place result table
    *
    * @param connection a JDBC connection to the database.
-   * @param tableName name of the result table for this test.
+   * @param tableName name of the test.
    * @param targetList list of targeted browsers in the test.
    * @param destinationList list of actual browsers in the test.
    * @param payload actual result of the test.
@@ -145,31 +139,33 @@ public class ResultHandler {
     if (log.isDebugEnabled()) {
       log.debug("Tuple size is " + tupleSize);
     }
-    JsonArrayBuilder browsers = Json.createArrayBuilder();
+    List<Integer> targetIds = new ArrayList<>();
     for (Browser target : targetList) {
-      browsers.add(new BrowserDao(connection).getId(target));
+      targetIds.add(BrowserIdCache.getInstance().getId(target));
     }
-    targetBrowsers = browsers.build().toString();
+    targetBrowsers = TupleDao.toBrowsers(targetIds);
+    int tupleId = new TupleDao(connection).insertNewTuple(targetIds);
     if (log.isDebugEnabled()) {
       log.debug("targetIdList:" + targetBrowsers);
     }
 
-    browsers = Json.createArrayBuilder();
+    JsonArrayBuilder browsers = Json.createArrayBuilder();
     for (Browser destination : destinationList) {
-      browsers.add(new BrowserDao(connection).getId(destination));
+      browsers.add(BrowserIdCache.getInstance().getId(destination));
     }
     destidationBrowsers = browsers.build().toString();
     if (log.isDebugEnabled()){
       log.debug("destinationIdList:" + destidationBrowsers);
     }
+    this.changedTestSet.add(tableName);
     /* Create query Strings */
     String resultString = null;
     String resultUpdate = null;
     int testId = new TestDao(connection).getId(tableName, starTime);
-    int resultId = new ResultDao(connection).getId(tableName, starTime, targetBrowsers);
+    int resultId = new ResultDao(connection).getId(tableName, starTime, tupleId);
     resultString = payload.getString("result").replaceAll("\\n", "").replaceAll("'", "");
     resultUpdate =
-        "UPDATE " + tableName + " SET RESULT='" + resultString + "', DURATION=" + timeTaken;
+        "UPDATE RESULTS SET RESULT='" + resultString + "', DURATION=" + timeTaken;
     if (!tableName.startsWith("WPT")) {
       JsonObject resultObject = null;
       try {
@@ -182,12 +178,13 @@ public class ResultHandler {
         resultString = e.getMessage().replaceAll("'", "");
       }
       resultUpdate =
-          "UPDATE " + tableName + " SET RESULT='" + resultString + "', DURATION=" + timeTaken;
+          "UPDATE RESULTS SET RESULT='" + resultString + "', DURATION=" + timeTaken;
 
       if (resultObject != null && resultObject.get("stats") != null) {
-        String statString = resultObject.getJsonObject("stats").toString();
         int statID =
-            new StatsDao(connection).insertNewStat(resultId, testId, targetBrowsers, statString);
+            new StatsDao(connection)
+                .insertNewStat(
+                    resultId, testId, tupleId, targetBrowsers, resultObject.getJsonObject("stats"));
         resultUpdate += " , STAT_ID=" + statID + "";
       }
     }
@@ -195,7 +192,7 @@ public class ResultHandler {
 
     /*    if (!targetBrowsers.equalsIgnoreCase(destidationBrowsers)) {
       for (Browser browser: destinationList){
-        if (new BrowserDao(connection).getId(browser) == -1 ){
+        if (BrowserIdCache.getInstance().getId(browser) == -1 ){
           new BrowserDao(connection).insertNewBrowser(browser);
         }
       }
@@ -219,7 +216,7 @@ public class ResultHandler {
     } finally {
       Utility.closeDBResources(statement, null);
     }
-
+    new ScoreboardDao(connection).updateLatestResult(tableName, tupleId, targetIds, resultId);
   }
 
   /**
@@ -238,6 +235,7 @@ public class ResultHandler {
       long timeStamp,
       long endTime)
       throws SQLException {
+    this.changedTestSet.add(testName);
     String query1 =
         "UPDATE TESTS SET STATUS='DONE', END_TIME="
             + endTime
@@ -316,13 +314,57 @@ public class ResultHandler {
   }
 
   /**
-   * Puts received results into the database accordingly from a json object containing every thing.
+   * Puts a batch of received results into the database in a single transaction. A result that
+   * cannot be written is rolled back on its own and does not prevent the others from being
+   * committed. The cached responses of the tests written to are invalidated after the commit.
+   *
+   * @param jsonObjectList json objects containing the results, received from client's side
+   *     callback, in the order they were received.
+   * @return the number of results written.
+   */
+  public int dumpResults(List<JsonObject> jsonObjectList) throws SQLException {
+    int written = 0;
+    Connection connection = this.connectionPool.getWriterConnection();
+    try {
+      connection.setAutoCommit(false);
+      for (JsonObject jsonObject : jsonObjectList) {
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+          this.dumpResult(connection, jsonObject);
+          connection.releaseSavepoint(savepoint);
+          written++;
+        } catch (SQLException | RuntimeException e) {
+          log.error("dumping result: " + jsonObject, e);
+          connection.rollback(savepoint);
+          // The browsers registered by the result are gone with it.
+          BrowserIdCache.getInstance().load(connection);
+        }
+      }
+      connection.commit();
+      ResponseCache.getInstance().invalidate(this.changedTestSet);
+    } catch (SQLException e) {
+      try {
+        connection.rollback();
+        BrowserIdCache.getInstance().load(connection);
+      } catch (SQLException e1) {
+      }
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+      this.changedTestSet.clear();
+    }
+    return written;
+  }
+
+  /**
+   * Puts a received result into the database accordingly from a json object containing every
+   * thing, within the transaction of the given connection.
    *
+   * @param connection a JDBC connection to the database.
    * @param jsonObject json object containing the result, received from client's side callback.
    */
-  public void dumpResult(JsonObject jsonObject) throws SQLException, ClassNotFoundException {
+  private void dumpResult(Connection connection, JsonObject jsonObject) throws SQLException {
     JsonObject testObject = jsonObject.getJsonObject("test");
-    Connection connection = null;
     String testImpl = testObject.getString("testImpl");
     String testName = testObject.getString("testName");
     String configName = testObject.getString("configName");
@@ -343,185 +385,168 @@ public class ResultHandler {
     }
 
     if (!testImpl.endsWith("GetUpdateTest")) { // normal tests
-      try {
-        JsonObject metaObject = jsonObject.getJsonObject("meta");
-        connection = this.getDatabaseConnection();
-        if (metaObject != null) {
-          int totalTests = metaObject.getInt("totalTests", 0);
-          if (totalTests > 0) {
-            String description =
-                metaObject.getString("description", "No description was provided fot this test.");
-            JsonArray testSuiteBrowserJsonList = (JsonArray) metaObject.get("browsers");
-            if (log.isDebugEnabled()){
-              log.debug("test suite json browser list ->>" + testSuiteBrowserJsonList.toString());
-            }
+      JsonObject metaObject = jsonObject.getJsonObject("meta");
+      if (metaObject != null) {
+        int totalTests = metaObject.getInt("totalTests", 0);
+        if (totalTests > 0) {
+          String description =
+              metaObject.getString("description", "No description was provided fot this test.");
+          JsonArray testSuiteBrowserJsonList = (JsonArray) metaObject.get("browsers");
+          if (log.isDebugEnabled()){
+            log.debug("test suite json browser list ->>" + testSuiteBrowserJsonList.toString());
+          }
 
-            List<Browser> testSuiteBrowserList = new ArrayList<>();
-            for (JsonValue jsonBrowser : testSuiteBrowserJsonList) {
-              testSuiteBrowserList.add(new Browser((JsonObject) jsonBrowser));
-            }
+          List<Browser> testSuiteBrowserList = new ArrayList<>();
+          for (JsonValue jsonBrowser : testSuiteBrowserJsonList) {
+            testSuiteBrowserList.add(new Browser((JsonObject) jsonBrowser));
+          }
 
-            if (log.isDebugEnabled()) {
-              log.debug(
-                  "test suite browser list ->>"
-                      + Arrays.deepToString(testSuiteBrowserList.toArray()));
-            }
-            List<List<Browser>> testSuiteBrowserPairMatrix =
-                Utility.buildTuples(testSuiteBrowserList, tupleSize);
-            connection.setAutoCommit(false);
-            for (Browser browser: testSuiteBrowserList) {
-              if (new BrowserDao(connection).getId(browser) == -1 ){
-                new BrowserDao(connection).insertNewBrowser(browser);
+          if (log.isDebugEnabled()) {
+            log.debug(
+                "test suite browser list ->>"
+                    + Arrays.deepToString(testSuiteBrowserList.toArray()));
+          }
+          // A covering set of tuples comes along, as indexes in the browser list, since it cannot
+          // be rebuilt from the browser list like the full matrix.
+          JsonArray tupleJsonList = metaObject.getJsonArray("tuples");
+          List<List<Browser>> testSuiteBrowserPairMatrix;
+          if (tupleJsonList == null) {
+            testSuiteBrowserPairMatrix = Utility.buildTuples(testSuiteBrowserList, tupleSize);
+          } else {
+            testSuiteBrowserPairMatrix = new ArrayList<>();
+            for (JsonArray tupleJson : tupleJsonList.getValuesAs(JsonArray.class)) {
+              List<Browser> tuple = new ArrayList<>();
+              for (JsonNumber browserIndex : tupleJson.getValuesAs(JsonNumber.class)) {
+                tuple.add(testSuiteBrowserList.get(browserIndex.intValue()));
               }
+              testSuiteBrowserPairMatrix.add(tuple);
             }
-            connection.commit();
-            if (testImpl.endsWith("WPTest")){
-              String resultString = jsonPayload.getString("result");
-              JsonObject result = this.transformResult(resultString);
-              if (result != null) {
-                for (String testSuiteName : result.keySet()) {
-                  JsonObject testSuite = result.getJsonObject(testSuiteName);
-                  if (!testSuite.keySet().isEmpty()) {
-                    for (String wpTest : testSuite.keySet()) {
-                      if (!wpTest.equalsIgnoreCase("total")
-                              && !wpTest.equalsIgnoreCase("passed")
-                              && !wpTest.equalsIgnoreCase("isTest")) {
-                        JsonObjectBuilder newWPTestObject = Json.createObjectBuilder();
-                        newWPTestObject.add("testName", "WPT_" + wpTest.replaceAll("-", "_").replaceAll("\\.", "_"))
-                                .add("timeStamp", timeStamp)
-                                .add("configName", "WPT_" + configName)
-                                .add("testImpl", testImpl)
-                                .add("tupleSize", tupleSize);
-                        this.preliminaryInsert(
-                                connection,
-                                "WPT_" + configName,
-                                newWPTestObject.build(),
-                                testSuiteBrowserPairMatrix,
-                                description);
-                        connection.commit();
-
-                      }
-                    }
-                  }
-                }
-              }
-              connection.setAutoCommit(true);
-            } else {
-              this.preliminaryInsert(
-                  connection,
-                  configName,
-                  testObject,
-                  testSuiteBrowserPairMatrix,
-                  description);
-              connection.commit();
-              connection.setAutoCommit(true);
+          }
+          for (Browser browser: testSuiteBrowserList) {
+            if (BrowserIdCache.getInstance().getId(browser) == -1 ){
+              new BrowserDao(connection).insertNewBrowser(browser);
             }
           }
-          if (metaObject.get("lastTest") != null) {
-            long endTime = System.currentTimeMillis();
-            if (testImpl.endsWith("WPTest")){
-              String resultString = jsonPayload.getString("result");
-              JsonObject result = this.transformResult(resultString);
-              for (String testSuiteName: result.keySet()){
+          if (testImpl.endsWith("WPTest")){
+            String resultString = jsonPayload.getString("result");
+            JsonObject result = this.transformResult(resultString);
+            if (result != null) {
+              for (String testSuiteName : result.keySet()) {
                 JsonObject testSuite = result.getJsonObject(testSuiteName);
-                if (!testSuite.keySet().isEmpty()){
-                  for (String wpTest: testSuite.keySet()){
+                if (!testSuite.keySet().isEmpty()) {
+                  for (String wpTest : testSuite.keySet()) {
                     if (!wpTest.equalsIgnoreCase("total")
-                        &&!wpTest.equalsIgnoreCase("passed")
-                        &&!wpTest.equalsIgnoreCase("isTest")){
+                            && !wpTest.equalsIgnoreCase("passed")
+                            && !wpTest.equalsIgnoreCase("isTest")) {
                       JsonObjectBuilder newWPTestObject = Json.createObjectBuilder();
-                      newWPTestObject.add("testName","WPT_"+wpTest.replaceAll("-", "_").replaceAll("\\.", "_"))
-                          .add("timeStamp",timeStamp)
-                          .add("configName", "WPT_"+configName)
-                          .add("testImpl", testImpl)
-                          .add("tupleSize", tupleSize);
-                      this.updateStatus(
-                          connection, "WPT_"+configName, "WPT_"+wpTest.replaceAll("-", "_").replaceAll("\\.", "_"), timeStamp, endTime);
+                      newWPTestObject.add("testName", "WPT_" + wpTest.replaceAll("-", "_").replaceAll("\\.", "_"))
+                              .add("timeStamp", timeStamp)
+                              .add("configName", "WPT_" + configName)
+                              .add("testImpl", testImpl)
+                              .add("tupleSize", tupleSize);
+                      this.preliminaryInsert(
+                              connection,
+                              "WPT_" + configName,
+                              newWPTestObject.build(),
+                              testSuiteBrowserPairMatrix,
+                              description);
+
                     }
                   }
                 }
               }
-            } else {
-              this.updateStatus(
-                  connection, configName, testName, timeStamp, endTime);
             }
+          } else {
+            this.preliminaryInsert(
+                connection,
+                configName,
+                testObject,
+                testSuiteBrowserPairMatrix,
+                description);
           }
         }
-        // this.putInBrowserTable(connection, testCaseBrowserDestinationList);
-        if (testImpl.endsWith("WPTest")){
-          String resultString = jsonPayload.getString("result");
-          try {
+        if (metaObject.get("lastTest") != null) {
+          long endTime = System.currentTimeMillis();
+          if (testImpl.endsWith("WPTest")){
+            String resultString = jsonPayload.getString("result");
             JsonObject result = this.transformResult(resultString);
-            for (String testSuiteName : result.keySet()) {
+            for (String testSuiteName: result.keySet()){
               JsonObject testSuite = result.getJsonObject(testSuiteName);
-              if (!testSuite.keySet().isEmpty()) {
-                for (String wpTest : testSuite.keySet()) {
+              if (!testSuite.keySet().isEmpty()){
+                for (String wpTest: testSuite.keySet()){
                   if (!wpTest.equalsIgnoreCase("total")
-                          && !wpTest.equalsIgnoreCase("passed")
-                          && !wpTest.equalsIgnoreCase("isTest")) {
-                    JsonObject wpTestObject = testSuite.getJsonObject(wpTest);
+                      &&!wpTest.equalsIgnoreCase("passed")
+                      &&!wpTest.equalsIgnoreCase("isTest")){
                     JsonObjectBuilder newWPTestObject = Json.createObjectBuilder();
-                    newWPTestObject.add("testName", "WPT_" + wpTest.replaceAll("-", "_").replaceAll("\\.", "_"))
-                            .add("timeStamp", timeStamp)
-                            .add("configName", "WPT_" + configName)
-                            .add("testImpl", testImpl)
-                            .add("tupleSize", tupleSize);
-
-                    JsonObjectBuilder newWPTesPayload = Json.createObjectBuilder();
-                    newWPTesPayload.add("result", wpTestObject.toString());
-                    this.postResultInsert(
-                            connection,
-                            "WPT_" + wpTest.replaceAll("-", "_").replaceAll("\\.", "_"),
-                            testCaseBrowserTargetList,
-                            testCaseBrowserDestinationList,
-                            newWPTesPayload.build(),
-                            resultObject.getJsonNumber("timeTaken").longValue(),
-                            timeStamp);
+                    newWPTestObject.add("testName","WPT_"+wpTest.replaceAll("-", "_").replaceAll("\\.", "_"))
+                        .add("timeStamp",timeStamp)
+                        .add("configName", "WPT_"+configName)
+                        .add("testImpl", testImpl)
+                        .add("tupleSize", tupleSize);
+                    this.updateStatus(
+                        connection, "WPT_"+configName, "WPT_"+wpTest.replaceAll("-", "_").replaceAll("\\.", "_"), timeStamp, endTime);
                   }
                 }
               }
             }
-          } catch (JsonParsingException e) {
-            log.error("Exception handling WPTest results", e);
-            e.printStackTrace();
+          } else {
+            this.updateStatus(
+                connection, configName, testName, timeStamp, endTime);
           }
-        } else {
-          this.postResultInsert(
-              connection,
-              testName,
-              testCaseBrowserTargetList,
-              testCaseBrowserDestinationList,
-              jsonPayload,
-              resultObject.getJsonNumber("timeTaken").longValue(),
-              timeStamp);
         }
-      } catch (SQLException e) {
-        log.error("Exception update result", e);
-        e.printStackTrace();
-        if (connection != null)
-          try {
-            connection.rollback();
-          } catch (SQLException e1) {
+      }
+      // this.putInBrowserTable(connection, testCaseBrowserDestinationList);
+      if (testImpl.endsWith("WPTest")){
+        String resultString = jsonPayload.getString("result");
+        try {
+          JsonObject result = this.transformResult(resultString);
+          for (String testSuiteName : result.keySet()) {
+            JsonObject testSuite = result.getJsonObject(testSuiteName);
+            if (!testSuite.keySet().isEmpty()) {
+              for (String wpTest : testSuite.keySet()) {
+                if (!wpTest.equalsIgnoreCase("total")
+                        && !wpTest.equalsIgnoreCase("passed")
+                        && !wpTest.equalsIgnoreCase("isTest")) {
+                  JsonObject wpTestObject = testSuite.getJsonObject(wpTest);
+                  JsonObjectBuilder newWPTestObject = Json.createObjectBuilder();
+                  newWPTestObject.add("testName", "WPT_" + wpTest.replaceAll("-", "_").replaceAll("\\.", "_"))
+                          .add("timeStamp", timeStamp)
+                          .add("configName", "WPT_" + configName)
+                          .add("testImpl", testImpl)
+                          .add("tupleSize", tupleSize);
+
+                  JsonObjectBuilder newWPTesPayload = Json.createObjectBuilder();
+                  newWPTesPayload.add("result", wpTestObject.toString());
+                  this.postResultInsert(
+                          connection,
+                          "WPT_" + wpTest.replaceAll("-", "_").replaceAll("\\.", "_"),
+                          testCaseBrowserTargetList,
+                          testCaseBrowserDestinationList,
+                          newWPTesPayload.build(),
+                          resultObject.getJsonNumber("timeTaken").longValue(),
+                          timeStamp);
+                }
+              }
+            }
           }
-      } finally {
-        if (connection != null) connection.close();
+        } catch (JsonParsingException e) {
+          log.error("Exception handling WPTest results", e);
+          e.printStackTrace();
+        }
+      } else {
+        this.postResultInsert(
+            connection,
+            testName,
+            testCaseBrowserTargetList,
+            testCaseBrowserDestinationList,
+            jsonPayload,
+            resultObject.getJsonNumber("timeTaken").longValue(),
+            timeStamp);
       }
 
       // For updating client version purpose only
     } else {
-      try {
-        connection = this.getDatabaseConnection();
-        this.updateClientVersion(connection, jsonPayload.toString(), timeStamp);
-      } catch (SQLException e) {
-        log.error("dumping result", e);
-        if (connection != null)
-          try {
-            connection.rollback();
-          } catch (SQLException e1) {
-          }
-      } finally {
-        if (connection != null) connection.close();
-      }
+      this.updateClientVersion(connection, jsonPayload.toString(), timeStamp);
     }
   }
 
@@ -27,10 +27,10 @@ import java.util.Map;
 public class TestMapping {
 
 
-  public static Map<String, List> TestMapping = new HashMap<>();
+  public static Map<String, List<String>> TestMapping = new HashMap<>();
   public static Map<String, String> TestCategoryMapping = new HashMap<>();
   public static Map<String, String> TestDescriptionMapping = new HashMap<>();
-  private static List<List> testListList = new ArrayList<>();
+  private static List<List<String>> testListList = new ArrayList<>();
 
   static {
     List<String> PeerConnectionAPI = new ArrayList<>();
@@ -268,7 +268,7 @@ public class TestMapping {
     TestMapping.put("Canvas Integration", CanvasIntegration);
 
     for (String category: TestMapping.keySet())   {
-      for (String test: (List<String> )TestMapping.get(category)) {
+      for (String test: TestMapping.get(category)) {
         TestCategoryMapping.put(test,category);
       }
     }
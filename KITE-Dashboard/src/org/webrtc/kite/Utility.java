@@ -16,6 +16,7 @@
 
 package org.webrtc.kite;
 
+import org.webrtc.kite.dao.DBConnectionPool;
 import org.webrtc.kite.pojo.Browser;
 import org.webrtc.kite.pojo.Result;
 
@@ -63,13 +64,15 @@ public class Utility {
   }
 
   /**
-   * Gets the DBConnection object inside the ServletContext.
+   * Gets the read-only connection of the current request from the DBConnectionPool inside the
+   * ServletContext.
    *
    * @param servletContext ServletContext
    * @return Connection
    */
-  public static Connection getDBConnection(ServletContext servletContext) {
-    return (Connection) servletContext.getAttribute("DBConnection");
+  public static Connection getDBConnection(ServletContext servletContext) throws SQLException {
+    return ((DBConnectionPool) servletContext.getAttribute("DBConnectionPool"))
+        .getReaderConnection();
   }
 
   /**
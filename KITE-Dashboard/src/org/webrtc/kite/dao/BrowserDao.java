@@ -44,7 +44,7 @@ public class BrowserDao {
 
 
   /**
-   * Updates the status for configuration & test when they're done.
+   * Registers a browser if it does not exist yet, and records its id in the BrowserIdCache.
    *
    * @param browser browser to put in the BROWSERS Table if not already exist
    */
@@ -78,6 +78,7 @@ public class BrowserDao {
     } finally {
       Utility.closeDBResources(statement, null);
     }
+    BrowserIdCache.getInstance().put(browser, getId(browser));
   }
 
   /**
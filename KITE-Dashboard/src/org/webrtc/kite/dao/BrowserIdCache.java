@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite.dao;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.webrtc.kite.Utility;
+import org.webrtc.kite.pojo.Browser;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ids of the registered browsers, shared by the result handler and the servlets.
+ *
+ * <p>The BROWSERS table is loaded once when the dashboard starts, and every browser inserted
+ * afterwards goes through BrowserDao.insertNewBrowser, which adds it here. Once loaded, the cache
+ * is authoritative: a browser it does not know is not in the database.
+ */
+public class BrowserIdCache {
+
+  private static final Log log = LogFactory.getLog(BrowserIdCache.class);
+
+  /* Singleton boiler plate code */
+  private static BrowserIdCache instance = new BrowserIdCache();
+
+  private BrowserIdCache() {}
+
+  public static BrowserIdCache getInstance() {
+    return instance;
+  }
+  /* Singleton boiler plate code */
+
+  private volatile Map<String, Integer> idMap = new ConcurrentHashMap<>();
+
+  /**
+   * Replaces the content of the cache with the BROWSERS table.
+   *
+   * @param connection a JDBC connection to the database.
+   */
+  public void load(Connection connection) throws SQLException {
+    String query = "SELECT BROWSER_ID, NAME, VERSION, PLATFORM FROM BROWSERS ORDER BY BROWSER_ID";
+    Map<String, Integer> idMap = new ConcurrentHashMap<>();
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      ps = connection.prepareStatement(query);
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      rs = ps.executeQuery();
+      while (rs.next()) {
+        // Like BrowserDao.getId, the lowest id wins if a browser has been registered twice.
+        idMap.putIfAbsent(
+            getKey(rs.getString("NAME"), rs.getString("VERSION"), rs.getString("PLATFORM")),
+            rs.getInt("BROWSER_ID"));
+      }
+    } finally {
+      Utility.closeDBResources(ps, rs);
+    }
+    this.idMap = idMap;
+    log.info("Loaded " + idMap.size() + " browser ids");
+  }
+
+  /**
+   * Returns the Id of a browser previously registered.
+   *
+   * @param browser a Browser object which contains information as name, version and platform.
+   * @return the browser id, -1 if the browser is not registered.
+   */
+  public int getId(Browser browser) {
+    Integer id = this.idMap.get(getKey(browser));
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * Records the Id of a newly registered browser.
+   *
+   * @param browser the browser.
+   * @param id the browser id in the BROWSERS table.
+   */
+  public void put(Browser browser, int id) {
+    this.idMap.putIfAbsent(getKey(browser), id);
+  }
+
+  private static String getKey(Browser browser) {
+    return getKey(browser.getName(), browser.getVersion(), browser.getPlatform().toUpperCase());
+  }
+
+  private static String getKey(String name, String version, String platform) {
+    return name + "\t" + version + "\t" + platform;
+  }
+}
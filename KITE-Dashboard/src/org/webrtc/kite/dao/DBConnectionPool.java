@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite.dao;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of connections to the database, in WAL journal mode so that readers do not wait for the
+ * writer nor the writer for readers.
+ *
+ * <p>The pool holds a single writer connection, used by the ResultHandler only, and a fixed number
+ * of read-only connections. A request thread borrows a reader the first time it asks for one and
+ * keeps it until the request ends.
+ */
+public class DBConnectionPool {
+
+  private static final Log log = LogFactory.getLog(DBConnectionPool.class);
+
+  private static final String BUSY_TIMEOUT = "5000";
+  private static final long BORROW_TIMEOUT = 30 * 1000;
+
+  private final Connection writerConnection;
+  private final List<Connection> readerList = new ArrayList<>();
+  private final BlockingQueue<Connection> idleReaderQueue;
+  private final ThreadLocal<Connection> threadConnection = new ThreadLocal<>();
+
+  /**
+   * Constructs a new DBConnectionPool object that opens all of its connections to the database.
+   *
+   * @param dbURL path to the database.
+   * @param readerCount number of read-only connections.
+   */
+  public DBConnectionPool(String dbURL, int readerCount)
+      throws ClassNotFoundException, SQLException {
+    Class.forName("org.sqlite.JDBC");
+    // The journal mode is stored in the database, the writer sets it before any reader opens it.
+    SQLiteConfig writerConfig = new SQLiteConfig();
+    writerConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+    writerConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+    writerConfig.setBusyTimeout(BUSY_TIMEOUT);
+    this.writerConnection =
+        DriverManager.getConnection("jdbc:sqlite:" + dbURL, writerConfig.toProperties());
+
+    SQLiteConfig readerConfig = new SQLiteConfig();
+    readerConfig.setReadOnly(true);
+    readerConfig.setBusyTimeout(BUSY_TIMEOUT);
+    this.idleReaderQueue = new ArrayBlockingQueue<>(readerCount);
+    for (int i = 0; i < readerCount; i++) {
+      Connection connection =
+          DriverManager.getConnection("jdbc:sqlite:" + dbURL, readerConfig.toProperties());
+      this.readerList.add(connection);
+      this.idleReaderQueue.add(connection);
+    }
+    log.info("Opened " + dbURL + " in WAL mode with " + readerCount + " readers");
+  }
+
+  /** Returns the writer connection. */
+  public Connection getWriterConnection() {
+    return this.writerConnection;
+  }
+
+  /**
+   * Returns the read-only connection of the current thread, borrowing one from the pool if the
+   * thread does not have one yet.
+   *
+   * @throws SQLException if no connection becomes available in time.
+   */
+  public Connection getReaderConnection() throws SQLException {
+    Connection connection = this.threadConnection.get();
+    if (connection == null) {
+      try {
+        connection = this.idleReaderQueue.poll(BORROW_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (connection == null) {
+        throw new SQLException("No database connection available");
+      }
+      this.threadConnection.set(connection);
+    }
+    return connection;
+  }
+
+  /** Gives the read-only connection of the current thread, if any, back to the pool. */
+  public void releaseReaderConnection() {
+    Connection connection = this.threadConnection.get();
+    if (connection != null) {
+      this.threadConnection.remove();
+      this.idleReaderQueue.add(connection);
+    }
+  }
+
+  /** Closes all the connections. */
+  public void close() {
+    List<Connection> connectionList = new ArrayList<>(this.readerList);
+    connectionList.add(this.writerConnection);
+    for (Connection connection : connectionList) {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        log.warn("closing connection", e);
+      }
+    }
+  }
+}
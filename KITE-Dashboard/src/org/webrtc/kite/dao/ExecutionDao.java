@@ -179,26 +179,6 @@ public class ExecutionDao {
     return null;
   }
 
-  private String getResultTableNameFromStartTime(long startTime) throws SQLException {
-    String query =
-        "SELECT tbl_name FROM sqlite_master WHERE type='table' AND name LIKE '%" + startTime + "%'";
-
-    PreparedStatement ps = null;
-    ResultSet rs = null;
-    String res = "";
-    try {
-      ps = this.connection.prepareStatement(query);
-      if (log.isDebugEnabled()) log.debug("Executing: " + query);
-      rs = ps.executeQuery();
-      while (rs.next()) {
-        res = rs.getString("tbl_name");
-      }
-    } finally {
-      Utility.closeDBResources(ps, rs);
-    }
-
-    return res;
-  }
 /*
   private void updateIntoOverall(ConfigurationOverall overall, String tableName)
       throws SQLException {
@@ -156,11 +156,12 @@ public class ResultDao {
     return jsonObjectBuilder.build().toString();
   }*/
 
-  public int insertNewResult (String tableName, int configId, int testId, long startTime, long duration, String browsers, int statID, String result) throws SQLException {
+  public int insertNewResult (String testName, int configId, int testId, long startTime, long duration, String browsers, int statID, String result) throws SQLException {
+    int tupleId = new TupleDao(connection).insertNewTuple(TupleDao.parseBrowserIds(browsers));
     String query =
-        "INSERT INTO " + tableName + "(TEST_ID, CONFIG_ID, START_TIME, DURATION, BROWSERS, STAT_ID, RESULT) " +
-            "VALUES("+testId+", " + configId + ", " + startTime + ", "+duration
-            + ", '" + browsers + "', "+statID+", '"+result + "');";
+        "INSERT INTO RESULTS(TEST_NAME, TEST_ID, CONFIG_ID, START_TIME, DURATION, BROWSERS, TUPLE_ID, STAT_ID, RESULT) " +
+            "VALUES('" + testName + "', "+testId+", " + configId + ", " + startTime + ", "+duration
+            + ", '" + browsers + "', " + tupleId + ", "+statID+", '"+result + "');";
 
 
     Statement statement = null;
@@ -176,12 +177,12 @@ public class ResultDao {
       Utility.closeDBResources(statement, null);
     }
 
-    return getId(tableName, startTime, browsers);
+    return getId(testName, startTime, tupleId);
   }
 
-  public int getId (String tableName, long startTime, String browsers ) throws SQLException {
-    String query = "SELECT ID FROM " + tableName + " WHERE START_TIME = " +startTime
-        + " AND BROWSERS = '" + browsers + "'";
+  public int getId (String testName, long startTime, int tupleId) throws SQLException {
+    String query = "SELECT ID FROM RESULTS WHERE TEST_NAME = '" + testName + "' AND TUPLE_ID = " + tupleId
+        + " AND START_TIME = " +startTime;
 
     PreparedStatement ps = null;
     ResultSet rs = null;
@@ -211,17 +212,17 @@ public class ResultDao {
 
   /**
    *
-   * @param tableName table name
+   * @param testName test name
    * @param filter filter by result
    * @param testId test id
    * @return
    * @throws SQLException
    */
-  public String getRequestedResultList(String tableName, String filter, int testId)
+  public String getRequestedResultList(String testName, String filter, int testId)
       throws SQLException {
     JsonArrayBuilder jsonArrayBuilder;
-    String query = "SELECT * FROM " + tableName;
-    query += " WHERE TEST_ID=" +testId;
+    String query = "SELECT * FROM RESULTS";
+    query += " WHERE TEST_ID=" +testId + " AND TEST_NAME='" + testName + "'";
     switch (filter) {
       case "all":
         query += "";
@@ -249,14 +250,14 @@ public class ResultDao {
 
   /**
    *
-   * @param tableName table name
+   * @param testName test name
    * @param configId configuration id
    * @return
    * @throws SQLException
    */
-  public List<Result> getresultByExecutionId(String tableName, int configId) throws SQLException {
+  public List<Result> getresultByExecutionId(String testName, int configId) throws SQLException {
 
-    String query = "SELECT * FROM "+ tableName +" WHERE CONFIG_ID="+configId+" ORDER BY START_TIME DESC";
+    String query = "SELECT * FROM RESULTS WHERE CONFIG_ID="+configId+" AND TEST_NAME='" + testName + "' ORDER BY START_TIME DESC";
     List<Result> resultTableList = new ArrayList<Result>();
 
     PreparedStatement ps = null;
@@ -288,13 +289,13 @@ public class ResultDao {
 
   /**
    *
-   * @param tableName table name
+   * @param testName test name
    * @param testId test id
    * @return
    * @throws SQLException
    */
-  public List<Result> getresultByTestId (String tableName, int testId) throws SQLException {
-    String query = "SELECT * FROM "+ tableName +" WHERE TEST_ID="+testId +" ORDER BY START_TIME DESC";
+  public List<Result> getresultByTestId (String testName, int testId) throws SQLException {
+    String query = "SELECT * FROM RESULTS WHERE TEST_ID="+testId +" AND TEST_NAME='" + testName + "' ORDER BY START_TIME DESC";
     List<Result> resultTableList = new ArrayList<Result>();
 
     PreparedStatement ps = null;
@@ -327,14 +328,14 @@ public class ResultDao {
 
   /**
    *
-   * @param tableName table name
+   * @param testName test name
    * @param id result id
    * @return
    * @throws SQLException
    */
-  public List<Browser> getBrowsersById(String tableName, int id) throws SQLException {
+  public List<Browser> getBrowsersById(String testName, int id) throws SQLException {
     List<Browser> browsers = new ArrayList<>();
-    String query = "SELECT BROWSERS FROM "+ tableName + " WHERE ID=" +id;
+    String query = "SELECT BROWSERS FROM RESULTS WHERE ID=" +id + " AND TEST_NAME='" + testName + "'";
     PreparedStatement ps = null;
     ResultSet rs = null;
     try {
@@ -367,13 +368,13 @@ public class ResultDao {
   }
   /**
    *
-   * @param tableName table name
+   * @param testName test name
    * @param id result id
    * @return
    * @throws SQLException
    */
-  public int getStatIdById(String tableName, int id) throws SQLException {
-    String query = "SELECT STAT_ID FROM "+ tableName + " WHERE ID=" +id;
+  public int getStatIdById(String testName, int id) throws SQLException {
+    String query = "SELECT STAT_ID FROM RESULTS WHERE ID=" +id + " AND TEST_NAME='" + testName + "'";
     PreparedStatement ps = null;
     ResultSet rs = null;
     try {
@@ -404,14 +405,17 @@ public class ResultDao {
 
   /**
    *
-   * @param tableName table name
+   * @param testName test name
    * @param browsers browser Ids list as String
    * @return
    * @throws SQLException
    */
-  public String getLatestResultByBrowser(String tableName, String browsers) throws SQLException {
-    String query = "SELECT RESULT FROM " + tableName + " WHERE BROWSERS='" + browsers + "' AND RESULT <> 'SCHEDULED' " +
-        "ORDER BY START_TIME DESC LIMIT 1";
+  public String getLatestResultByBrowser(String testName, String browsers) throws SQLException {
+    int tupleId = new TupleDao(connection).getId(browsers);
+    if (tupleId == -1) {
+      return null;
+    }
+    String query = "SELECT RESULT FROM LATEST_RESULTS WHERE TEST_NAME='" + testName + "' AND TUPLE_ID=" + tupleId;
     PreparedStatement ps = null;
     ResultSet rs = null;
     try {
@@ -508,7 +512,7 @@ public class ResultDao {
       if (stat == 0) {
         result = new Result(rs.getString("RESULT"), rs.getLong("DURATION"), false);
       } else {
-        if (new StatsDao(connection).getStatById(stat) == null) {
+        if (!new StatsDao(connection).hasStats(stat)) {
           result = new Result(rs.getString("RESULT"), rs.getLong("DURATION"), false);
         } else {
           result = new Result(rs.getString("RESULT"), rs.getLong("DURATION"), true);
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite.dao;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.webrtc.kite.Utility;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class in charged of bringing the schema of the database up to date when the dashboard starts.
+ *
+ * <p>The results of all the tests are kept in the RESULTS table, keyed by TEST_NAME. Databases
+ * created before that have one result table per test name, which are moved into RESULTS and
+ * dropped. Results and stats refer to their browser tuple by TUPLE_ID, which is filled in for the
+ * rows that only have the BROWSERS string. LATEST_RESULTS is filled in from RESULTS the first time.
+ * The stats kept as text are packed into STATS.PACKED, and the database is compacted afterwards.
+ */
+public class SchemaMigrator {
+
+  private static final Log log = LogFactory.getLog(SchemaMigrator.class);
+
+  private static final String[] SCHEMA = {
+    "CREATE TABLE IF NOT EXISTS RESULTS (ID INTEGER NOT NULL, "
+        + "TEST_NAME TEXT NOT NULL, "
+        + "TEST_ID INTEGER NOT NULL, "
+        + "CONFIG_ID INTEGER, "
+        + "START_TIME INTEGER NOT NULL, "
+        + "DURATION INTEGER, "
+        + "BROWSERS TEXT , "
+        + "TUPLE_ID INTEGER, "
+        + "STAT_ID INTEGER, "
+        + "RESULT TEXT NOT NULL, "
+        + "PRIMARY KEY (ID) )",
+    "CREATE TABLE IF NOT EXISTS TUPLES (TUPLE_ID INTEGER NOT NULL, "
+        + "BROWSERS TEXT NOT NULL UNIQUE, "
+        + "PRIMARY KEY (TUPLE_ID) )",
+    "CREATE TABLE IF NOT EXISTS TUPLE_BROWSERS (TUPLE_ID INTEGER NOT NULL, "
+        + "POSITION INTEGER NOT NULL, "
+        + "BROWSER_ID INTEGER NOT NULL, "
+        + "PRIMARY KEY (TUPLE_ID, POSITION) )",
+    "CREATE INDEX IF NOT EXISTS TUPLE_BROWSERS_BY_BROWSER ON TUPLE_BROWSERS (BROWSER_ID, POSITION)",
+    "CREATE INDEX IF NOT EXISTS RESULTS_BY_TEST ON RESULTS (TEST_ID, START_TIME)",
+    "CREATE INDEX IF NOT EXISTS RESULTS_BY_CONFIG ON RESULTS (CONFIG_ID, START_TIME)",
+    "CREATE INDEX IF NOT EXISTS TESTS_BY_NAME ON TESTS (TEST_NAME, START_TIME)",
+    "CREATE TABLE IF NOT EXISTS LATEST_RESULTS (TEST_NAME TEXT NOT NULL, "
+        + "TUPLE_ID INTEGER NOT NULL, "
+        + "RESULT_ID INTEGER NOT NULL, "
+        + "START_TIME INTEGER NOT NULL, "
+        + "RESULT TEXT NOT NULL, "
+        + "PRIMARY KEY (TEST_NAME, TUPLE_ID) )",
+    "CREATE TABLE IF NOT EXISTS SCOREBOARD (BROWSER_ID INTEGER NOT NULL, "
+        + "TEST_NAME TEXT NOT NULL, "
+        + "TOTAL INTEGER NOT NULL, "
+        + "PASSED INTEGER NOT NULL, "
+        + "PRIMARY KEY (BROWSER_ID, TEST_NAME) )"
+  };
+
+  /* Run once the TUPLE_ID columns exist. */
+  private static final String[] TUPLE_INDEXES = {
+    "DROP INDEX IF EXISTS RESULTS_BY_BROWSERS",
+    // Latest result of a browser tuple, and the result of a tuple in a given run.
+    "CREATE INDEX IF NOT EXISTS RESULTS_BY_TUPLE ON RESULTS (TEST_NAME, TUPLE_ID, START_TIME)",
+    "CREATE INDEX IF NOT EXISTS STATS_BY_TUPLE ON STATS (TUPLE_ID, TEST_ID)",
+    // The latest results of a database that had none kept yet, the bare columns come from the row
+    // of the max.
+    "INSERT INTO LATEST_RESULTS(TEST_NAME, TUPLE_ID, RESULT_ID, START_TIME, RESULT) "
+        + "SELECT TEST_NAME, TUPLE_ID, ID, MAX(START_TIME), RESULT FROM RESULTS "
+        + "WHERE RESULT <> 'SCHEDULED' AND TUPLE_ID IS NOT NULL "
+        + "AND NOT EXISTS (SELECT 1 FROM LATEST_RESULTS) GROUP BY TEST_NAME, TUPLE_ID"
+  };
+
+  private Connection connection;
+
+  /**
+   * Constructs a new SchemaMigrator object associated with a connection to the database.
+   *
+   * @param connection a JDBC connection to the database, allowed to write.
+   */
+  public SchemaMigrator(Connection connection) {
+    this.connection = connection;
+  }
+
+  /** Creates the missing tables and indexes and moves the legacy result tables into RESULTS. */
+  public void migrate() throws SQLException {
+    boolean autoCommit = this.connection.getAutoCommit();
+    this.connection.setAutoCommit(false);
+    long sizeBefore = 0;
+    long[] footprint = null;
+    Statement statement = null;
+    try {
+      statement = this.connection.createStatement();
+      sizeBefore = this.getDatabaseSize(statement);
+      for (String query : SCHEMA) {
+        if (log.isDebugEnabled()) log.debug("Executing: " + query);
+        statement.execute(query);
+      }
+      this.addColumnIfMissing(statement, "RESULTS", "TUPLE_ID", "INTEGER");
+      this.addColumnIfMissing(statement, "STATS", "TUPLE_ID", "INTEGER");
+      this.addColumnIfMissing(statement, "STATS", "PACKED", "BLOB");
+      for (String tableName : this.getLegacyResultTableList()) {
+        this.moveResults(statement, tableName);
+      }
+      this.fillTupleIds();
+      for (String query : TUPLE_INDEXES) {
+        if (log.isDebugEnabled()) log.debug("Executing: " + query);
+        statement.execute(query);
+      }
+      footprint = new StatsDao(this.connection).packLegacyStats();
+      this.connection.commit();
+    } catch (SQLException e) {
+      this.connection.rollback();
+      throw e;
+    } finally {
+      Utility.closeDBResources(statement, null);
+      this.connection.setAutoCommit(autoCommit);
+    }
+    if (footprint[0] > 0) {
+      this.compact(sizeBefore, footprint);
+    }
+  }
+
+  /**
+   * Gives back to the file system the space freed by packing the stats.
+   *
+   * @param sizeBefore size of the database before the migration, in bytes.
+   * @param footprint number of stats packed, size of their text and size of their blobs.
+   */
+  private void compact(long sizeBefore, long[] footprint) throws SQLException {
+    boolean autoCommit = this.connection.getAutoCommit();
+    this.connection.setAutoCommit(true);
+    Statement statement = null;
+    try {
+      statement = this.connection.createStatement();
+      statement.execute("VACUUM");
+      log.info(
+          "Packed "
+              + footprint[0]
+              + " stats from "
+              + footprint[1]
+              + " to "
+              + footprint[2]
+              + " bytes, the database went from "
+              + sizeBefore
+              + " to "
+              + this.getDatabaseSize(statement)
+              + " bytes");
+    } finally {
+      Utility.closeDBResources(statement, null);
+      this.connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Returns the size of the database file.
+   *
+   * @param statement statement to execute the queries with.
+   * @return the size in bytes.
+   */
+  private long getDatabaseSize(Statement statement) throws SQLException {
+    long size = 1;
+    for (String pragma : new String[] {"PRAGMA page_count", "PRAGMA page_size"}) {
+      ResultSet rs = null;
+      try {
+        rs = statement.executeQuery(pragma);
+        size *= rs.next() ? rs.getLong(1) : 0;
+      } finally {
+        Utility.closeDBResources(null, rs);
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Adds a column to a table unless it already has it.
+   *
+   * @param statement statement to execute the queries with.
+   * @param tableName name of the table.
+   * @param columnName name of the column.
+   * @param type type of the column.
+   */
+  private void addColumnIfMissing(
+      Statement statement, String tableName, String columnName, String type)
+      throws SQLException {
+    ResultSet rs = null;
+    try {
+      rs = statement.executeQuery("PRAGMA table_info(" + tableName + ")");
+      while (rs.next()) {
+        if (rs.getString("name").equalsIgnoreCase(columnName)) {
+          return;
+        }
+      }
+    } finally {
+      Utility.closeDBResources(null, rs);
+    }
+    statement.execute("ALTER TABLE " + tableName + " ADD COLUMN " + columnName + " " + type);
+    log.info("Added " + columnName + " to " + tableName);
+  }
+
+  /** Registers the tuples of the results and stats that have no TUPLE_ID yet. */
+  private void fillTupleIds() throws SQLException {
+    String query =
+        "SELECT BROWSERS FROM RESULTS WHERE TUPLE_ID IS NULL "
+            + "UNION SELECT BROWSERS FROM STATS WHERE TUPLE_ID IS NULL";
+    List<String> browsersList = new ArrayList<>();
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      ps = this.connection.prepareStatement(query);
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      rs = ps.executeQuery();
+      while (rs.next()) {
+        if (rs.getString("BROWSERS") != null) {
+          browsersList.add(rs.getString("BROWSERS"));
+        }
+      }
+    } finally {
+      Utility.closeDBResources(ps, rs);
+    }
+
+    TupleDao tupleDao = new TupleDao(this.connection);
+    for (String browsers : browsersList) {
+      List<Integer> browserIdList = TupleDao.parseBrowserIds(browsers);
+      if (browserIdList == null) {
+        log.warn("Cannot read the browser tuple " + browsers);
+        continue;
+      }
+      int tupleId = tupleDao.insertNewTuple(browserIdList);
+      for (String tableName : new String[] {"RESULTS", "STATS"}) {
+        ps = null;
+        try {
+          ps =
+              this.connection.prepareStatement(
+                  "UPDATE "
+                      + tableName
+                      + " SET TUPLE_ID = ? WHERE TUPLE_ID IS NULL AND BROWSERS = ?");
+          ps.setInt(1, tupleId);
+          ps.setString(2, browsers);
+          ps.executeUpdate();
+        } finally {
+          Utility.closeDBResources(ps, null);
+        }
+      }
+    }
+    if (!browsersList.isEmpty()) {
+      log.info("Filled in the TUPLE_ID of " + browsersList.size() + " browser tuples");
+    }
+  }
+
+  /** Returns the names of the tests that still have their own result table. */
+  private List<String> getLegacyResultTableList() throws SQLException {
+    String query =
+        "SELECT tbl_name FROM sqlite_master WHERE type='table' "
+            + "AND tbl_name IN (SELECT DISTINCT TEST_NAME FROM TESTS)";
+    List<String> tableList = new ArrayList<>();
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      ps = this.connection.prepareStatement(query);
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      rs = ps.executeQuery();
+      while (rs.next()) {
+        tableList.add(rs.getString("tbl_name"));
+      }
+    } finally {
+      Utility.closeDBResources(ps, rs);
+    }
+    return tableList;
+  }
+
+  /**
+   * Copies the results of a legacy result table into RESULTS, points their stats to the new
+   * result ids and drops the table.
+   * <p>
+   * The moved results get ids above the former max id of RESULTS, so their stat ids are mapped to
+   * the new result ids with a single range scan on the primary key, into a temporary table keyed
+   * by stat id that the update of the stats then looks up.
+   *
+   * @param statement statement to execute the queries with.
+   * @param tableName name of the legacy table, which is the name of the test.
+   */
+  private void moveResults(Statement statement, String tableName) throws SQLException {
+    long maxId = 0;
+    ResultSet rs = null;
+    try {
+      rs = statement.executeQuery("SELECT IFNULL(MAX(ID), 0) FROM RESULTS");
+      if (rs.next()) {
+        maxId = rs.getLong(1);
+      }
+    } finally {
+      Utility.closeDBResources(null, rs);
+    }
+
+    String insert =
+        "INSERT INTO RESULTS(TEST_NAME, TEST_ID, CONFIG_ID, START_TIME, DURATION, BROWSERS, "
+            + "STAT_ID, RESULT) SELECT '"
+            + tableName
+            + "', TEST_ID, CONFIG_ID, START_TIME, DURATION, BROWSERS, STAT_ID, RESULT FROM "
+            + tableName
+            + " ORDER BY ID";
+    String createMap =
+        "CREATE TEMP TABLE MOVED_RESULTS (STAT_ID INTEGER NOT NULL, "
+            + "RESULT_ID INTEGER NOT NULL, "
+            + "PRIMARY KEY (STAT_ID) )";
+    // The first result pointing to a stat wins, as the lookup by TEST_NAME and STAT_ID used to.
+    String fillMap =
+        "INSERT OR IGNORE INTO MOVED_RESULTS(STAT_ID, RESULT_ID) SELECT STAT_ID, ID FROM RESULTS "
+            + "WHERE ID > "
+            + maxId
+            + " AND STAT_ID > 0 ORDER BY ID";
+    String updateStats =
+        "UPDATE STATS SET RESULT_ID = (SELECT RESULT_ID FROM MOVED_RESULTS "
+            + "WHERE MOVED_RESULTS.STAT_ID = STATS.ID) "
+            + "WHERE ID IN (SELECT STAT_ID FROM MOVED_RESULTS)";
+    String dropMap = "DROP TABLE MOVED_RESULTS";
+    String drop = "DROP TABLE " + tableName;
+    if (log.isDebugEnabled()) log.debug("Executing: " + insert);
+    int moved = statement.executeUpdate(insert);
+    statement.executeUpdate(createMap);
+    statement.executeUpdate(fillMap);
+    statement.executeUpdate(updateStats);
+    statement.executeUpdate(dropMap);
+    statement.executeUpdate(drop);
+    log.info("Moved " + moved + " results from " + tableName + " into RESULTS");
+  }
+}
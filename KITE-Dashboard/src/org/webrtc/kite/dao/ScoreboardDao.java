@@ -0,0 +1,329 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite.dao;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.webrtc.kite.BrowserMapping;
+import org.webrtc.kite.Utility;
+import org.webrtc.kite.pojo.Browser;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.StringReader;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A class in charged of the LATEST_RESULTS and SCOREBOARD tables, which the ingestion keeps up to
+ * date so that the score page does not have to look for the latest result of every tuple.
+ *
+ * <p>LATEST_RESULTS holds the latest result that is not SCHEDULED of every (test, tuple).
+ * SCOREBOARD holds, for every browser of the BrowserMapping and every test, the number of tuples
+ * of the browser list containing the browser whose latest result is SUCCESSFUL. For the WPT tests,
+ * it holds the total and passed of the latest result of the browser alone instead. The total of
+ * the other tests only depends on the browser list, the score page counts it itself.
+ */
+public class ScoreboardDao {
+
+  private static final Log log = LogFactory.getLog(ScoreboardDao.class);
+
+  private Connection connection;
+
+  /**
+   * Constructs a new ScoreboardDao object associated with a connection to the database.
+   *
+   * @param connection a JDBC connection to the database.
+   */
+  public ScoreboardDao(Connection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * Makes a result the latest one of its tuple unless a later run has already given one, and
+   * updates the scoreboard accordingly.
+   *
+   * @param testName name of the test.
+   * @param tupleId id of the tuple the result is for.
+   * @param browserIdList browser Ids of the tuple.
+   * @param resultId id of the result in RESULTS, holding its final value.
+   */
+  public void updateLatestResult(
+      String testName, int tupleId, List<Integer> browserIdList, int resultId)
+      throws SQLException {
+    String oldResult = null;
+    long oldStartTime = -1;
+    String query =
+        "SELECT START_TIME, RESULT FROM LATEST_RESULTS WHERE TEST_NAME='"
+            + testName
+            + "' AND TUPLE_ID="
+            + tupleId;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      ps = this.connection.prepareStatement(query);
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      rs = ps.executeQuery();
+      if (rs.next()) {
+        oldStartTime = rs.getLong("START_TIME");
+        oldResult = rs.getString("RESULT");
+      }
+    } finally {
+      Utility.closeDBResources(ps, rs);
+    }
+
+    String newResult = null;
+    query =
+        "SELECT START_TIME, RESULT FROM RESULTS WHERE ID="
+            + resultId
+            + " AND RESULT <> 'SCHEDULED' AND START_TIME >= "
+            + oldStartTime;
+    ps = null;
+    rs = null;
+    try {
+      ps = this.connection.prepareStatement(query);
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      rs = ps.executeQuery();
+      if (rs.next()) {
+        newResult = rs.getString("RESULT");
+      }
+    } finally {
+      Utility.closeDBResources(ps, rs);
+    }
+    if (newResult == null) {
+      // A result of an earlier run, arrived late.
+      return;
+    }
+
+    Statement statement = null;
+    try {
+      statement = this.connection.createStatement();
+      query =
+          "INSERT OR REPLACE INTO LATEST_RESULTS(TEST_NAME, TUPLE_ID, RESULT_ID, START_TIME, RESULT) "
+              + "SELECT TEST_NAME, TUPLE_ID, ID, START_TIME, RESULT FROM RESULTS WHERE ID="
+              + resultId;
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      statement.executeUpdate(query);
+      for (String update : getScoreUpdateList(testName, browserIdList, oldResult, newResult)) {
+        if (log.isDebugEnabled()) log.debug("Executing: " + update);
+        statement.addBatch(update);
+      }
+      statement.executeBatch();
+    } finally {
+      Utility.closeDBResources(statement, null);
+    }
+  }
+
+  /** Recomputes the whole scoreboard from LATEST_RESULTS, for the current browser list. */
+  public void rebuild() throws SQLException {
+    String query =
+        "SELECT L.TEST_NAME, L.RESULT, T.BROWSERS FROM LATEST_RESULTS L, TUPLES T "
+            + "WHERE L.TUPLE_ID = T.TUPLE_ID";
+    List<String> queryList = new ArrayList<>();
+    queryList.add("DELETE FROM SCOREBOARD");
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      ps = this.connection.prepareStatement(query);
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      rs = ps.executeQuery();
+      while (rs.next()) {
+        List<Integer> browserIdList = TupleDao.parseBrowserIds(rs.getString("BROWSERS"));
+        if (browserIdList != null) {
+          queryList.addAll(
+              getScoreUpdateList(
+                  rs.getString("TEST_NAME"), browserIdList, null, rs.getString("RESULT")));
+        }
+      }
+    } finally {
+      Utility.closeDBResources(ps, rs);
+    }
+
+    boolean autoCommit = this.connection.getAutoCommit();
+    this.connection.setAutoCommit(false);
+    Statement statement = null;
+    try {
+      statement = this.connection.createStatement();
+      for (String update : queryList) {
+        statement.addBatch(update);
+      }
+      statement.executeBatch();
+      this.connection.commit();
+    } catch (SQLException e) {
+      this.connection.rollback();
+      throw e;
+    } finally {
+      Utility.closeDBResources(statement, null);
+      this.connection.setAutoCommit(autoCommit);
+    }
+    log.info("Rebuilt the scoreboard with " + (queryList.size() - 1) + " updates");
+  }
+
+  /**
+   * Returns the scoreboard.
+   *
+   * @return for every browser id, the [total, passed] of every test it has a score for.
+   */
+  public Map<Integer, Map<String, List<Integer>>> getScoreboard() throws SQLException {
+    String query = "SELECT BROWSER_ID, TEST_NAME, TOTAL, PASSED FROM SCOREBOARD";
+    Map<Integer, Map<String, List<Integer>>> scoreboard = new HashMap<>();
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      ps = this.connection.prepareStatement(query);
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      rs = ps.executeQuery();
+      while (rs.next()) {
+        int browserId = rs.getInt("BROWSER_ID");
+        if (!scoreboard.containsKey(browserId)) {
+          scoreboard.put(browserId, new HashMap<String, List<Integer>>());
+        }
+        scoreboard
+            .get(browserId)
+            .put(
+                rs.getString("TEST_NAME"),
+                Arrays.asList(rs.getInt("TOTAL"), rs.getInt("PASSED")));
+      }
+    } finally {
+      Utility.closeDBResources(ps, rs);
+    }
+    return scoreboard;
+  }
+
+  /**
+   * Builds the queries bringing the scoreboard from the old latest result of a tuple to the new
+   * one.
+   *
+   * @param testName name of the test.
+   * @param browserIdList browser Ids of the tuple.
+   * @param oldResult previous latest result, null if none.
+   * @param newResult new latest result.
+   * @return the queries, none if the tuple does not count in the score.
+   */
+  private static List<String> getScoreUpdateList(
+      String testName, List<Integer> browserIdList, String oldResult, String newResult) {
+    List<String> queryList = new ArrayList<>();
+    if (!isScored(browserIdList)) {
+      return queryList;
+    }
+    if (testName.startsWith("WPT")) {
+      if (browserIdList.size() == 1) {
+        JsonObject result = readResult(newResult);
+        if (result == null) {
+          queryList.add(
+              "DELETE FROM SCOREBOARD WHERE BROWSER_ID="
+                  + browserIdList.get(0)
+                  + " AND TEST_NAME='"
+                  + testName
+                  + "'");
+        } else {
+          queryList.add(
+              "INSERT OR REPLACE INTO SCOREBOARD(BROWSER_ID, TEST_NAME, TOTAL, PASSED) VALUES("
+                  + browserIdList.get(0)
+                  + ", '"
+                  + testName
+                  + "', "
+                  + result.getInt("total", 0)
+                  + ", "
+                  + result.getInt("passed", 0)
+                  + ")");
+        }
+      }
+      return queryList;
+    }
+    int delta = (isSuccessful(newResult) ? 1 : 0) - (isSuccessful(oldResult) ? 1 : 0);
+    if (delta == 0) {
+      return queryList;
+    }
+    for (int browserId : new LinkedHashSet<>(browserIdList)) {
+      queryList.add(
+          "INSERT OR IGNORE INTO SCOREBOARD(BROWSER_ID, TEST_NAME, TOTAL, PASSED) VALUES("
+              + browserId
+              + ", '"
+              + testName
+              + "', 0, 0)");
+      queryList.add(
+          "UPDATE SCOREBOARD SET PASSED = PASSED + "
+              + delta
+              + " WHERE BROWSER_ID="
+              + browserId
+              + " AND TEST_NAME='"
+              + testName
+              + "'");
+    }
+    return queryList;
+  }
+
+  /**
+   * Tells whether a tuple is one the score page counts, i.e. one Utility.buildTuples builds from
+   * the browser list.
+   *
+   * @param browserIdList browser Ids of the tuple.
+   */
+  private static boolean isScored(List<Integer> browserIdList) {
+    Map<Integer, Browser> browserMap = new HashMap<>();
+    for (Browser browser : BrowserMapping.BrowserList) {
+      int browserId = BrowserIdCache.getInstance().getId(browser);
+      if (browserId != -1) {
+        browserMap.put(browserId, browser);
+      }
+    }
+    if (!browserMap.keySet().containsAll(browserIdList)) {
+      return false;
+    }
+    if (browserIdList.size() == 1) {
+      return true;
+    }
+    Browser first = browserMap.get(browserIdList.get(0));
+    if (new HashSet<>(browserIdList).size() == 1
+        && (first.getPlatform().equalsIgnoreCase("android")
+            || first.getPlatform().equalsIgnoreCase("ios"))) {
+      return false;
+    }
+    for (int browserId : browserIdList) {
+      if (browserMap.get(browserId).isFocus()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isSuccessful(String result) {
+    return result != null && result.equalsIgnoreCase("SUCCESSFUL");
+  }
+
+  /**
+   * Reads the json result of a WPT test.
+   *
+   * @param result the result as stored.
+   * @return the result, or null if it cannot be read.
+   */
+  private static JsonObject readResult(String result) {
+    try {
+      JsonReader reader = Json.createReader(new StringReader(result));
+      try {
+        return reader.readObject();
+      } finally {
+        reader.close();
+      }
+    } catch (JsonException | ClassCastException e) {
+      return null;
+    }
+  }
+}
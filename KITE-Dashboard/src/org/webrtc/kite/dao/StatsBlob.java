@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite.dao;
+
+import javax.json.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The packed format of the stats of a result, as kept in STATS.PACKED.
+ *
+ * <p>The stats are a json object holding an object per browser, with its sdp, its series of
+ * getStats() samples and its log. Every member of every browser is a section, deflated on its
+ * own, so that reading the log does not decompress the stats and the other way round. The blob
+ * starts with an index of the sections:
+ *
+ * <pre>
+ * int    MAGIC
+ * int    number of sections
+ * for every section: UTF browser, UTF member name, int length of the section
+ * the deflated sections, in the order of the index
+ * </pre>
+ *
+ * A section is the deflated json object {member name: value}. A top level value that is not an
+ * object, or an empty object, is kept whole in a section named WHOLE.
+ */
+public class StatsBlob {
+
+  /* "KSB" and the version of the format. */
+  private static final int MAGIC = 0x4b534201;
+  private static final String WHOLE = "";
+
+  private StatsBlob() {}
+
+  /**
+   * Packs stats.
+   *
+   * @param stats the stats of a result.
+   * @return the blob.
+   */
+  public static byte[] encode(JsonObject stats) throws IOException {
+    List<String[]> nameList = new ArrayList<>();
+    List<byte[]> sectionList = new ArrayList<>();
+    for (Map.Entry<String, JsonValue> entry : stats.entrySet()) {
+      JsonValue value = entry.getValue();
+      if (value.getValueType() == JsonValue.ValueType.OBJECT && !((JsonObject) value).isEmpty()) {
+        for (Map.Entry<String, JsonValue> member : ((JsonObject) value).entrySet()) {
+          nameList.add(new String[] {entry.getKey(), member.getKey()});
+          sectionList.add(deflate(member.getKey(), member.getValue()));
+        }
+      } else {
+        nameList.add(new String[] {entry.getKey(), WHOLE});
+        sectionList.add(deflate(WHOLE, value));
+      }
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(sectionList.size());
+    for (int i = 0; i < sectionList.size(); i++) {
+      data.writeUTF(nameList.get(i)[0]);
+      data.writeUTF(nameList.get(i)[1]);
+      data.writeInt(sectionList.get(i).length);
+    }
+    for (byte[] section : sectionList) {
+      data.write(section);
+    }
+    data.flush();
+    return out.toByteArray();
+  }
+
+  /**
+   * Unpacks some sections of the stats.
+   *
+   * @param blob the blob.
+   * @param names names of the members to unpack for every browser, all of them if none is given.
+   * @return the stats, where every browser holds the requested members it has.
+   */
+  public static JsonObject decode(byte[] blob, String... names) throws IOException {
+    return decodeBrowser(blob, null, names);
+  }
+
+  /**
+   * Unpacks some sections of a single browser, leaving the sections of the others deflated.
+   *
+   * @param blob the blob.
+   * @param browser the browser to unpack, all of them if null.
+   * @param names names of the members to unpack, all of them if none is given.
+   * @return the stats, holding the requested members of the browser only.
+   */
+  public static JsonObject decodeBrowser(byte[] blob, String browser, String... names)
+      throws IOException {
+    Set<String> nameSet = new HashSet<>(Arrays.asList(names));
+    Map<String, JsonObjectBuilder> builderMap = new LinkedHashMap<>();
+    Map<String, JsonValue> wholeMap = new HashMap<>();
+    List<Section> sectionList = readIndex(blob);
+    for (Section section : sectionList) {
+      if (browser != null && !browser.equals(section.browser)) {
+        continue;
+      }
+      if (!builderMap.containsKey(section.browser)) {
+        builderMap.put(section.browser, Json.createObjectBuilder());
+      }
+      if (section.name.equals(WHOLE)) {
+        wholeMap.put(section.browser, inflate(blob, section));
+      } else if (nameSet.isEmpty() || nameSet.contains(section.name)) {
+        builderMap.get(section.browser).add(section.name, inflate(blob, section));
+      }
+    }
+
+    JsonObjectBuilder stats = Json.createObjectBuilder();
+    for (Map.Entry<String, JsonObjectBuilder> entry : builderMap.entrySet()) {
+      if (wholeMap.containsKey(entry.getKey())) {
+        stats.add(entry.getKey(), wholeMap.get(entry.getKey()));
+      } else {
+        stats.add(entry.getKey(), entry.getValue());
+      }
+    }
+    return stats.build();
+  }
+
+  /**
+   * Reads the index of the blob only.
+   *
+   * @param blob the blob.
+   * @return for every browser, the names of its members, or WHOLE if it is not an object.
+   */
+  public static Map<String, Set<String>> getSectionNames(byte[] blob) throws IOException {
+    Map<String, Set<String>> nameMap = new LinkedHashMap<>();
+    for (Section section : readIndex(blob)) {
+      if (!nameMap.containsKey(section.browser)) {
+        nameMap.put(section.browser, new LinkedHashSet<String>());
+      }
+      nameMap.get(section.browser).add(section.name);
+    }
+    return nameMap;
+  }
+
+  /**
+   * Deflates a member of a browser.
+   *
+   * @param name name of the member.
+   * @param value value of the member.
+   * @return the section.
+   */
+  private static byte[] deflate(String name, JsonValue value) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonWriter writer =
+        Json.createWriter(
+            new OutputStreamWriter(new DeflaterOutputStream(out), StandardCharsets.UTF_8));
+    writer.writeObject(Json.createObjectBuilder().add(name, value).build());
+    writer.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * Inflates a section, parsing it as it is decompressed.
+   *
+   * @param blob the blob.
+   * @param section the section.
+   * @return the value of the member.
+   */
+  private static JsonValue inflate(byte[] blob, Section section) throws IOException {
+    JsonReader reader =
+        Json.createReader(
+            new InputStreamReader(
+                new InflaterInputStream(
+                    new ByteArrayInputStream(blob, section.offset, section.length)),
+                StandardCharsets.UTF_8));
+    try {
+      return reader.readObject().get(section.name);
+    } catch (JsonException e) {
+      throw new IOException(
+          "Cannot read the section " + section.name + " of " + section.browser, e);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads the index of a blob.
+   *
+   * @param blob the blob.
+   * @return the sections, with their offset in the blob.
+   */
+  private static List<Section> readIndex(byte[] blob) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(blob));
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a stats blob");
+    }
+    int count = data.readInt();
+    List<Section> sectionList = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      sectionList.add(new Section(data.readUTF(), data.readUTF(), data.readInt()));
+    }
+    // What is left to read is the sections.
+    int offset = blob.length - data.available();
+    for (Section section : sectionList) {
+      section.offset = offset;
+      offset += section.length;
+    }
+    if (offset != blob.length) {
+      throw new IOException("Truncated stats blob");
+    }
+    return sectionList;
+  }
+
+  /** An entry of the index. */
+  private static class Section {
+
+    private final String browser;
+    private final String name;
+    private final int length;
+    private int offset;
+
+    private Section(String browser, String name, int length) {
+      this.browser = browser;
+      this.name = name;
+      this.length = length;
+    }
+  }
+}
@@ -21,14 +21,15 @@ import org.apache.commons.logging.LogFactory;
 import org.webrtc.kite.Utility;
 import org.webrtc.kite.pojo.Browser;
 import org.webrtc.kite.pojo.Result;
+import org.webrtc.kite.pojo.Stats.Stats;
 
 import javax.json.*;
 import javax.json.stream.JsonParsingException;
+import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 
 /** A class in charged of getting information on results of a test in the database. */
 public class StatsDao {
@@ -46,26 +47,98 @@ public class StatsDao {
     this.connection = connection;
   }
 
-  public int insertNewStat (int resultID, int testId, String browsers, String stat) throws SQLException {
-    String query = "INSERT INTO STATS (RESULT_ID, TEST_ID, BROWSERS, STATS) VALUES (" +
-        +resultID +", "+ testId + ", '" +browsers +"', '"+ stat+ "')";
-    Statement statement = null;
+  /**
+   * Inserts the stats of a result, packed.
+   *
+   * @param resultID id of the result.
+   * @param testId id of the test.
+   * @param tupleId id of the browser tuple.
+   * @param browsers browsers of the result.
+   * @param stat the stats, holding an object per browser.
+   * @return the id of the stats.
+   */
+  public int insertNewStat (int resultID, int testId, int tupleId, String browsers, JsonObject stat)
+      throws SQLException {
+    String query = "INSERT INTO STATS (RESULT_ID, TEST_ID, TUPLE_ID, BROWSERS, PACKED) VALUES (" +
+        +resultID +", "+ testId + ", " + tupleId + ", '" +browsers +"', ?)";
+    PreparedStatement ps = null;
     try {
-      statement = connection.createStatement();
+      ps = connection.prepareStatement(query);
+      ps.setBytes(1, StatsBlob.encode(stat));
       if (log.isDebugEnabled()){
         log.debug("Executing Preliminary Insert:" + query);
       }
-      System.out.println("Executing: " + query);
-      statement.addBatch(query);
-      statement.executeBatch();
+      ps.executeUpdate();
+    } catch (IOException e) {
+      throw new SQLException("Cannot pack the stats", e);
     } finally {
-      Utility.closeDBResources(statement, null);
+      Utility.closeDBResources(ps, null);
+    }
+    return getId(testId,tupleId);
+  }
+
+  /**
+   * Packs the stats that are still kept as text, and drops the text.
+   *
+   * @return {number of stats packed, size of their text, size of their blobs}.
+   */
+  public long[] packLegacyStats() throws SQLException {
+    long[] footprint = new long[3];
+    int lastId = 0;
+    while (true) {
+      String query =
+          "SELECT ID, STATS FROM STATS WHERE ID > "
+              + lastId
+              + " AND PACKED IS NULL AND STATS IS NOT NULL ORDER BY ID LIMIT 100";
+      Map<Integer, String> statMap = new LinkedHashMap<>();
+      PreparedStatement ps = null;
+      ResultSet rs = null;
+      try {
+        ps = this.connection.prepareStatement(query);
+        if (log.isDebugEnabled()) log.debug("Executing: " + query);
+        rs = ps.executeQuery();
+        while (rs.next()) {
+          statMap.put(rs.getInt("ID"), rs.getString("STATS"));
+        }
+      } finally {
+        Utility.closeDBResources(ps, rs);
+      }
+      if (statMap.isEmpty()) {
+        return footprint;
+      }
+
+      ps = null;
+      try {
+        ps =
+            this.connection.prepareStatement(
+                "UPDATE STATS SET PACKED = ?, STATS = NULL WHERE ID = ?");
+        for (Map.Entry<Integer, String> stat : statMap.entrySet()) {
+          lastId = stat.getKey();
+          byte[] blob;
+          try {
+            JsonReader jsonReader = Json.createReader(new StringReader(stat.getValue()));
+            blob = StatsBlob.encode(jsonReader.readObject());
+            jsonReader.close();
+          } catch (JsonException | IOException e) {
+            log.warn("Cannot pack the stats " + stat.getKey() + ", keeping them as text");
+            continue;
+          }
+          ps.setBytes(1, blob);
+          ps.setInt(2, stat.getKey());
+          ps.addBatch();
+          footprint[0]++;
+          footprint[1] += stat.getValue().getBytes(StandardCharsets.UTF_8).length;
+          footprint[2] += blob.length;
+        }
+        ps.executeBatch();
+      } finally {
+        Utility.closeDBResources(ps, null);
+      }
     }
-    return getId(testId,browsers);
   }
 
-  public int getId (int testId, String browsers) throws SQLException {
-    String query = "SELECT ID FROM STATS WHERE TEST_ID=" +testId + " AND BROWSERS ='" +browsers+"'";
+  public int getId (int testId, int tupleId) throws SQLException {
+    String query = "SELECT ID FROM STATS WHERE TUPLE_ID=" +tupleId + " AND TEST_ID=" +testId;
 
     PreparedStatement ps = null;
     ResultSet rs = null;
@@ -101,7 +174,7 @@ public class StatsDao {
    */
   public JsonObject getStatById(int id) throws SQLException {
 
-    String query = "SELECT STATS FROM STATS WHERE ID=" +id;
+    String query = "SELECT STATS, PACKED FROM STATS WHERE ID=" +id;
 
     PreparedStatement ps = null;
     ResultSet rs = null;
@@ -123,11 +196,11 @@ public class StatsDao {
           }
           log.trace(rsLog.toString());
         }
-        String stat = rs.getString("STATS");
         try {
-          JsonReader jsonReader = Json.createReader(new StringReader(stat));
-          JsonObject statJson = jsonReader.readObject();
-          jsonReader.close();
+          JsonObject statJson = readStats(rs, "sdp", "stats");
+          if (statJson == null) {
+            return null;
+          }
           boolean containBrowser = false;
           for (String key : statJson.keySet()) {
             if (key.contains("_")) {
@@ -153,6 +226,47 @@ public class StatsDao {
     }
     return null;
   }
+  /**
+   * Tells whether every browser of the stats has its series of samples, like getStatById() would
+   * but reading the index of packed stats only.
+   *
+   * @param id id of stats.
+   */
+  public boolean hasStats(int id) throws SQLException {
+    String query = "SELECT PACKED FROM STATS WHERE ID=" + id;
+    byte[] packed = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      ps = this.connection.prepareStatement(query);
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      rs = ps.executeQuery();
+      if (rs.next()) {
+        packed = rs.getBytes("PACKED");
+      }
+    } finally {
+      Utility.closeDBResources(ps, rs);
+    }
+    if (packed == null) {
+      return this.getStatById(id) != null;
+    }
+    try {
+      boolean containBrowser = false;
+      for (Map.Entry<String, Set<String>> browser : StatsBlob.getSectionNames(packed).entrySet()) {
+        if (browser.getKey().contains("_")) {
+          if (!browser.getValue().contains("stats")) {
+            return false;
+          }
+          containBrowser = true;
+        }
+      }
+      return containBrowser;
+    } catch (IOException e) {
+      log.error("Exception while getting stats from db", e);
+      return false;
+    }
+  }
+
   /**
    * Get corresponded stat by id.
    *
@@ -160,7 +274,7 @@ public class StatsDao {
    */
   public JsonObject getLogById(int id) throws SQLException {
 
-    String query = "SELECT STATS FROM STATS WHERE ID=" +id;
+    String query = "SELECT STATS, PACKED FROM STATS WHERE ID=" +id;
     JsonObjectBuilder logObject = Json.createObjectBuilder();
     PreparedStatement ps = null;
     ResultSet rs = null;
@@ -182,11 +296,11 @@ public class StatsDao {
           }
           log.trace(rsLog.toString());
         }
-        String stat = rs.getString("STATS");
         try {
-          JsonReader jsonReader = Json.createReader(new StringReader(stat));
-          JsonObject statJson = jsonReader.readObject();
-          jsonReader.close();
+          JsonObject statJson = readStats(rs, "log");
+          if (statJson == null) {
+            return null;
+          }
           boolean containBrowser = false;
           for (String key : statJson.keySet()) {
             if (key.contains("_")) {
@@ -214,14 +328,74 @@ public class StatsDao {
   }
 
   /**
-   * Get corresponded stat by browsers.
+   * Returns the ids of the first and last stats of a browser pair, and their number, within the
+   * given bounds.
    *
    * @param browsers browsers of stats.
+   * @param since only the stats of the tests started at or after this time, in ms.
+   * @param limit only the last 'limit' stats, -1 for all of them.
+   * @return {first id, last id, count}, or null if there is no stat.
    */
-  public List<String> getStatByBrowsers(String browsers) throws SQLException {
+  public int[] getStatRange(String browsers, long since, int limit) throws SQLException {
+    int tupleId = new TupleDao(connection).getId(browsers);
+    if (tupleId == -1) {
+      return null;
+    }
+    String query =
+        "SELECT MIN(ID), MAX(ID), COUNT(*) FROM (SELECT S.ID FROM STATS S "
+            + "LEFT JOIN TESTS T ON T.TEST_ID = S.TEST_ID WHERE S.TUPLE_ID="
+            + tupleId
+            + " AND IFNULL(T.START_TIME, 0) >= "
+            + since
+            + " ORDER BY S.ID DESC LIMIT "
+            + limit
+            + ")";
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      ps = this.connection.prepareStatement(query);
+      if (log.isDebugEnabled()) {
+        log.debug("Executing: " + query);
+      }
+      rs = ps.executeQuery();
+      if (rs.next() && rs.getInt(3) > 0) {
+        return new int[] {rs.getInt(1), rs.getInt(2), rs.getInt(3)};
+      }
+    } finally {
+      Utility.closeDBResources(ps, rs);
+    }
+    return null;
+  }
 
-    String query = "SELECT STATS FROM STATS WHERE BROWSERS=" +browsers;
-    List<String> stats= new ArrayList<>();
+  /**
+   * Reads the stats of a browser pair in the order they were written, handing them over one at a
+   * time instead of keeping them.
+   *
+   * @param browsers browsers of stats.
+   * @param since only the stats of the tests started at or after this time, in ms.
+   * @param range first and last ids of the stats, as returned by getStatRange().
+   * @param step hands over one stat every 'step' stats only, 1 for all of them.
+   * @param caller true to read the caller's stats only, false for the callee's, null to hand over
+   *     the start times only, without reading the stats. The stats are read without the logs, and
+   *     the sections of the other browser are left deflated.
+   * @param handler the handler of the stats.
+   */
+  public void readStatByBrowsers(
+      String browsers, long since, int[] range, int step, Boolean caller, StatHandler handler)
+      throws SQLException, IOException {
+    int tupleId = new TupleDao(connection).getId(browsers);
+    String query =
+        "SELECT IFNULL(T.START_TIME, 0) START_TIME"
+            + (caller != null ? ", S.STATS, S.PACKED" : "")
+            + " FROM STATS S LEFT JOIN TESTS T ON T.TEST_ID = S.TEST_ID WHERE S.TUPLE_ID="
+            + tupleId
+            + " AND S.ID BETWEEN "
+            + range[0]
+            + " AND "
+            + range[1]
+            + " AND IFNULL(T.START_TIME, 0) >= "
+            + since
+            + " ORDER BY S.ID";
     PreparedStatement ps = null;
     ResultSet rs = null;
     try {
@@ -230,24 +404,88 @@ public class StatsDao {
         log.debug("Executing: " + query);
       }
       rs = ps.executeQuery();
-      while (rs.next()) {
-        if (log.isTraceEnabled()) {
-          final StringBuilder rsLog = new StringBuilder();
-          for (int c = 1; c <= rs.getMetaData().getColumnCount(); c++) {
-            rsLog
-                .append(rs.getMetaData().getColumnName(c))
-                .append(":")
-                .append(rs.getString(c))
-                .append("-");
-          }
-          log.trace(rsLog.toString());
+      for (int i = 0; rs.next(); i++) {
+        if (i % step == 0) {
+          handler.handle(
+              rs.getLong("START_TIME"),
+              caller != null ? readStats(rs, caller, "sdp", "stats") : null);
         }
-        stats.add(rs.getString("STATS"));
       }
     } finally {
       Utility.closeDBResources(ps, rs);
     }
-    return stats;
   }
 
+  /** Receives the stats read by readStatByBrowsers(). */
+  public interface StatHandler {
+
+    /**
+     * Handles the stats of a run.
+     *
+     * @param startTime start time of the test, 0 if unknown.
+     * @param stats the stats, null if not read or if there are none.
+     */
+    void handle(long startTime, JsonObject stats) throws IOException;
+  }
+
+  /**
+   * Reads the stats of the caller or of the callee of the current row. Only the sections of that
+   * browser are inflated.
+   *
+   * @param rs a result set holding the STATS and PACKED columns.
+   * @param caller true for the caller, false for the callee, as told by Stats.isCaller().
+   * @param names names of the members to read, all of them if none is given. The stats kept as
+   *     text are read whole.
+   * @return the stats of that browser, null if there are none.
+   */
+  private static JsonObject readStats(ResultSet rs, boolean caller, String... names)
+      throws SQLException, IOException {
+    byte[] packed = rs.getBytes("PACKED");
+    if (packed != null) {
+      for (String browser : StatsBlob.getSectionNames(packed).keySet()) {
+        if (Stats.isCaller(browser) == caller) {
+          return StatsBlob.decodeBrowser(packed, browser, names);
+        }
+      }
+      return Json.createObjectBuilder().build();
+    }
+    JsonObject stats = readStats(rs, names);
+    if (stats == null) {
+      return null;
+    }
+    JsonObjectBuilder builder = Json.createObjectBuilder();
+    for (String browser : stats.keySet()) {
+      if (Stats.isCaller(browser) == caller) {
+        builder.add(browser, stats.get(browser));
+        break;
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Reads the stats of the current row, packed or kept as text by an earlier version.
+   *
+   * @param rs a result set holding the STATS and PACKED columns.
+   * @param names names of the members to read for every browser, all of them if none is given.
+   *     The stats kept as text are read whole.
+   * @return the stats, null if there are none.
+   */
+  private static JsonObject readStats(ResultSet rs, String... names)
+      throws SQLException, IOException {
+    byte[] packed = rs.getBytes("PACKED");
+    if (packed != null) {
+      return StatsBlob.decode(packed, names);
+    }
+    String stat = rs.getString("STATS");
+    if (stat == null) {
+      return null;
+    }
+    JsonReader jsonReader = Json.createReader(new StringReader(stat));
+    try {
+      return jsonReader.readObject();
+    } finally {
+      jsonReader.close();
+    }
+  }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite.dao;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.webrtc.kite.Utility;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class in charged of the browser tuples, in the TUPLES and TUPLE_BROWSERS tables.
+ *
+ * <p>A tuple is an ordered list of browser ids, stored once with an integer TUPLE_ID by which the
+ * results and stats refer to it. TUPLES.BROWSERS holds the canonical "[id1,id2]" form of the list
+ * and TUPLE_BROWSERS the browser at each position.
+ */
+public class TupleDao {
+
+  private static final Log log = LogFactory.getLog(TupleDao.class);
+
+  private Connection connection;
+
+  /**
+   * Constructs a new TupleDao object associated with a connection to the database.
+   *
+   * @param connection a JDBC connection to the database.
+   */
+  public TupleDao(Connection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * Returns the Id of a tuple previously registered.
+   *
+   * @param browsers browser Ids list as String, such as "[3, 7]".
+   * @return the tuple id, -1 if the tuple is unknown or the list cannot be read.
+   */
+  public int getId(String browsers) throws SQLException {
+    List<Integer> browserIdList = parseBrowserIds(browsers);
+    return browserIdList == null ? -1 : getId(browserIdList);
+  }
+
+  /**
+   * Returns the Id of a tuple previously registered.
+   *
+   * @param browserIdList browser Ids, in the order of the tuple.
+   * @return the tuple id, -1 if the tuple is unknown.
+   */
+  public int getId(List<Integer> browserIdList) throws SQLException {
+    String query =
+        "SELECT TUPLE_ID FROM TUPLES WHERE BROWSERS='" + toBrowsers(browserIdList) + "'";
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      ps = this.connection.prepareStatement(query);
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      rs = ps.executeQuery();
+      if (rs.next()) {
+        return rs.getInt("TUPLE_ID");
+      }
+    } finally {
+      Utility.closeDBResources(ps, rs);
+    }
+    return -1;
+  }
+
+  /**
+   * Registers a tuple if it does not exist yet.
+   *
+   * @param browserIdList browser Ids, in the order of the tuple.
+   * @return the tuple id.
+   */
+  public int insertNewTuple(List<Integer> browserIdList) throws SQLException {
+    int id = getId(browserIdList);
+    if (id != -1) {
+      return id;
+    }
+    String query = "INSERT INTO TUPLES(BROWSERS) VALUES('" + toBrowsers(browserIdList) + "')";
+    Statement statement = null;
+    ResultSet rs = null;
+    try {
+      statement = connection.createStatement();
+      if (log.isDebugEnabled()) log.debug("Executing: " + query);
+      statement.executeUpdate(query);
+      rs = statement.getGeneratedKeys();
+      rs.next();
+      id = rs.getInt(1);
+      rs.close();
+      for (int position = 0; position < browserIdList.size(); position++) {
+        statement.addBatch(
+            "INSERT INTO TUPLE_BROWSERS(TUPLE_ID, POSITION, BROWSER_ID) VALUES("
+                + id
+                + ", "
+                + position
+                + ", "
+                + browserIdList.get(position)
+                + ")");
+      }
+      statement.executeBatch();
+    } finally {
+      Utility.closeDBResources(statement, rs);
+    }
+    return id;
+  }
+
+  /**
+   * Reads a list of browser ids written as a json array, whatever the spacing.
+   *
+   * @param browsers browser Ids list as String, such as "[3, 7]".
+   * @return the browser ids, or null if the list cannot be read.
+   */
+  public static List<Integer> parseBrowserIds(String browsers) {
+    String trimmed = browsers.trim();
+    if (!trimmed.startsWith("[") || !trimmed.endsWith("]")) {
+      return null;
+    }
+    List<Integer> browserIdList = new ArrayList<>();
+    try {
+      for (String browserId : trimmed.substring(1, trimmed.length() - 1).split(",")) {
+        browserIdList.add(Integer.parseInt(browserId.trim()));
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return browserIdList;
+  }
+
+  /**
+   * Writes a list of browser ids in its canonical form.
+   *
+   * @param browserIdList browser Ids.
+   * @return the list as "[id1,id2]".
+   */
+  public static String toBrowsers(List<Integer> browserIdList) {
+    StringBuilder builder = new StringBuilder("[");
+    for (int i = 0; i < browserIdList.size(); i++) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      builder.append(browserIdList.get(i));
+    }
+    return builder.append(']').toString();
+  }
+}
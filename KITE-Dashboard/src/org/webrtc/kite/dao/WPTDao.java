@@ -52,7 +52,7 @@ public class WPTDao {
 
   public List<String> getWPTList () throws SQLException {
     List<String> list = new ArrayList<>();
-    String query = " SELECT tbl_name FROM sqlite_master WHERE type='table' AND name LIKE 'WPT%' ";
+    String query = " SELECT DISTINCT TEST_NAME FROM TESTS WHERE TEST_NAME LIKE 'WPT%' ";
     PreparedStatement ps = null;
     ResultSet rs = null;
     try {
@@ -71,7 +71,7 @@ public class WPTDao {
           }
           log.trace(rsLog.toString());
         }
-        list.add(rs.getString("tbl_name"));
+        list.add(rs.getString("TEST_NAME"));
       }
     } finally {
       Utility.closeDBResources(ps, rs);
@@ -79,8 +79,8 @@ public class WPTDao {
     return list;
   }
 
-  public JsonObject getLatestTestResultByBrowser(String tableName ,String browsers) throws SQLException {
-    String resultString = new ResultDao(connection).getLatestResultByBrowser(tableName, browsers);
+  public JsonObject getLatestTestResultByBrowser(String testName ,String browsers) throws SQLException {
+    String resultString = new ResultDao(connection).getLatestResultByBrowser(testName, browsers);
     if (resultString != null) {
       InputStream stream = new ByteArrayInputStream(resultString.getBytes(StandardCharsets.UTF_8));
       try {
@@ -97,7 +97,7 @@ public class WPTDao {
   }
 
   public String testExist(String testName) throws SQLException {
-    String query = " SELECT tbl_name FROM sqlite_master WHERE type='table' AND name= '"+testName+"' ";
+    String query = " SELECT TEST_NAME FROM TESTS WHERE TEST_NAME= '"+testName+"' LIMIT 1 ";
     PreparedStatement ps = null;
     ResultSet rs = null;
     try {
@@ -116,14 +116,14 @@ public class WPTDao {
           }
           log.trace(rsLog.toString());
         }
-        return rs.getString("tbl_name");
+        return rs.getString("TEST_NAME");
       }
     } finally {
       Utility.closeDBResources(ps, rs);
     }
 
     testName = "WPT_" + testName.replaceAll("\\.", "_");
-    query = " SELECT tbl_name FROM sqlite_master WHERE type='table' AND name= '"+testName+"' ";
+    query = " SELECT TEST_NAME FROM TESTS WHERE TEST_NAME= '"+testName+"' LIMIT 1 ";
     ps = null;
     rs = null;
     try {
@@ -142,7 +142,7 @@ public class WPTDao {
           }
           log.trace(rsLog.toString());
         }
-        return rs.getString("tbl_name");
+        return rs.getString("TEST_NAME");
       }
     } finally {
       Utility.closeDBResources(ps, rs);
@@ -17,11 +17,7 @@ public class Stats {
 
     // this.browser = browser.substring(2, browser.length());
     this.browser = browser;
-    if (browser.endsWith("1") || browser.startsWith("1")) {
-      this.caller = true;
-    } else {
-      this.caller = false;
-    }
+    this.caller = isCaller(browser);
     if (browserJsonObject.get("sdp") != null) {
       sdpObject = browserJsonObject.getJsonObject("sdp");
     }
@@ -59,4 +55,14 @@ public class Stats {
   public boolean isCaller() {
     return caller;
   }
+
+  /**
+   * Tells whether the stats kept under a browser key are the caller's.
+   *
+   * @param browser the key of the browser in the stats.
+   * @return true for the caller, false for the callee.
+   */
+  public static boolean isCaller(String browser) {
+    return browser.endsWith("1") || browser.startsWith("1");
+  }
 }
@@ -17,7 +17,11 @@
 package org.webrtc.kite.servlet;
 
 import org.webrtc.kite.DataCenterQueueManager;
+import org.webrtc.kite.dao.BrowserIdCache;
 import org.webrtc.kite.dao.DBConnectionManager;
+import org.webrtc.kite.dao.DBConnectionPool;
+import org.webrtc.kite.dao.SchemaMigrator;
+import org.webrtc.kite.dao.ScoreboardDao;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -30,6 +34,8 @@ import java.sql.SQLException;
 @WebListener
 public class AppContextListener implements ServletContextListener {
 
+  private static final int READER_COUNT = 8;
+
   /** Default constructor. */
   public AppContextListener() {
     // TODO Auto-generated constructor stub
@@ -44,10 +50,16 @@ public class AppContextListener implements ServletContextListener {
     String dbCompURL = ctx.getRealPath(("COMPABILITIES.db"));
 
     try {
-      DBConnectionManager connectionManager = new DBConnectionManager(dbURL);
+      DBConnectionPool connectionPool = new DBConnectionPool(dbURL, READER_COUNT);
+      new SchemaMigrator(connectionPool.getWriterConnection()).migrate();
+      BrowserIdCache.getInstance().load(connectionPool.getWriterConnection());
+      // The scoreboard depends on the browser list, which may have changed since the last start.
+      new ScoreboardDao(connectionPool.getWriterConnection()).rebuild();
       DBConnectionManager connectionManagerComp = new DBConnectionManager(dbCompURL);
-      ctx.setAttribute("DBConnection", connectionManager.getConnection());
+      ctx.setAttribute("DBConnectionPool", connectionPool);
       ctx.setAttribute("CompDBConnection", connectionManagerComp.getConnection());
+
+      DataCenterQueueManager.getInstance().initResultHandler(connectionPool);
     } catch (ClassNotFoundException e) {
       e.printStackTrace();
       return;
@@ -56,7 +68,6 @@ public class AppContextListener implements ServletContextListener {
       return;
     }
 
-    DataCenterQueueManager.getInstance().initResultHandler(dbURL);
     DataCenterQueueManager.getInstance().startManager();
   }
 
@@ -65,13 +76,9 @@ public class AppContextListener implements ServletContextListener {
     // FIXME: release tomcat JDBC driver resources
     DataCenterQueueManager.getInstance().stopManager();
 
-    Connection mainCon =
-        (Connection) servletContextEvent.getServletContext().getAttribute("DBConnection");
-    try {
-      mainCon.close();
-    } catch (SQLException e) {
-      e.printStackTrace();
-    }
+    DBConnectionPool connectionPool =
+        (DBConnectionPool) servletContextEvent.getServletContext().getAttribute("DBConnectionPool");
+    connectionPool.close();
 
     Connection subCon =
         (Connection) servletContextEvent.getServletContext().getAttribute("CompDBConnection");
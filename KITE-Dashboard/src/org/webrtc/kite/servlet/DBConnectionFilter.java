@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite.servlet;
+
+import org.webrtc.kite.dao.DBConnectionPool;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import java.io.IOException;
+
+/** Gives the database connection borrowed by a request, if any, back to the pool. */
+@WebFilter(urlPatterns = "/*", asyncSupported = true)
+public class DBConnectionFilter implements Filter {
+
+  private DBConnectionPool connectionPool;
+
+  /** @see Filter#init(FilterConfig) */
+  public void init(FilterConfig filterConfig) throws ServletException {
+    this.connectionPool =
+        (DBConnectionPool) filterConfig.getServletContext().getAttribute("DBConnectionPool");
+  }
+
+  /** @see Filter#doFilter(ServletRequest, ServletResponse, FilterChain) */
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      if (this.connectionPool != null) {
+        this.connectionPool.releaseReaderConnection();
+      }
+    }
+  }
+
+  /** @see Filter#destroy() */
+  public void destroy() {}
+}
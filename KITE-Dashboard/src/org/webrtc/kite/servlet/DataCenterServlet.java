@@ -20,43 +20,178 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.webrtc.kite.DataCenterQueueManager;
 
-import javax.json.Json;
-import javax.json.JsonException;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-@WebServlet("/datacenter")
+/**
+ * Receives the results posted by the engine.
+ *
+ * <p>The body is read without blocking a request thread, in a slot of the DataCenterQueueManager
+ * reserved before reading it, and handed over to the manager. The response is 202 once the body
+ * is queued and parsed, 400 if it is not a json result or array of results, 429 when the queue is
+ * full, and 503 when the manager is not running or the body could not be read within
+ * ASYNC_TIMEOUT, the last two with a Retry-After header telling the engine when to post again.
+ */
+@WebServlet(value = "/datacenter", asyncSupported = true)
 public class DataCenterServlet extends HttpServlet {
 
   private static final long serialVersionUID = -6598067107001853086L;
   private static final Log log = LogFactory.getLog(DataCenterServlet.class);
 
+  private static final long ASYNC_TIMEOUT = 30 * 1000;
+  /* In seconds. */
+  private static final int RETRY_AFTER_FULL = 2;
+  private static final int RETRY_AFTER_UNAVAILABLE = 30;
+
   public DataCenterServlet() {
     super();
   }
 
-  /** @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response) */
+  /**
+   * Reads the posted result, or json array of results, asynchronously and queues it to be parsed
+   * and written.
+   *
+   * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
+   */
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
+    if (!DataCenterQueueManager.getInstance().isRunning()) {
+      reject(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, RETRY_AFTER_UNAVAILABLE);
+      return;
+    }
 
-    JsonReader jsonReader = null;
-    JsonObject jsonObject = null;
-    try {
-      jsonReader = Json.createReader(request.getReader());
-      jsonObject = jsonReader.readObject();
-      if (log.isDebugEnabled()) log.debug("in->jsonObject: " + jsonObject);
-      System.out.println("in->jsonObject: " + jsonObject);
-      DataCenterQueueManager.getInstance().queue.put(jsonObject);
-    } catch (JsonException | IllegalStateException | InterruptedException e) {
-      log.error("adding to queue", e);
-    } finally {
-      if (jsonReader != null) jsonReader.close();
+    if (!DataCenterQueueManager.getInstance().reserve()) {
+      log.warn("Result queue is full, asking the client to retry");
+      reject(response, 429, RETRY_AFTER_FULL);
+      return;
     }
+
+    final AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(ASYNC_TIMEOUT);
+    // Set by whichever of the read, its timeout or an error answers the request first.
+    final AtomicBoolean answered = new AtomicBoolean();
+    asyncContext.addListener(
+        new AsyncListener() {
+          @Override
+          public void onTimeout(AsyncEvent event) throws IOException {
+            if (answered.compareAndSet(false, true)) {
+              log.warn("Timed out reading result, asking the client to retry");
+              this.giveUp(event);
+            }
+          }
+
+          @Override
+          public void onError(AsyncEvent event) throws IOException {
+            if (answered.compareAndSet(false, true)) {
+              log.error("reading result", event.getThrowable());
+              this.giveUp(event);
+            }
+          }
+
+          @Override
+          public void onComplete(AsyncEvent event) throws IOException {}
+
+          @Override
+          public void onStartAsync(AsyncEvent event) throws IOException {}
+
+          /**
+           * Gives back the slot reserved for the body and asks the client to post again.
+           *
+           * @param event the event of the async context.
+           */
+          private void giveUp(AsyncEvent event) {
+            DataCenterQueueManager.getInstance().release();
+            reject(
+                (HttpServletResponse) event.getAsyncContext().getResponse(),
+                HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                RETRY_AFTER_UNAVAILABLE);
+            event.getAsyncContext().complete();
+          }
+        });
+    final ServletInputStream input = request.getInputStream();
+    input.setReadListener(
+        new ReadListener() {
+          private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+          private final byte[] buffer = new byte[8192];
+
+          @Override
+          public void onDataAvailable() throws IOException {
+            int read;
+            while (input.isReady() && (read = input.read(this.buffer)) != -1) {
+              this.body.write(this.buffer, 0, read);
+            }
+          }
+
+          @Override
+          public void onAllDataRead() throws IOException {
+            if (!answered.compareAndSet(false, true)) {
+              // The client has already been told to post again.
+              return;
+            }
+            String jsonString = new String(this.body.toByteArray(), StandardCharsets.UTF_8);
+            if (log.isDebugEnabled()) log.debug("in->body: " + jsonString);
+            final HttpServletResponse response =
+                (HttpServletResponse) asyncContext.getResponse();
+            boolean queued =
+                DataCenterQueueManager.getInstance()
+                    .offer(
+                        jsonString,
+                        new DataCenterQueueManager.ParseListener() {
+                          @Override
+                          public void onParsed() {
+                            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                            asyncContext.complete();
+                          }
+
+                          @Override
+                          public void onMalformed(RuntimeException e) {
+                            log.warn("Rejecting a malformed result: " + e.getMessage());
+                            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                            asyncContext.complete();
+                          }
+                        });
+            if (!queued) {
+              log.warn("Result queue is full, asking the client to retry");
+              reject(response, 429, RETRY_AFTER_FULL);
+              asyncContext.complete();
+            }
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            if (!answered.compareAndSet(false, true)) {
+              return;
+            }
+            log.error("reading result", throwable);
+            DataCenterQueueManager.getInstance().release();
+            ((HttpServletResponse) asyncContext.getResponse())
+                .setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            asyncContext.complete();
+          }
+        });
+  }
+
+  /**
+   * Sets a status asking the client to post again later.
+   *
+   * @param response the response.
+   * @param status the status code.
+   * @param retryAfter delay in seconds before the client should post again.
+   */
+  private static void reject(HttpServletResponse response, int status, int retryAfter) {
+    response.setStatus(status);
+    response.setHeader("Retry-After", String.valueOf(retryAfter));
   }
 }
@@ -18,6 +18,7 @@ package org.webrtc.kite.servlet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.webrtc.kite.ResponseCache;
 import org.webrtc.kite.Utility;
 import org.webrtc.kite.dao.ExecutionDao;
 import org.webrtc.kite.dao.ResultDao;
@@ -67,6 +68,15 @@ public class GetOverAllStatServlet extends HttpServlet {
 
     String testId = request.getParameter("testId");
 
+    ResponseCache.Entry entry = ResponseCache.getInstance().get(request);
+    if (entry != null) {
+      if (!ResponseCache.sendNotModified(request, response, entry)) {
+        response.getWriter().print(entry.getBody());
+      }
+      return;
+    }
+    long version = ResponseCache.getInstance().getVersion();
+    String body = null;
     if (testId != null) {
       int success = 0;
       int failed = 0;
@@ -95,12 +105,12 @@ public class GetOverAllStatServlet extends HttpServlet {
               break;
           }
         }
-        response.getWriter().print(Json.createArrayBuilder()
+        body = Json.createArrayBuilder()
             .add(success)
             .add(failed)
             .add(error)
             .add(pending)
-            .build().toString());
+            .build().toString();
       } catch (SQLException e) {
         e.printStackTrace();
       }
@@ -147,11 +157,17 @@ public class GetOverAllStatServlet extends HttpServlet {
               .add("stats", Json.createArrayBuilder().add(success).add(failed).add(error));
           jsonArrayBuilder.add(jsonObjectBuilder);
         }
-        response.getWriter().print(jsonArrayBuilder.build().toString());
+        body = jsonArrayBuilder.build().toString();
 
       } catch (SQLException e) {
         e.printStackTrace();
       }
     }
+    if (body != null) {
+      entry = ResponseCache.getInstance().put(request, version, body, null, testName);
+      if (!ResponseCache.sendNotModified(request, response, entry)) {
+        response.getWriter().print(body);
+      }
+    }
   }
 }
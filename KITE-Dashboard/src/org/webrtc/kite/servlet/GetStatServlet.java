@@ -16,8 +16,11 @@
 
 package org.webrtc.kite.servlet;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.webrtc.kite.ResponseCache;
 import org.webrtc.kite.Utility;
-import org.webrtc.kite.dao.BrowserDao;
+import org.webrtc.kite.dao.BrowserIdCache;
 import org.webrtc.kite.dao.StatsDao;
 import org.webrtc.kite.exception.KiteNoKeyException;
 import org.webrtc.kite.exception.KiteSQLException;
@@ -26,13 +29,12 @@ import org.webrtc.kite.pojo.Stats.Stats;
 
 import javax.json.Json;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.PrintWriter;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -42,6 +44,7 @@ import java.util.Set;
 @WebServlet("/getstat")
 public class GetStatServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
+  private static final Log log = LogFactory.getLog(GetStatServlet.class);
 
   /** @see HttpServlet#HttpServlet() */
   public GetStatServlet() {
@@ -51,6 +54,17 @@ public class GetStatServlet extends HttpServlet {
   /** @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response) */
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws  IOException {
+    ResponseCache.Entry entry = ResponseCache.getInstance().get(request);
+    if (entry != null) {
+      if (ResponseCache.sendNotModified(request, response, entry)) {
+        return;
+      }
+      if (entry.getBody() != null) {
+        response.getWriter().print(entry.getBody());
+        return;
+      }
+    }
+    long version = ResponseCache.getInstance().getVersion();
     String overtime = request.getParameter("overtime");
     if (overtime.equalsIgnoreCase("no")) {
       String tableName = request.getParameter("name");
@@ -87,67 +101,128 @@ public class GetStatServlet extends HttpServlet {
         throw new KiteSQLException(e.getLocalizedMessage());
       }
       statJsonResponse += "}";
-      response.getWriter().print(statJsonResponse);
+      entry =
+          ResponseCache.getInstance().put(request, version, statJsonResponse, null, tableName);
+      if (!ResponseCache.sendNotModified(request, response, entry)) {
+        response.getWriter().print(statJsonResponse);
+      }
     } else {
       String testName = request.getParameter("test").trim();
       String caller = request.getParameter("caller").trim();
       String callee = request.getParameter("callee").trim();
+      long since = getParameter(request, "since", 0);
+      int limit = (int) getParameter(request, "limit", -1);
+      int summary = (int) getParameter(request, "summary", 0);
       System.out.println("Requesting: " + testName + " for " + caller + " & " + callee);
-      List<Stats> statsList = new ArrayList<>();
-      String statJsonResponse = "{";
-      String dateLabels = "\"run_dates\": [";
-      String callerData = "\"caller\": [";
-      String calleeData = "\"callee\": [";
+      // The stats of a pair of browsers are looked up across all the tests. The response is
+      // streamed, only its validators are cached.
+      entry =
+          ResponseCache.getInstance().put(request, version, null, null, ResponseCache.ANY_TEST);
+      if (ResponseCache.sendNotModified(request, response, entry)) {
+        return;
+      }
+      String browsers;
+      StatsDao statsDao;
+      int[] range;
       try {
-        String browsers = Json.createArrayBuilder()
+        browsers = Json.createArrayBuilder()
             .add(getBrowserID(caller))
             .add(getBrowserID(callee)).build().toString();
+        statsDao = new StatsDao(Utility.getDBConnection(this.getServletContext()));
+        range = statsDao.getStatRange(browsers, since, limit);
+      } catch (SQLException e) {
+        log.error("looking up the stats of " + caller + " & " + callee, e);
+        ResponseCache.getInstance().remove(request);
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        return;
+      }
+      // In summary mode, at most 'summary' runs evenly spread over the range.
+      int step = range == null || summary <= 0 ? 1 : (range[2] + summary - 1) / summary;
 
-        List<String> statStringList =
-            new StatsDao(Utility.getDBConnection(this.getServletContext()))
-                .getStatByBrowsers(browsers);
-
-        for (String statStr : statStringList) {
-          if (statStr != null) {
-            JsonReader jsonReader = Json.createReader(new StringReader(statStr));
-            JsonObject statArrayJson = jsonReader.readObject();
-            jsonReader.close();
-
-            Set<String> browserList = statArrayJson.keySet();
-            for (String browser : browserList) {
-              Stats browserStat = new Stats(browser, statArrayJson.getJsonObject(browser));
-              statsList.add(browserStat);
-            }
-
-            for (Stats browser : statsList) {
-              if (browser.isCaller()) {
-                callerData += browser.getJsonData();
-                callerData += ",";
-              } else {
-                calleeData += browser.getJsonData();
-                calleeData += ",";
-              }
-            }
-          } else {
-            callerData += "{},";
-            calleeData += "{},";
-          }
+      final PrintWriter writer = response.getWriter();
+      try {
+        writer.print("{\"run_dates\": [");
+        if (range != null) {
+          statsDao.readStatByBrowsers(browsers, since, range, step, null,
+              new StatsDao.StatHandler() {
+                private String separator = "";
+
+                @Override
+                public void handle(long startTime, JsonObject stats) {
+                  writer.print(separator);
+                  writer.print(startTime);
+                  separator = ",";
+                }
+              });
         }
+        writer.print("],\"caller\": [");
+        if (range != null) {
+          statsDao.readStatByBrowsers(
+              browsers, since, range, step, Boolean.TRUE, new StatWriter(writer));
+        }
+        writer.print("],\"callee\": [");
+        if (range != null) {
+          statsDao.readStatByBrowsers(
+              browsers, since, range, step, Boolean.FALSE, new StatWriter(writer));
+        }
+        writer.print("]}");
       } catch (SQLException e) {
-        e.printStackTrace();
+        // Unless part of the body has been sent already, answer an error, not a truncated body.
+        log.error("reading the stats of " + caller + " & " + callee, e);
+        ResponseCache.getInstance().remove(request);
+        if (!response.isCommitted()) {
+          response.reset();
+          response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
       }
-      if (callerData.substring(callerData.length() - 1).equalsIgnoreCase(","))
-        callerData = callerData.substring(0, callerData.length() - 1);
-      if (calleeData.substring(calleeData.length() - 1).equalsIgnoreCase(","))
-        calleeData = calleeData.substring(0, calleeData.length() - 1);
-      if (dateLabels.substring(dateLabels.length() - 1).equalsIgnoreCase(","))
-        dateLabels = dateLabels.substring(0, dateLabels.length() - 1);
-      dateLabels += "]";
-      callerData += "]";
-      calleeData += "]";
-      statJsonResponse += dateLabels + "," + callerData + "," + calleeData;
-      statJsonResponse += "}";
-      response.getWriter().print(statJsonResponse);
+    }
+  }
+
+  /**
+   * Reads a numeric parameter.
+   *
+   * @param request the request.
+   * @param name name of the parameter.
+   * @param defaultValue value of the parameter when absent or not a number.
+   */
+  private static long getParameter(HttpServletRequest request, String name, long defaultValue) {
+    String value = request.getParameter(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /** Writes the caller's or the callee's stats of every run as they are read. */
+  private static class StatWriter implements StatsDao.StatHandler {
+
+    private final PrintWriter writer;
+    private String separator = "";
+
+    private StatWriter(PrintWriter writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void handle(long startTime, JsonObject statArrayJson) {
+      if (statArrayJson == null) {
+        this.write("{}");
+        return;
+      }
+      // Only the stats of the browser read are there.
+      for (String browser : statArrayJson.keySet()) {
+        this.write(new Stats(browser, statArrayJson.getJsonObject(browser)).getJsonData());
+      }
+    }
+
+    private void write(String data) {
+      this.writer.print(this.separator);
+      this.writer.print(data);
+      this.separator = ",";
     }
   }
 
@@ -157,7 +232,7 @@ public class GetStatServlet extends HttpServlet {
     String version = browser.split("_")[1].trim();
     String platform = browser.split("_")[2].trim();
     Browser tmp = new Browser(name, version, platform);
-    res = new BrowserDao(Utility.getDBConnection(this.getServletContext())).getId(tmp);
+    res = BrowserIdCache.getInstance().getId(tmp);
     return res;
   }
 
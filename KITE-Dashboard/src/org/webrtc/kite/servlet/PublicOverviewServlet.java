@@ -19,8 +19,9 @@ package org.webrtc.kite.servlet;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.webrtc.kite.BrowserMapping;
+import org.webrtc.kite.ResponseCache;
 import org.webrtc.kite.Utility;
-import org.webrtc.kite.dao.BrowserDao;
+import org.webrtc.kite.dao.BrowserIdCache;
 import org.webrtc.kite.dao.ResultDao;
 import org.webrtc.kite.dao.TestDao;
 import org.webrtc.kite.exception.KiteSQLException;
@@ -65,6 +66,15 @@ public class PublicOverviewServlet extends HttpServlet {
     }
     List<Test> listOfDistinctTest;
 
+    ResponseCache.Entry entry = ResponseCache.getInstance().get(request);
+    if (entry != null) {
+      if (!ResponseCache.sendNotModified(request, response, entry)) {
+        entry.setAttributes(request);
+        request.getRequestDispatcher("public_overview.vm").forward(request, response);
+      }
+      return;
+    }
+    long version = ResponseCache.getInstance().getVersion();
     try {
       listOfDistinctTest =
           new TestDao(Utility.getDBConnection(this.getServletContext())).getDistinctTestList();
@@ -77,9 +87,7 @@ public class PublicOverviewServlet extends HttpServlet {
       JsonArrayBuilder browserListJson = Json.createArrayBuilder();
       for (Browser browser : browserList) {
         if (BrowserMapping.StableList.contains(browser.getVersion())) {
-          int browserId =
-                  new BrowserDao(Utility.getDBConnection(this.getServletContext()))
-                          .getId(browser);
+          int browserId = BrowserIdCache.getInstance().getId(browser);
           browser.setId(browserId);
           stableBrowserList.add(browser);
           browserListJson.add(browser.getJsonObjectBuilder());
@@ -134,6 +142,19 @@ public class PublicOverviewServlet extends HttpServlet {
       e.printStackTrace();
       throw new KiteSQLException(e.getLocalizedMessage());
     }
+    entry =
+        ResponseCache.getInstance()
+            .put(
+                request,
+                version,
+                null,
+                ResponseCache.getAttributes(
+                    request, "listOfTest", "test", "jsonBrowserList", "resultJson"),
+                testName,
+                ResponseCache.TEST_LIST);
+    if (ResponseCache.sendNotModified(request, response, entry)) {
+      return;
+    }
     // get UI
     if (log.isDebugEnabled()) log.debug("Displaying: public_overview.vm");
     RequestDispatcher requestDispatcher = request.getRequestDispatcher("public_overview.vm");
@@ -19,10 +19,12 @@ package org.webrtc.kite.servlet;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.webrtc.kite.BrowserMapping;
+import org.webrtc.kite.ResponseCache;
 import org.webrtc.kite.TestMapping;
 import org.webrtc.kite.Utility;
-import org.webrtc.kite.dao.BrowserDao;
+import org.webrtc.kite.dao.BrowserIdCache;
 import org.webrtc.kite.dao.ResultDao;
+import org.webrtc.kite.dao.ScoreboardDao;
 import org.webrtc.kite.dao.TestDao;
 import org.webrtc.kite.dao.WPTDao;
 import org.webrtc.kite.exception.KiteSQLException;
@@ -40,16 +42,28 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-/** Servlet implementation class DashboardServlet */
+/**
+ * Servlet implementation class DashboardServlet
+ *
+ * <p>The scores are read from the SCOREBOARD table, which the ingestion keeps up to date. The
+ * number of tuples of the browser list containing each browser, the total of the non-WPT tests,
+ * only depends on the tuple size and is counted once.
+ */
 @WebServlet("/score")
 public class ReadyYetServlet extends HttpServlet {
 
   private static final long serialVersionUID = 3456562049892798394L;
   private static final Log log = LogFactory.getLog(ReadyYetServlet.class);
 
+  /* Tuple size -> number of tuples of the browser list containing each browser. */
+  private static final Map<Integer, Map<Browser, Integer>> tupleCountMap =
+      new ConcurrentHashMap<>();
+
   /** @see HttpServlet#HttpServlet() */
   public ReadyYetServlet() {
     super();
@@ -62,6 +76,16 @@ public class ReadyYetServlet extends HttpServlet {
     String testCategory = request.getParameter("testCategory");
     String test = request.getParameter("test");
 
+    ResponseCache.Entry entry = ResponseCache.getInstance().get(request);
+    if (entry != null) {
+      if (!ResponseCache.sendNotModified(request, response, entry)) {
+        entry.setAttributes(request);
+        request.getRequestDispatcher("score.vm").forward(request, response);
+      }
+      return;
+    }
+    long version = ResponseCache.getInstance().getVersion();
+
     List<Test> listOfDistinctTest;
     try {
       listOfDistinctTest =
@@ -73,201 +97,71 @@ public class ReadyYetServlet extends HttpServlet {
             new WPTDao(Utility.getDBConnection(this.getServletContext())).getWPTList();
         List<String> OtherTestList =
             new TestDao(Utility.getDBConnection(this.getServletContext())).getNonWPTList();
+        Map<Integer, Map<String, List<Integer>>> scoreboard =
+            new ScoreboardDao(Utility.getDBConnection(this.getServletContext())).getScoreboard();
+        Map<String, Integer> tupleSizeMap = new HashMap<>();
+        Map<String, String> existingTestMap = new HashMap<>();
+        if (testCategory != null) {
+          List<String> testList = TestMapping.TestMapping.get(testCategory);
+          for (String originalTestName : testList) {
+            existingTestMap.put(
+                originalTestName,
+                new WPTDao(Utility.getDBConnection(this.getServletContext()))
+                    .testExist(originalTestName));
+          }
+        }
         for (Browser browser : BrowserMapping.BrowserList) {
           JsonObjectBuilder browserScore = Json.createObjectBuilder();
-          // Map<String, JsonArrayBuilder> scoreArrayMap = new HashMap<>();
           Map<String, List<Integer>> scoreArrayMap = new HashMap<>();
-          int browserId =
-              new BrowserDao(Utility.getDBConnection(this.getServletContext())).getId(browser);
+          int browserId = BrowserIdCache.getInstance().getId(browser);
           if (browserId != -1) {
+            Map<String, List<Integer>> browserBoard = scoreboard.get(browserId);
+            if (browserBoard == null) {
+              browserBoard = new HashMap<>();
+            }
             if (testCategory == null) {
               // WPT first
               for (String testName : WPTList) {
-                JsonObject result =
-                    new WPTDao(Utility.getDBConnection(this.getServletContext()))
-                        .getLatestTestResultByBrowser(testName, "[" + browserId + "]");
+                List<Integer> result = browserBoard.get(testName);
                 testName = testName.split("WPT_")[1].replaceAll("_", ".");
                 if (result != null) {
                   String category = TestMapping.TestCategoryMapping.get(testName);
-                  if (!scoreArrayMap.keySet().contains(category)) {
-                    List<Integer> scoreList = new ArrayList<>();
-                    scoreList.add(0);
-                    scoreList.add(0);
-                    // scoreArrayMap.put(category, Json.createArrayBuilder());
-                    scoreArrayMap.put(category, scoreList);
-                  }
-
-                  List<Integer> scoreList = scoreArrayMap.get(category);
-                  scoreList.set(0, scoreList.get(0) + result.getInt("total"));
-                  scoreList.set(1, scoreList.get(1) + result.getInt("passed"));
-                  // browserScore.add(testName, result);
+                  addScore(scoreArrayMap, category, result.get(0), result.get(1));
                 }
               }
 
               // Other Tests
               for (String testName : OtherTestList) {
-                int tupleSize =
-                    new TestDao(Utility.getDBConnection(this.getServletContext()))
-                        .getTupleSizeTestName(testName);
-                JsonObjectBuilder jsonObjectBuilder = Json.createObjectBuilder();
-                jsonObjectBuilder.add("total", 0);
-                jsonObjectBuilder.add("passed", 0);
-                JsonObject result = null;
+                int tupleSize = this.getTupleSize(tupleSizeMap, testName);
                 int total = 0;
                 int passed = 0;
                 if (tupleSize != -1) {
-                  if (tupleSize == 1) {
-                    String resultString =
-                        new ResultDao(Utility.getDBConnection(this.getServletContext()))
-                            .getLatestResultByBrowser(testName, "[" + browserId + "]");
-                    if (resultString != null) {
-                      if (resultString.equalsIgnoreCase("SUCCESSFUL")) {
-                        passed++;
-                      }
-                    }
-                    total++;
-                  } else {
-                    for (List<Browser> browsers :
-                        Utility.buildTuples(BrowserMapping.BrowserList, tupleSize)) {
-                      if (browsers.contains(browser)) {
-                        String resultString = null;
-                        JsonArrayBuilder idArray = Json.createArrayBuilder();
-                        //browsers.remove(browser);
-                        for (Browser browser1 : browsers) {
-                          int browser1Id =
-                                  new BrowserDao(Utility.getDBConnection(this.getServletContext()))
-                                          .getId(browser1);
-                          if (browser1Id != -1) {
-                            idArray.add(browser1Id);
-                          }
-                        }
-                        JsonArray ids = idArray.build();
-                        if (ids.size() == browsers.size()) {
-                          resultString =
-                                  new ResultDao(Utility.getDBConnection(this.getServletContext()))
-                                          .getLatestResultByBrowser(testName, ids.toString());
-                        }
-                        if (resultString != null) {
-                          if (resultString.equalsIgnoreCase("SUCCESSFUL")) {
-                            passed++;
-                          }
-                        }
-                        total++;
-                      }
-                    }
-                  }
-                  jsonObjectBuilder.add("total", total).add("passed", passed);
-                }
-                result = jsonObjectBuilder.build();
-                if (result != null) {
-                  String category = TestMapping.TestCategoryMapping.get(testName);
-                  if (!scoreArrayMap.keySet().contains(category)) {
-                    List<Integer> scoreList = new ArrayList<>();
-                    scoreList.add(0);
-                    scoreList.add(0);
-                    // scoreArrayMap.put(category, Json.createArrayBuilder());
-                    scoreArrayMap.put(category, scoreList);
-                  }
-                  List<Integer> scoreList = scoreArrayMap.get(category);
-                  scoreList.set(0, scoreList.get(0) + result.getInt("total"));
-                  scoreList.set(1, scoreList.get(1) + result.getInt("passed"));
-                  // browserScore.add(testName, result);
+                  total = countTuples(browser, tupleSize);
+                  passed = getPassed(scoreboard, browserId, testName);
                 }
+                String category = TestMapping.TestCategoryMapping.get(testName);
+                addScore(scoreArrayMap, category, total, passed);
               }
             } else {
               // layer 2
               List<String> testList = TestMapping.TestMapping.get(testCategory);
               for (String originalTestName : testList) {
-                String testName =
-                    new WPTDao(Utility.getDBConnection(this.getServletContext()))
-                        .testExist(originalTestName);
+                String testName = existingTestMap.get(originalTestName);
                 if (testName != null) {
                   if (testName.startsWith("WPT")) {
-                    JsonObject result =
-                        new WPTDao(Utility.getDBConnection(this.getServletContext()))
-                            .getLatestTestResultByBrowser(testName, "[" + browserId + "]");
+                    List<Integer> result = browserBoard.get(testName);
                     if (result != null) {
-                      if (!scoreArrayMap.keySet().contains(originalTestName)) {
-                        List<Integer> scoreList = new ArrayList<>();
-                        scoreList.add(0);
-                        scoreList.add(0);
-                        // scoreArrayMap.put(category, Json.createArrayBuilder());
-                        scoreArrayMap.put(originalTestName, scoreList);
-                      }
-                      List<Integer> scoreList = scoreArrayMap.get(originalTestName);
-                      scoreList.set(0, scoreList.get(0) + result.getInt("total"));
-                      scoreList.set(1, scoreList.get(1) + result.getInt("passed"));
-                      // browserScore.add(testName, result);
+                      addScore(scoreArrayMap, originalTestName, result.get(0), result.get(1));
                     }
                   } else {
-                    int tupleSize =
-                        new TestDao(Utility.getDBConnection(this.getServletContext()))
-                            .getTupleSizeTestName(testName);
-                    JsonObjectBuilder jsonObjectBuilder = Json.createObjectBuilder();
-                    jsonObjectBuilder.add("total", 0);
-                    jsonObjectBuilder.add("passed", 0);
-                    JsonObject result = null;
+                    int tupleSize = this.getTupleSize(tupleSizeMap, testName);
+                    int total = 0;
+                    int passed = 0;
                     if (tupleSize != -1) {
-                      if (tupleSize == 1) {
-                        jsonObjectBuilder.add("total", 1);
-                        String resultString =
-                            new ResultDao(Utility.getDBConnection(this.getServletContext()))
-                                .getLatestResultByBrowser(testName, "[" + browserId + "]");
-                        if (resultString != null) {
-                          if (resultString.equalsIgnoreCase("SUCCESSFUL")) {
-                            jsonObjectBuilder.add("passed", 1);
-                          } else {
-                            jsonObjectBuilder.add("passed", 0);
-                          }
-                        }
-                      } else {
-                        int total = 0;
-                        int passed = 0;
-                        for (List<Browser> browsers :
-                            Utility.buildTuples(BrowserMapping.BrowserList, tupleSize)) {
-                          if (browsers.contains(browser)) {
-                            String resultString = null;
-                            JsonArrayBuilder idArray = Json.createArrayBuilder();
-                            //browsers.remove(browser);
-                            for (Browser browser1 : browsers) {
-                              int browser1Id =
-                                      new BrowserDao(Utility.getDBConnection(this.getServletContext()))
-                                              .getId(browser1);
-                              if (browser1Id != -1) {
-                                idArray.add(browser1Id);
-                              }
-                            }
-                            JsonArray ids = idArray.build();
-                            if (ids.size() == browsers.size()) {
-                              resultString =
-                                      new ResultDao(Utility.getDBConnection(this.getServletContext()))
-                                              .getLatestResultByBrowser(testName, ids.toString());
-                            }
-                            if (resultString != null) {
-                              if (resultString.equalsIgnoreCase("SUCCESSFUL")) {
-                                passed++;
-                              }
-                            }
-                            total++;
-                          }
-                        }
-                        jsonObjectBuilder.add("total", total).add("passed", passed);
-                      }
-                    }
-                    result = jsonObjectBuilder.build();
-                    if (result != null) {
-                      if (!scoreArrayMap.keySet().contains(originalTestName)) {
-                        List<Integer> scoreList = new ArrayList<>();
-                        scoreList.add(0);
-                        scoreList.add(0);
-                        // scoreArrayMap.put(category, Json.createArrayBuilder());
-                        scoreArrayMap.put(originalTestName, scoreList);
-                      }
-                      List<Integer> scoreList = scoreArrayMap.get(originalTestName);
-                      scoreList.set(0, scoreList.get(0) + result.getInt("total"));
-                      scoreList.set(1, scoreList.get(1) + result.getInt("passed"));
-                      // browserScore.add(testName, result);
+                      total = countTuples(browser, tupleSize);
+                      passed = getPassed(scoreboard, browserId, testName);
                     }
+                    addScore(scoreArrayMap, originalTestName, total, passed);
                   }
                 } else {
                   browserScore.add(
@@ -329,9 +223,10 @@ public class ReadyYetServlet extends HttpServlet {
         String testName =
           new WPTDao(Utility.getDBConnection(this.getServletContext()))
               .testExist(test);
+        Map<Integer, Map<String, List<Integer>>> scoreboard =
+            new ScoreboardDao(Utility.getDBConnection(this.getServletContext())).getScoreboard();
         for (Browser browser : BrowserMapping.BrowserList) {
-          int browserId =
-              new BrowserDao(Utility.getDBConnection(this.getServletContext())).getId(browser);
+          int browserId = BrowserIdCache.getInstance().getId(browser);
           if (browserId != -1 && testName!=null) {
             JsonObject result =null;
             if (testName.startsWith("WPT")) {
@@ -360,36 +255,8 @@ public class ReadyYetServlet extends HttpServlet {
                   resultObject.add("tests", Json.createObjectBuilder().add(test,jsonObjectBuilder));
                   score.add(browser.getDetailedName(), Json.createObjectBuilder().add(test,resultObject) );
                 } else {
-                  int total = 0;
-                  int passed = 0;
-                  for (List<Browser> browsers :
-                      Utility.buildTuples(BrowserMapping.BrowserList, tupleSize)) {
-                    if (browsers.contains(browser)) {
-                      String resultString = null;
-                      JsonArrayBuilder idArray = Json.createArrayBuilder();
-                      //browsers.remove(browser);
-                      for (Browser browser1 : browsers) {
-                        int browser1Id =
-                            new BrowserDao(Utility.getDBConnection(this.getServletContext()))
-                                .getId(browser1);
-                        if (browser1Id != -1) {
-                          idArray.add(browser1Id);
-                        }
-                      }
-                      JsonArray ids = idArray.build();
-                      if (ids.size() == browsers.size()) {
-                        resultString =
-                                new ResultDao(Utility.getDBConnection(this.getServletContext()))
-                                        .getLatestResultByBrowser(testName, ids.toString());
-                      }
-                      if (resultString != null) {
-                        if (resultString.equalsIgnoreCase("SUCCESSFUL")) {
-                          passed++;
-                        }
-                      }
-                      total++;
-                    }
-                  }
+                  int total = countTuples(browser, tupleSize);
+                  int passed = getPassed(scoreboard, browserId, testName);
                   jsonObjectBuilder.add(test, passed+ "/" + total);
                   JsonObjectBuilder resultObject = Json.createObjectBuilder();
                   resultObject.add("tests", Json.createObjectBuilder().add(test,jsonObjectBuilder));
@@ -411,8 +278,101 @@ public class ReadyYetServlet extends HttpServlet {
       throw new KiteSQLException(e.getLocalizedMessage());
     }
 
+    // The scores depend on every test.
+    entry =
+        ResponseCache.getInstance()
+            .put(
+                request,
+                version,
+                null,
+                ResponseCache.getAttributes(request, "listOfTest", "scoreJson"),
+                ResponseCache.ANY_TEST);
+    if (ResponseCache.sendNotModified(request, response, entry)) {
+      return;
+    }
     if (log.isDebugEnabled()) log.debug("Displaying: score.vm");
     RequestDispatcher requestDispatcher = request.getRequestDispatcher("score.vm");
     requestDispatcher.forward(request, response);
   }
+
+  /**
+   * Returns the number of tuples of the browser list containing a browser, which is 1 for single
+   * browser tests.
+   *
+   * @param browser a browser of the browser list.
+   * @param tupleSize size of the tuples.
+   */
+  private static int countTuples(Browser browser, int tupleSize) {
+    if (tupleSize == 1) {
+      return 1;
+    }
+    Map<Browser, Integer> countMap = tupleCountMap.get(tupleSize);
+    if (countMap == null) {
+      countMap = new HashMap<>();
+      for (List<Browser> browsers : Utility.buildTuples(BrowserMapping.BrowserList, tupleSize)) {
+        for (Browser browser1 : new HashSet<>(browsers)) {
+          Integer count = countMap.get(browser1);
+          countMap.put(browser1, count == null ? 1 : count + 1);
+        }
+      }
+      tupleCountMap.put(tupleSize, countMap);
+    }
+    Integer count = countMap.get(browser);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Returns the number of tuples containing a browser whose latest result is SUCCESSFUL.
+   *
+   * @param scoreboard the scoreboard.
+   * @param browserId id of the browser.
+   * @param testName name of the test.
+   */
+  private static int getPassed(
+      Map<Integer, Map<String, List<Integer>>> scoreboard, int browserId, String testName) {
+    Map<String, List<Integer>> browserBoard = scoreboard.get(browserId);
+    if (browserBoard == null || browserBoard.get(testName) == null) {
+      return 0;
+    }
+    return browserBoard.get(testName).get(1);
+  }
+
+  /**
+   * Returns the tuple size of a test, reading it from the database the first time.
+   *
+   * @param tupleSizeMap tuple sizes already read.
+   * @param testName name of the test.
+   */
+  private int getTupleSize(Map<String, Integer> tupleSizeMap, String testName)
+      throws SQLException {
+    Integer tupleSize = tupleSizeMap.get(testName);
+    if (tupleSize == null) {
+      tupleSize =
+          new TestDao(Utility.getDBConnection(this.getServletContext()))
+              .getTupleSizeTestName(testName);
+      tupleSizeMap.put(testName, tupleSize);
+    }
+    return tupleSize;
+  }
+
+  /**
+   * Adds a total and a passed count to the score of a category or a test.
+   *
+   * @param scoreArrayMap scores as [total, passed].
+   * @param key the category or the test.
+   * @param total number of results.
+   * @param passed number of successful results.
+   */
+  private static void addScore(
+      Map<String, List<Integer>> scoreArrayMap, String key, int total, int passed) {
+    if (!scoreArrayMap.keySet().contains(key)) {
+      List<Integer> scoreList = new ArrayList<>();
+      scoreList.add(0);
+      scoreList.add(0);
+      scoreArrayMap.put(key, scoreList);
+    }
+    List<Integer> scoreList = scoreArrayMap.get(key);
+    scoreList.set(0, scoreList.get(0) + total);
+    scoreList.set(1, scoreList.get(1) + passed);
+  }
 }
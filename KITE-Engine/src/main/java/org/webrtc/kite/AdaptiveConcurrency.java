@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Number of TestManagers a MatrixScheduler runs at the same time, adapted to what the grid can
+ * take with additive increase and multiplicative decrease.
+ * <p>
+ * The concurrency starts at its minimum and grows by one per successful execution until the grid
+ * is first overloaded, then by one per concurrency worth of successful executions. It is halved,
+ * never below its minimum, when an execution reports a grid error (a session that could not be
+ * started, or a WebDriverException such as a timeout while running the test) or starts its
+ * sessions more than LATENCY_TOLERANCE times slower than the baseline. The executions already
+ * running when the concurrency was cut were started under the former concurrency, so their errors
+ * do not cut it again.
+ */
+class AdaptiveConcurrency {
+
+  private static final Logger logger = Logger.getLogger(AdaptiveConcurrency.class.getName());
+
+  private static final double DECREASE_FACTOR = 0.5;
+  /* Ratio of the baseline latency above which the grid is considered overloaded. */
+  private static final double LATENCY_TOLERANCE = 2;
+  /* Session start latency that is never considered as an overload, in ms. */
+  private static final long LATENCY_FLOOR = 1000;
+  /* Weight of a session start latency when the baseline drifts up. */
+  private static final double BASELINE_ALPHA = 0.05;
+
+  private final String name;
+  private final int min;
+  private final int max;
+
+  private double limit;
+  private boolean slowStart = true;
+  private double baselineLatency = -1;
+  private long lastDecrease;
+  private int increases;
+  private int decreases;
+  /* Sum and number of the concurrencies seen since the grid was first overloaded. */
+  private double steadySum;
+  private int steadyCount;
+
+  /**
+   * Constructs a new AdaptiveConcurrency with the given name and bounds.
+   *
+   * @param name name used in the log messages.
+   * @param min  minimum and initial concurrency.
+   * @param max  maximum concurrency.
+   */
+  AdaptiveConcurrency(String name, int min, int max) {
+    this.name = name;
+    this.min = min;
+    this.max = max;
+    this.limit = min;
+  }
+
+  /**
+   * Gets the current concurrency.
+   *
+   * @return the number of TestManagers that may run at the same time.
+   */
+  synchronized int getLimit() {
+    return (int) this.limit;
+  }
+
+  /**
+   * Records the outcome of an execution and adapts the concurrency.
+   *
+   * @param startTime time the execution started at, in ms.
+   * @param latency   longest time taken to start a new session, in ms, or -1 if there was none.
+   * @param gridError true if the execution ran into a grid error.
+   */
+  synchronized void record(long startTime, long latency, boolean gridError) {
+    String reason = gridError ? "a grid error" : null;
+    if (latency >= 0) {
+      if (this.baselineLatency < 0 || latency < this.baselineLatency) {
+        this.baselineLatency = latency;
+      } else if (latency > LATENCY_FLOOR && latency > LATENCY_TOLERANCE * this.baselineLatency) {
+        reason = reason != null ? reason : "a session start of " + latency + " ms";
+      } else {
+        this.baselineLatency += BASELINE_ALPHA * (latency - this.baselineLatency);
+      }
+    }
+
+    int previous = (int) this.limit;
+    if (reason == null) {
+      this.limit = Math.min(this.max, this.limit + (this.slowStart ? 1 : 1 / this.limit));
+      if ((int) this.limit > previous) {
+        this.increases++;
+        if (logger.isDebugEnabled()) {
+          logger.debug(this.name + " :: concurrency increased to " + (int) this.limit);
+        }
+      }
+    } else if (startTime >= this.lastDecrease) {
+      this.limit = Math.max(this.min, this.limit * DECREASE_FACTOR);
+      this.slowStart = false;
+      this.lastDecrease = System.currentTimeMillis();
+      if ((int) this.limit < previous) {
+        this.decreases++;
+        logger.info(this.name + " :: concurrency decreased to " + (int) this.limit + " after "
+            + reason);
+      }
+    }
+    if (!this.slowStart) {
+      this.steadySum += (int) this.limit;
+      this.steadyCount++;
+    }
+  }
+
+  /**
+   * Logs the concurrency the execution has converged to, which is the average concurrency since
+   * the grid was first overloaded, as AIMD keeps oscillating around the capacity of the grid.
+   */
+  synchronized void logConvergence() {
+    if (logger.isInfoEnabled()) {
+      double converged = this.steadyCount > 0 ? this.steadySum / this.steadyCount : this.limit;
+      logger.info(String.format(
+          "%s :: concurrency converged to %.1f (between %d and %d, currently %d, %d increases, "
+              + "%d decreases, baseline session start %d ms)",
+          this.name, converged, this.min, this.max, (int) this.limit, this.increases,
+          this.decreases, Math.round(this.baselineLatency)));
+    }
+  }
+
+}
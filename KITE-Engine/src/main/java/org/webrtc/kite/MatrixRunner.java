@@ -18,15 +18,18 @@ package org.webrtc.kite;
 
 import org.apache.log4j.Logger;
 import org.webrtc.kite.config.Browser;
+import org.webrtc.kite.config.Configurator;
 import org.webrtc.kite.config.TestConf;
 
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 /**
@@ -36,22 +39,26 @@ public class MatrixRunner {
 
   private static final Logger logger = Logger.getLogger(MatrixRunner.class.getName());
 
+  private static final int OMITTED = 0;
+  private static final int MULTI_THREADED = 1;
+  private static final int SINGLE_THREADED = 2;
+
   private TestConf testConf;
   private String testName;
-  private List<List<Browser>> listOfBrowserList;
+  private Iterable<List<Browser>> listOfBrowserList;
   private int numberOfThread;
 
-  private List<List<Browser>> multiThreadedList = new ArrayList<List<Browser>>();
-  private List<List<Browser>> singleThreadedList = new ArrayList<List<Browser>>();
+  private int index;
 
   /**
-   * Constructs a new MatrixRunner with the given TestConf and List<List<Browser>>.
+   * Constructs a new MatrixRunner with the given TestConf and Iterable<List<Browser>>.
    *
    * @param testConf          TestConf
-   * @param listOfBrowserList a list of Browser List.
+   * @param listOfBrowserList a list of Browser List, iterated several times in the same order.
    * @param testName          name of the running test suite.
    */
-  public MatrixRunner(TestConf testConf, List<List<Browser>> listOfBrowserList, String testName) {
+  public MatrixRunner(TestConf testConf, Iterable<List<Browser>> listOfBrowserList,
+      String testName) {
     this.testConf = testConf;
     this.testName = testName;
     this.listOfBrowserList = listOfBrowserList;
@@ -59,94 +66,33 @@ public class MatrixRunner {
   }
 
   /**
-   * Returns a sublist from the given list of the type of objects specified by the objectClass.
-   *
-   * @param futureList  List of Future<Object>
-   * @param objectClass The class for the desired required object list.
-   * @return A sublist from the given list of the type of objects specified by the objectClass.
-   */
-  private List<?> getSubList(List<Future<Object>> futureList, Class<?> objectClass) {
-    List<Object> listOfObject = new ArrayList<Object>();
-    for (Future<Object> future : futureList) {
-      try {
-        Object object = future.get();
-        if (objectClass.isInstance(object))
-          listOfObject.add(object);
-      } catch (InterruptedException | ExecutionException e) {
-        logger.error(e);
-      }
-    }
-    return listOfObject;
-  }
-
-  /**
-   * Returns a sublist of the given futureList exclusive of the type of objects specified by the
-   * objectClass.
-   *
-   * @param futureList  List of Future<Object>
-   * @param objectClass The class for the undesired required object.
-   * @return A sublist of the given futureList exclusive of the type of objects specified by the
-   * objectClass.
-   */
-  private List<Future<Object>> getExclusiveSubList(List<Future<Object>> futureList,
-      Class<?> objectClass) {
-    List<Future<Object>> listOfFutureObjects = new ArrayList<Future<Object>>();
-    for (Future<Object> future : futureList) {
-      try {
-        Object object = future.get();
-        if (!objectClass.isInstance(object))
-          listOfFutureObjects.add(future);
-      } catch (InterruptedException | ExecutionException e) {
-        logger.error(e);
-      }
-    }
-    return listOfFutureObjects;
-  }
-
-  /**
-   * This method builds up singleThreadedList and multiThreadedList as follows:
+   * Sorts a test case as follows:
    * <p>
    * 1) Omit all the test cases having 2 identical mobile browsers. 2) Put all the test cases
-   * having microsoft edge or safari into singleThreadedList. 3) Put all the rest of test cases into
-   * multiThreadedList.
+   * having mobile browsers into the single threaded list. 3) Put all the rest of test cases into
+   * the multi threaded list.
+   *
+   * @param browserList the test case.
+   * @return SINGLE_THREADED, MULTI_THREADED or OMITTED.
    */
-  private void purgeListOfBrowserList() {
-    for (List<Browser> browserList : this.listOfBrowserList) {
-
-      // Omit test cases with two identical mobile clients in them.
-      int mobileCount = 0;
-      Set<Browser> set = new LinkedHashSet<Browser>();
-      for (Browser browser : browserList) {
-        if (browser.getMobile() != null || browser.getVersion().startsWith("fennec")) {
-          set.add(browser);
-          mobileCount++;
-        }
-      }
-
-      // Add all the test cases having mobile in single thread list.
-      if (mobileCount > 0) {
-        if (mobileCount == set.size())
-          this.singleThreadedList.add(browserList);
-        continue;
+  private static int sort(List<Browser> browserList) {
+    // Omit test cases with two identical mobile clients in them.
+    int mobileCount = 0;
+    Set<Browser> set = new LinkedHashSet<Browser>();
+    for (Browser browser : browserList) {
+      if (browser.getMobile() != null || browser.getVersion().startsWith("fennec")) {
+        set.add(browser);
+        mobileCount++;
       }
+    }
 
-      // Add all the test cases having MicrosoftEdge and safari in single thread list.
-      /*boolean jumpToOuterLoop = false;
-      for (Browser browser : browserList) {
-        String browserName = browser.getBrowserName();
-        if (browserName.equalsIgnoreCase("MicrosoftEdge") || browserName
-            .equalsIgnoreCase("safari")) {
-            this.singleThreadedList.add(browserList);
-          jumpToOuterLoop = true;
-          break;
-        }
-      }
-      if (jumpToOuterLoop) continue;*/
-
-      // Add the rest of the test cases in multi thread list.
-      this.multiThreadedList.add(browserList);
+    // Add all the test cases having mobile in single thread list.
+    if (mobileCount > 0) {
+      return mobileCount == set.size() ? SINGLE_THREADED : OMITTED;
     }
 
+    // Add the rest of the test cases in multi thread list.
+    return MULTI_THREADED;
   }
 
   /**
@@ -155,138 +101,191 @@ public class MatrixRunner {
    * The algorithm of the method is as follows: 1) Execute the first test. 2) Execute the multi
    * threaded list. 3) Execute the single threaded list. 4) Execute the last test.
    *
+   * <p>
+   * Each list is executed by a MatrixScheduler, which keeps all of its slots busy and requeues a
+   * TestManager asking for a retry as soon as it completes. The lists are never built: the test
+   * cases are counted first, then every list iterates the browser matrix again and hands its
+   * TestManagers out to the MatrixScheduler as they are needed.
+   *
    * @return List<Future < Object>>
-   * @throws InterruptedException if thread pool is interrupted while waiting, in which case
-   *                              unfinished tasks are cancelled
+   * @throws InterruptedException if interrupted while waiting, in which case unfinished tasks are
+   *                              cancelled
    * @throws ExecutionException   if the computation of the first or last thread threw an exception
    */
   public List<Future<Object>> run() throws InterruptedException, ExecutionException {
 
-    // Build single and multi threaded lists
-    this.purgeListOfBrowserList();
+    // Count the test cases of the single and multi threaded lists. A covering set is sent to the
+    // callback with the first test, as it cannot be rebuilt from the browser list.
+    int singleCount = 0, multiCount = 0;
+    JsonArrayBuilder tupleJsonArray = this.testConf.isCovering() ? Json.createArrayBuilder() : null;
+    for (List<Browser> browserList : this.listOfBrowserList) {
+      switch (sort(browserList)) {
+        case SINGLE_THREADED:
+          singleCount++;
+          break;
+        case MULTI_THREADED:
+          multiCount++;
+          break;
+        default:
+          continue;
+      }
+      if (tupleJsonArray != null) {
+        tupleJsonArray.add(Configurator.getInstance().getTupleJsonArray(browserList));
+      }
+    }
 
-    int totalTestCases = this.singleThreadedList.size() + this.multiThreadedList.size();
+    int totalTestCases = singleCount + multiCount;
     if (totalTestCases < 1)
       return null;
 
-    int index = 0;
-    TestManager firstTest = null, lastTest = null;
+    this.index = 0;
+
+    // The list the first and last tests are taken from, the first test being the last too if
+    // lastList is OMITTED.
+    int firstList, lastList;
+    if (singleCount > 1) {
+      firstList = SINGLE_THREADED;
+      lastList = SINGLE_THREADED;
+    } else if (multiCount > 1) {
+      firstList = MULTI_THREADED;
+      lastList = MULTI_THREADED;
+    } else if (singleCount == 1 && multiCount == 1) {
+      firstList = SINGLE_THREADED;
+      lastList = MULTI_THREADED;
+    } else {
+      firstList = singleCount == 1 ? SINGLE_THREADED : MULTI_THREADED;
+      lastList = OMITTED;
+    }
+
+    Iterator<List<Browser>> singleIterator = this.listIterator(SINGLE_THREADED);
+    Iterator<List<Browser>> multiIterator = this.listIterator(MULTI_THREADED);
 
-    // singleThreadedList and multiThreadedList manipulation
-    if (this.singleThreadedList.size() > 1) {
-      firstTest = new TestManager(this.testConf, this.singleThreadedList.get(0),
-          this.testConf.getRemoteTestIdentifier(index++));
-      lastTest = new TestManager(this.testConf,
-          this.singleThreadedList.get(this.singleThreadedList.size() - 1),
-          this.testConf.getRemoteTestIdentifier(totalTestCases - 1));
+    TestManager firstTest = new TestManager(this.testConf,
+        (firstList == SINGLE_THREADED ? singleIterator : multiIterator).next(),
+        this.testConf.getRemoteTestIdentifier(this.index++));
+    firstTest.setTotalTests(totalTestCases);
+    if (tupleJsonArray != null)
+      firstTest.setTupleJsonArray(tupleJsonArray.build());
+    if (lastList == OMITTED)
+      firstTest.setIsLastTest(true);
 
-      this.singleThreadedList.remove(0);
-      this.singleThreadedList.remove(this.singleThreadedList.size() - 1);
-    } else if (this.multiThreadedList.size() > 1) {
-      firstTest = new TestManager(this.testConf, this.multiThreadedList.get(0),
-          this.testConf.getRemoteTestIdentifier(index++));
-      lastTest = new TestManager(this.testConf,
-          this.multiThreadedList.get(this.multiThreadedList.size() - 1),
-          this.testConf.getRemoteTestIdentifier(totalTestCases - 1));
+    // Number of middle tests in each list
+    int singleMiddleCount = singleCount - (firstList == SINGLE_THREADED ? 1 : 0)
+        - (lastList == SINGLE_THREADED ? 1 : 0);
+    int multiMiddleCount = multiCount - (firstList == MULTI_THREADED ? 1 : 0)
+        - (lastList == MULTI_THREADED ? 1 : 0);
 
-      this.multiThreadedList.remove(0);
-      this.multiThreadedList.remove(this.multiThreadedList.size() - 1);
-    } else if (this.singleThreadedList.size() == 1 && this.multiThreadedList.size() == 1) {
-      firstTest = new TestManager(this.testConf, this.singleThreadedList.get(0),
-          this.testConf.getRemoteTestIdentifier(index++));
-      lastTest = new TestManager(this.testConf, this.multiThreadedList.get(0),
-          this.testConf.getRemoteTestIdentifier(totalTestCases - 1));
+    List<TestManager> testManagerList = new ArrayList<TestManager>();
+    List<Future<Object>> futureList = new ArrayList<Future<Object>>();
 
-      this.singleThreadedList.clear();
-      this.multiThreadedList.clear();
-    } else if (this.singleThreadedList.size() == 1) {
-      firstTest = new TestManager(this.testConf, this.singleThreadedList.get(0),
-          this.testConf.getRemoteTestIdentifier(index++));
-      firstTest.setIsLastTest(true);
+    MatrixScheduler singleScheduler = new MatrixScheduler(this.testName + " (single)", 1);
+    // Tuples of the single threaded list run on mobile devices, which cannot host a second session.
+    MatrixScheduler multiScheduler = new MatrixScheduler(this.testName + " (multi)",
+        this.testConf.getMinThreads(), this.testConf.getNoOfThreads(),
+        this.testConf.getPrelaunch());
 
-      this.singleThreadedList.clear();
-    } else if (this.multiThreadedList.size() == 1) {
-      firstTest = new TestManager(this.testConf, this.multiThreadedList.get(0),
-          this.testConf.getRemoteTestIdentifier(index++));
-      firstTest.setIsLastTest(true);
+    logger.info("Executing " + this.testConf + " for " + totalTestCases + " browser tuples ...");
 
-      this.multiThreadedList.clear();
-    }
+    // Execute the first test
+    testManagerList.add(firstTest);
+    futureList.addAll(singleScheduler.execute(testManagerList));
+    testManagerList.clear();
+
+    // Execute the middle tests in multithreaded mode
+    futureList.addAll(
+        multiScheduler.execute(this.testManagerIterator(multiIterator, multiMiddleCount)));
+
+    // Execute the middle tests in singlethreaded mode
+    futureList.addAll(
+        singleScheduler.execute(this.testManagerIterator(singleIterator, singleMiddleCount)));
 
-    // Set first and last tests
-    if (firstTest != null)
-      firstTest.setTotalTests(totalTestCases);
-    if (lastTest != null)
+    // Execute the last test
+    if (lastList != OMITTED) {
+      TestManager lastTest = new TestManager(this.testConf,
+          (lastList == SINGLE_THREADED ? singleIterator : multiIterator).next(),
+          this.testConf.getRemoteTestIdentifier(totalTestCases - 1));
       lastTest.setIsLastTest(true);
+      testManagerList.add(lastTest);
+      futureList.addAll(singleScheduler.execute(testManagerList));
+    }
 
-    List<TestManager> testManagerList = new ArrayList<TestManager>();
-    List<Future<Object>> futureList = null;
+    return futureList;
 
-    ExecutorService singleExecutorService = Executors.newFixedThreadPool(1);
-    ExecutorService multiExecutorService =
-        Executors.newFixedThreadPool(this.testConf.getNoOfThreads());
+  }
 
-    logger.info("Executing " + this.testConf + " for " + totalTestCases + " browser tuples ...");
+  /**
+   * Returns an iterator over the test cases of one of the lists, in the order of the browser
+   * matrix.
+   *
+   * @param list SINGLE_THREADED or MULTI_THREADED.
+   * @return Iterator<List<Browser>>
+   */
+  private Iterator<List<Browser>> listIterator(final int list) {
+    final Iterator<List<Browser>> iterator = this.listOfBrowserList.iterator();
+    return new Iterator<List<Browser>>() {
+
+      private List<Browser> next = this.advance();
+
+      private List<Browser> advance() {
+        while (iterator.hasNext()) {
+          List<Browser> browserList = iterator.next();
+          if (sort(browserList) == list) {
+            return browserList;
+          }
+        }
+        return null;
+      }
 
-    try {
-      // Execute the first test
-      if (firstTest != null) {
-        testManagerList.add(firstTest);
-        do {
-          futureList = singleExecutorService.invokeAll(testManagerList);
-        } while (futureList.get(0).get() instanceof TestManager); // In case of a needed retry the
-        // instance of TestManger is
-        // simply returned.
-        testManagerList.clear();
+      @Override public boolean hasNext() {
+        return this.next != null;
       }
 
-      // Execute the middle tests in multithreaded mode
-      if (this.multiThreadedList.size() > 0) {
-        for (List<Browser> browserList : this.multiThreadedList)
-          testManagerList.add(new TestManager(this.testConf, browserList,
-              this.testConf.getRemoteTestIdentifier(index++)));
-
-        List<Future<Object>> tempFutureList = null;
-        while (testManagerList.size() > 0) {
-          tempFutureList = multiExecutorService.invokeAll(testManagerList);
-          testManagerList = (List<TestManager>) this.getSubList(tempFutureList, TestManager.class);
-          futureList.addAll(this.getExclusiveSubList(tempFutureList, TestManager.class));
+      @Override public List<Browser> next() {
+        if (this.next == null) {
+          throw new NoSuchElementException();
         }
-        testManagerList.clear();
+        List<Browser> browserList = this.next;
+        this.next = this.advance();
+        return browserList;
       }
 
-      // Execute the middle tests in singlethreaded mode
-      if (this.singleThreadedList.size() > 0) {
-        for (List<Browser> browserList : this.singleThreadedList)
-          testManagerList.add(new TestManager(this.testConf, browserList,
-              this.testConf.getRemoteTestIdentifier(index++)));
-
-        List<Future<Object>> tempFutureList = null;
-        while (testManagerList.size() > 0) {
-          tempFutureList = singleExecutorService.invokeAll(testManagerList);
-          testManagerList = (List<TestManager>) this.getSubList(tempFutureList, TestManager.class);
-          futureList.addAll(this.getExclusiveSubList(tempFutureList, TestManager.class));
-        }
-        testManagerList.clear();
+      @Override public void remove() {
+        throw new UnsupportedOperationException();
       }
+    };
+  }
 
-      // Execute the last test
-      if (lastTest != null) {
-        testManagerList.add(lastTest);
-        List<Future<Object>> tempFutureList = null;
-        do {
-          tempFutureList = singleExecutorService.invokeAll(testManagerList);
-        } while (tempFutureList.get(0).get() instanceof TestManager); // In case of a needed retry
-        // the instance of TestManger is simply returned.
-        futureList.addAll(tempFutureList);
+  /**
+   * Returns an iterator building a TestManager for each of the given number of test cases taken
+   * from the given iterator, with the next test identifiers.
+   *
+   * @param tupleIterator iterator over the test cases of a list.
+   * @param count         number of test cases to take.
+   * @return Iterator<TestManager>
+   */
+  private Iterator<TestManager> testManagerIterator(final Iterator<List<Browser>> tupleIterator,
+      final int count) {
+    return new Iterator<TestManager>() {
+
+      private int taken = 0;
+
+      @Override public boolean hasNext() {
+        return this.taken < count;
       }
-    } finally {
-      multiExecutorService.shutdown();
-      singleExecutorService.shutdown();
-    }
 
-    return futureList;
+      @Override public TestManager next() {
+        if (this.taken >= count) {
+          throw new NoSuchElementException();
+        }
+        this.taken++;
+        return new TestManager(testConf, tupleIterator.next(),
+            testConf.getRemoteTestIdentifier(index++));
+      }
 
+      @Override public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
   }
 
 }
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import org.apache.log4j.Logger;
+import org.webrtc.kite.config.Browser;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A continuous scheduler for TestManager objects.
+ * <p>
+ * Unlike ExecutorService.invokeAll(), the scheduler does not wait for a whole batch to finish
+ * before acting on the results. As soon as a TestManager completes, its slot is handed to the next
+ * pending TestManager, and a TestManager that asks for a retry (by returning itself) is put back
+ * at the end of the pending queue straight away.
+ * <p>
+ * A TestManager is only dispatched when SessionCapacityManager can acquire a session for every
+ * browser of its tuple. The browsers offered by several remotes are routed by RemoteRouter right
+ * before, each time the tuple is dispatched. TestManagers whose remotes are full, or whose remotes
+ * have their circuit open in RemoteHealthMonitor, are skipped in favour of the next ones in the
+ * queue, so a busy or failing remote does not hold back the tuples aimed at the other remotes.
+ * <p>
+ * With a number of prelaunches above 0, the sessions of the next queued TestManagers are started
+ * while the slots are still busy. The prelaunched TestManagers hold their sessions from then on and
+ * are dispatched before any other pending TestManager.
+ * <p>
+ * With a minimum number of slots below the number of slots, the number of TestManagers running at
+ * the same time is adapted to the grid by AdaptiveConcurrency, from the session start latency and
+ * the grid errors reported by each completed TestManager.
+ */
+public class MatrixScheduler {
+
+  private static final Logger logger = Logger.getLogger(MatrixScheduler.class.getName());
+
+  private static final long CAPACITY_WAIT = 1000;
+  /* Number of pending TestManagers taken ahead from the iterator, per slot. */
+  private static final int PENDING_PER_SLOT = 2;
+
+  private String name;
+  private int minSlots;
+  private int noOfSlots;
+  private int noOfPrelaunches;
+
+  private final AtomicLong busyTime = new AtomicLong();
+  private long wallTime;
+  private int usedSlots;
+  private int executedTasks;
+  private int retriedTasks;
+  private int deferredTasks;
+  private int prelaunchedTasks;
+  private AdaptiveConcurrency concurrency;
+
+  /**
+   * Constructs a new MatrixScheduler with the given name and number of slots.
+   *
+   * @param name      name used in the log messages.
+   * @param noOfSlots maximum number of TestManagers running at the same time.
+   */
+  public MatrixScheduler(String name, int noOfSlots) {
+    this(name, noOfSlots, 0);
+  }
+
+  /**
+   * Constructs a new MatrixScheduler with the given name, number of slots and number of
+   * prelaunches.
+   *
+   * @param name            name used in the log messages.
+   * @param noOfSlots       maximum number of TestManagers running at the same time.
+   * @param noOfPrelaunches maximum number of TestManagers waiting for a slot with their sessions
+   *                        already started.
+   */
+  public MatrixScheduler(String name, int noOfSlots, int noOfPrelaunches) {
+    this(name, noOfSlots, noOfSlots, noOfPrelaunches);
+  }
+
+  /**
+   * Constructs a new MatrixScheduler with the given name, minimum number of slots, number of slots
+   * and number of prelaunches.
+   *
+   * @param name            name used in the log messages.
+   * @param minSlots        minimum number of TestManagers running at the same time, the number
+   *                        of slots are used adaptively if it is lower.
+   * @param noOfSlots       maximum number of TestManagers running at the same time.
+   * @param noOfPrelaunches maximum number of TestManagers waiting for a slot with their sessions
+   *                        already started.
+   */
+  public MatrixScheduler(String name, int minSlots, int noOfSlots, int noOfPrelaunches) {
+    this.name = name;
+    this.minSlots = minSlots;
+    this.noOfSlots = noOfSlots;
+    this.noOfPrelaunches = noOfPrelaunches;
+  }
+
+  /**
+   * Executes all the given TestManagers and returns the futures of the completed ones. The futures
+   * of the retried executions are not part of the returned list.
+   *
+   * @param testManagerList list of TestManager to execute.
+   * @return List<Future<Object>> in the order of completion.
+   * @throws InterruptedException if interrupted while waiting for a TestManager to complete.
+   */
+  public List<Future<Object>> execute(List<TestManager> testManagerList)
+      throws InterruptedException {
+    return this.execute(testManagerList.iterator());
+  }
+
+  /**
+   * Executes all the TestManagers handed out by the given iterator and returns the futures of the
+   * completed ones. The TestManagers are taken from the iterator as the slots free up, so that only
+   * about PENDING_PER_SLOT TestManagers per slot are pending at any time, besides the retries.
+   *
+   * @param testManagerIterator iterator of the TestManagers to execute.
+   * @return List<Future<Object>> in the order of completion.
+   * @throws InterruptedException if interrupted while waiting for a TestManager to complete.
+   */
+  public List<Future<Object>> execute(Iterator<TestManager> testManagerIterator)
+      throws InterruptedException {
+    List<Future<Object>> futureList = new ArrayList<Future<Object>>();
+    LinkedList<TestManager> pendingList = new LinkedList<TestManager>();
+    int window = PENDING_PER_SLOT * this.noOfSlots + this.noOfPrelaunches;
+    this.fillPendingList(pendingList, testManagerIterator, window);
+    if (pendingList.isEmpty()) {
+      return futureList;
+    }
+
+    int slots = Math.min(this.noOfSlots, pendingList.size());
+    ExecutorService executorService = Executors.newFixedThreadPool(slots);
+    CompletionService<Object> completionService =
+        new ExecutorCompletionService<Object>(executorService);
+    LinkedList<TestManager> prelaunchedList = new LinkedList<TestManager>();
+    ExecutorService prelaunchService = null;
+    if (this.noOfPrelaunches > 0 && pendingList.size() > slots) {
+      prelaunchService = Executors.newFixedThreadPool(this.noOfPrelaunches);
+    }
+
+    this.busyTime.set(0);
+    this.executedTasks = 0;
+    this.retriedTasks = 0;
+    this.deferredTasks = 0;
+    this.prelaunchedTasks = 0;
+    this.usedSlots = slots;
+    this.concurrency = this.minSlots < slots
+        ? new AdaptiveConcurrency(this.name, this.minSlots, slots) : null;
+
+    long startTime = System.currentTimeMillis();
+    int inFlight = 0;
+    try {
+      while (!pendingList.isEmpty() || testManagerIterator.hasNext() || !prelaunchedList.isEmpty()
+          || inFlight > 0) {
+        this.fillPendingList(pendingList, testManagerIterator, window);
+        while (inFlight < (this.concurrency == null ? slots : this.concurrency.getLimit())) {
+          TestManager testManager = prelaunchedList.isEmpty()
+              ? this.pollDispatchable(pendingList) : prelaunchedList.poll();
+          if (testManager == null) {
+            break;
+          }
+          completionService.submit(this.wrap(testManager));
+          inFlight++;
+        }
+
+        while (prelaunchService != null && prelaunchedList.size() < this.noOfPrelaunches) {
+          TestManager testManager = this.pollDispatchable(pendingList);
+          if (testManager == null) {
+            break;
+          }
+          testManager.prelaunch(prelaunchService);
+          prelaunchedList.add(testManager);
+          this.prelaunchedTasks++;
+        }
+
+        if (inFlight == 0) {
+          // Every pending tuple is held back by sessions that are not ours. The idle pooled
+          // sessions standing in the way of the oldest one are given up first.
+          if (pendingList.isEmpty() || this.evictIdle(pendingList.peek().getBrowserList()) == 0) {
+            SessionCapacityManager.getInstance().awaitRelease(CAPACITY_WAIT);
+          }
+          continue;
+        }
+
+        Future<Object> future = completionService.take();
+        inFlight--;
+        this.executedTasks++;
+
+        Object object = null;
+        try {
+          object = future.get();
+        } catch (ExecutionException e) {
+          logger.error("Exception while executing a TestManager", e);
+        }
+
+        if (object instanceof TestManager) {
+          // In case of a needed retry the instance of TestManager is simply returned.
+          this.retriedTasks++;
+          pendingList.add((TestManager) object);
+        } else {
+          futureList.add(future);
+        }
+      }
+    } finally {
+      executorService.shutdownNow();
+      if (prelaunchService != null) {
+        prelaunchService.shutdown();
+        for (TestManager testManager : prelaunchedList) {
+          testManager.discardPrelaunch();
+          SessionCapacityManager.getInstance().release(testManager.getBrowserList());
+        }
+      }
+      this.wallTime = System.currentTimeMillis() - startTime;
+    }
+
+    this.logUtilisation();
+    return futureList;
+  }
+
+  /**
+   * Takes TestManagers from the iterator until the pending queue holds the given number of them.
+   *
+   * @param pendingList         queue of pending TestManagers.
+   * @param testManagerIterator iterator of the TestManagers to execute.
+   * @param window              number of pending TestManagers to reach.
+   */
+  private void fillPendingList(LinkedList<TestManager> pendingList,
+      Iterator<TestManager> testManagerIterator, int window) {
+    while (pendingList.size() < window && testManagerIterator.hasNext()) {
+      pendingList.add(testManagerIterator.next());
+    }
+  }
+
+  /**
+   * Removes and returns the first pending TestManager for which the sessions can be acquired.
+   *
+   * @param pendingList queue of pending TestManagers.
+   * @return TestManager or null if none of them fits at the moment.
+   */
+  private TestManager pollDispatchable(LinkedList<TestManager> pendingList) {
+    SessionCapacityManager capacityManager = SessionCapacityManager.getInstance();
+    Iterator<TestManager> iterator = pendingList.iterator();
+    while (iterator.hasNext()) {
+      TestManager testManager = iterator.next();
+      RemoteRouter.getInstance().route(testManager.getBrowserList());
+      if (capacityManager.tryAcquire(testManager.getBrowserList())) {
+        if (RemoteHealthMonitor.getInstance().tryAdmit(testManager.getBrowserList())) {
+          iterator.remove();
+          return testManager;
+        }
+        capacityManager.release(testManager.getBrowserList());
+      }
+      this.deferredTasks++;
+    }
+    return null;
+  }
+
+  /**
+   * Quits the idle pooled sessions taking the room of the browsers of a tuple on their remotes.
+   *
+   * @param browserList the tuple.
+   * @return the number of sessions quit.
+   */
+  private int evictIdle(List<Browser> browserList) {
+    int evicted = 0;
+    for (Browser browser : browserList) {
+      evicted += WebDriverPool.getInstance().evictIdle(browser.getRemoteAddress(), browser);
+    }
+    if (evicted > 0) {
+      logger.info(this.name + " :: " + evicted + " idle pooled sessions quit to make room");
+    }
+    return evicted;
+  }
+
+  /**
+   * Wraps the given TestManager in order to measure the time it keeps a slot busy, to release its
+   * sessions once it is done and to report its outcome to AdaptiveConcurrency.
+   *
+   * @param testManager TestManager
+   * @return Callable<Object>
+   */
+  private Callable<Object> wrap(final TestManager testManager) {
+    return new Callable<Object>() {
+      @Override public Object call() throws Exception {
+        long startTime = System.currentTimeMillis();
+        try {
+          return testManager.call();
+        } finally {
+          busyTime.addAndGet(System.currentTimeMillis() - startTime);
+          SessionCapacityManager.getInstance().release(testManager.getBrowserList());
+          if (concurrency != null) {
+            concurrency.record(startTime, testManager.getSessionStartLatency(),
+                testManager.hasGridError());
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns the ratio of the time the slots were busy over the time they were available during the
+   * last execution.
+   *
+   * @return slot utilisation between 0 and 1.
+   */
+  public double getUtilisation() {
+    if (this.wallTime <= 0 || this.usedSlots <= 0) {
+      return 0;
+    }
+    return Math.min(1, (double) this.busyTime.get() / ((double) this.wallTime * this.usedSlots));
+  }
+
+  /**
+   * Logs the slot utilisation of the last execution.
+   */
+  private void logUtilisation() {
+    if (logger.isInfoEnabled()) {
+      logger.info(String.format(
+          "%s :: %d executions (%d retries, %d prelaunched, %d deferrals for capacity) on %d "
+              + "slots in %d ms, slot utilisation %.1f%%",
+          this.name, this.executedTasks, this.retriedTasks, this.prelaunchedTasks,
+          this.deferredTasks, this.usedSlots, this.wallTime, this.getUtilisation() * 100));
+    }
+    if (this.concurrency != null) {
+      this.concurrency.logConvergence();
+    }
+  }
+
+}
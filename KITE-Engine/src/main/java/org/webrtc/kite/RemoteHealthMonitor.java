@@ -0,0 +1,358 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import org.apache.log4j.Logger;
+import org.webrtc.kite.config.Browser;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a circuit breaker per remote around the creation of sessions, as a singleton.
+ * <p>
+ * The circuit of a remote opens after FAILURE_THRESHOLD consecutive session starts have failed,
+ * or as soon as the status endpoint of its Selenium hub, probed in the background, does not answer.
+ * While it is open, no session is asked to the remote: RemoteRouter picks another remote offering
+ * the browser, MatrixScheduler defers the tuples that have no other remote, and a session that is
+ * still asked to it fails straight away instead of waiting for the connect timeout.
+ * <p>
+ * Once COOL_DOWN has elapsed, or as soon as a probe succeeds again, a single trial tuple is let
+ * through: MatrixScheduler reserves the trial for it when it is dispatched, and all of its
+ * sessions on the remote are then admitted. The first outcome closes the circuit or opens it for
+ * another COOL_DOWN. Tuples are only deferred for MAX_DEFER_TIME after the circuit opened, so
+ * that the run still ends, with the failures of those tuples, if the remote never comes back.
+ * <p>
+ * The remotes are probed while a job runs only: MatrixRunnerJob watches them when it starts and
+ * stops the monitor once its results have been sent.
+ */
+public class RemoteHealthMonitor {
+
+  private static final Logger logger = Logger.getLogger(RemoteHealthMonitor.class.getName());
+
+  /* Consecutive failed session starts that open the circuit. */
+  private static final int FAILURE_THRESHOLD = 3;
+  /* Time a circuit stays open before a trial, in ms. */
+  private static final long COOL_DOWN = 60 * 1000;
+  /* Time the tuples aimed at an open circuit are deferred for, in ms. */
+  private static final long MAX_DEFER_TIME = 10 * 60 * 1000;
+  /* Time between two probes of a remote, in ms. */
+  private static final long PROBE_INTERVAL = 15 * 1000;
+  /* Connect and read timeout of a probe, in ms. */
+  private static final int PROBE_TIMEOUT = 5 * 1000;
+
+  /* Singleton boiler plate code */
+  private static RemoteHealthMonitor instance = new RemoteHealthMonitor();
+
+  /**
+   * Gets instance.
+   *
+   * @return the instance
+   */
+  public static RemoteHealthMonitor getInstance() {
+    return instance;
+  }
+
+  private RemoteHealthMonitor() {
+  }
+  /* Singleton boiler plate code */
+
+  private final Map<String, Circuit> circuitMap = new HashMap<String, Circuit>();
+  private ScheduledExecutorService prober;
+
+  /**
+   * Starts probing the status endpoint of a remote in the background, unless it is already.
+   *
+   * @param remoteAddress the Selenium hub url.
+   */
+  public synchronized void watch(final String remoteAddress) {
+    Circuit circuit = this.getCircuit(remoteAddress);
+    if (circuit.watched) {
+      return;
+    }
+    circuit.watched = true;
+    if (this.prober == null) {
+      this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "RemoteHealthMonitor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    this.prober.scheduleWithFixedDelay(new Runnable() {
+      @Override public void run() {
+        String reason = probe(remoteAddress);
+        recordProbe(remoteAddress, reason);
+      }
+    }, 0, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops probing the remotes, keeping the state of their circuits. The remotes have to be
+   * watched again to be probed.
+   */
+  public synchronized void stop() {
+    if (this.prober == null) {
+      return;
+    }
+    this.prober.shutdownNow();
+    this.prober = null;
+    for (Circuit circuit : this.circuitMap.values()) {
+      circuit.watched = false;
+    }
+  }
+
+  /**
+   * Checks whether a session may be asked to a remote right now, without taking the trial.
+   *
+   * @param remoteAddress the Selenium hub url.
+   * @return false if the circuit of the remote is open, or its trial is in progress.
+   */
+  public synchronized boolean isAvailable(String remoteAddress) {
+    Circuit circuit = this.circuitMap.get(remoteAddress);
+    return circuit == null || circuit.isAvailable(System.currentTimeMillis());
+  }
+
+  /**
+   * Checks whether a tuple should be kept pending because the circuit of one of its remotes is
+   * open. A tuple is not deferred any more once that circuit has been open for MAX_DEFER_TIME.
+   *
+   * @param browserList the tuple.
+   * @return true if the tuple should be dispatched later.
+   */
+  public synchronized boolean shouldDefer(List<Browser> browserList) {
+    long now = System.currentTimeMillis();
+    for (Browser browser : browserList) {
+      Circuit circuit = this.circuitMap.get(browser.getRemoteAddress());
+      if (circuit != null && !circuit.isAvailable(now)
+          && now - circuit.openSince < MAX_DEFER_TIME) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a tuple can be dispatched and, if so, reserves the trial of every remote of the
+   * tuple whose circuit is open and whose cool down has elapsed.
+   *
+   * @param browserList the tuple.
+   * @return false if the tuple should be dispatched later, see shouldDefer().
+   */
+  public synchronized boolean tryAdmit(List<Browser> browserList) {
+    if (this.shouldDefer(browserList)) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    for (Browser browser : browserList) {
+      Circuit circuit = this.circuitMap.get(browser.getRemoteAddress());
+      if (circuit != null && circuit.openUntil != 0 && circuit.isAvailable(now)) {
+        circuit.trialUntil = now + COOL_DOWN;
+        circuit.trialTuple = browserList;
+        logger.info("Trying a tuple on " + Utility.redact(browser.getRemoteAddress())
+            + " with its circuit half open");
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Lets a new session of a tuple be asked to a remote: the circuit of the remote is closed, or the
+   * tuple holds its trial.
+   *
+   * @param remoteAddress the Selenium hub url.
+   * @param browserList   the tuple the session belongs to.
+   * @return false if the session must not be asked to the remote.
+   */
+  public synchronized boolean allowSession(String remoteAddress, List<Browser> browserList) {
+    Circuit circuit = this.circuitMap.get(remoteAddress);
+    if (circuit == null || circuit.openUntil == 0) {
+      return true;
+    }
+    return circuit.trialTuple == browserList && System.currentTimeMillis() < circuit.trialUntil;
+  }
+
+  /**
+   * Records the outcome of the start of a new session.
+   *
+   * @param remoteAddress the Selenium hub url the session was asked to.
+   * @param success       false if the session could not be started.
+   */
+  public synchronized void recordSessionStart(String remoteAddress, boolean success) {
+    Circuit circuit = this.getCircuit(remoteAddress);
+    if (success) {
+      if (circuit.openUntil != 0) {
+        logger.info("Circuit of " + Utility.redact(remoteAddress)
+            + " closed, a session has been started");
+      }
+      circuit.openUntil = 0;
+      circuit.trialUntil = 0;
+      circuit.trialTuple = null;
+      circuit.failures = 0;
+    } else {
+      circuit.failures++;
+      if (circuit.trialUntil != 0 || circuit.failures >= FAILURE_THRESHOLD) {
+        this.open(remoteAddress, circuit, circuit.failures + " session starts failed in a row");
+      }
+    }
+  }
+
+  /**
+   * Records the outcome of a probe.
+   *
+   * @param remoteAddress the Selenium hub url.
+   * @param reason        why the remote is unhealthy, or null if it is healthy.
+   */
+  synchronized void recordProbe(String remoteAddress, String reason) {
+    Circuit circuit = this.getCircuit(remoteAddress);
+    if (reason != null) {
+      this.open(remoteAddress, circuit, reason);
+    } else if (circuit.openUntil > System.currentTimeMillis()) {
+      // The hub is back, the next session decides whether the circuit closes.
+      circuit.openUntil = System.currentTimeMillis();
+      logger.info("Circuit of " + Utility.redact(remoteAddress)
+          + " half open, its status endpoint answers again");
+    }
+  }
+
+  /**
+   * Opens the circuit of a remote for COOL_DOWN.
+   *
+   * @param remoteAddress the Selenium hub url.
+   * @param circuit       the circuit of the remote.
+   * @param reason        why the circuit opens.
+   */
+  private void open(String remoteAddress, Circuit circuit, String reason) {
+    long now = System.currentTimeMillis();
+    if (circuit.openUntil == 0) {
+      circuit.openSince = now;
+      logger.warn("Circuit of " + Utility.redact(remoteAddress) + " opened: " + reason);
+    } else if (logger.isDebugEnabled()) {
+      logger.debug("Circuit of " + Utility.redact(remoteAddress) + " kept open: " + reason);
+    }
+    circuit.openUntil = now + COOL_DOWN;
+    circuit.trialUntil = 0;
+    circuit.trialTuple = null;
+  }
+
+  /**
+   * Returns the circuit of a remote, creating it if needed.
+   *
+   * @param remoteAddress the Selenium hub url.
+   * @return Circuit
+   */
+  private Circuit getCircuit(String remoteAddress) {
+    Circuit circuit = this.circuitMap.get(remoteAddress);
+    if (circuit == null) {
+      circuit = new Circuit();
+      this.circuitMap.put(remoteAddress, circuit);
+    }
+    return circuit;
+  }
+
+  /**
+   * Asks the status endpoint of a Selenium hub whether it is up. A hub that cannot be reached,
+   * answers with a server error or reports itself as not ready is unhealthy. Other client errors
+   * are ignored, as some vendors do not expose the endpoint.
+   *
+   * @param remoteAddress the Selenium hub url, possibly with credentials.
+   * @return why the remote is unhealthy, or null if it is healthy.
+   */
+  private static String probe(String remoteAddress) {
+    HttpURLConnection connection = null;
+    try {
+      URL url = new URL(remoteAddress.replaceAll("/+$", "") + "/status");
+      connection = (HttpURLConnection) url.openConnection();
+      connection.setConnectTimeout(PROBE_TIMEOUT);
+      connection.setReadTimeout(PROBE_TIMEOUT);
+      if (url.getUserInfo() != null) {
+        connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder()
+            .encodeToString(url.getUserInfo().getBytes(StandardCharsets.UTF_8)));
+      }
+      int responseCode = connection.getResponseCode();
+      if (responseCode >= 500) {
+        return "its status endpoint answered " + responseCode;
+      }
+      if (responseCode == HttpURLConnection.HTTP_OK) {
+        InputStream inputStream = connection.getInputStream();
+        JsonReader reader = null;
+        try {
+          reader = Json.createReader(inputStream);
+          JsonValue value = reader.readObject().get("value");
+          if (value instanceof JsonObject && !((JsonObject) value).getBoolean("ready", true)) {
+            return "it reports itself as not ready";
+          }
+        } catch (Exception e) {
+          // Not a Selenium status, the hub did answer though.
+        } finally {
+          if (reader != null) {
+            reader.close();
+          }
+          inputStream.close();
+        }
+      }
+      return null;
+    } catch (Exception e) {
+      return "its status endpoint cannot be reached (" + e + ")";
+    } finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * State of the circuit of a remote. The circuit is closed while openUntil is 0.
+   */
+  private static class Circuit {
+
+    private boolean watched;
+    private int failures;
+    private long openSince;
+    private long openUntil;
+    /* End of the trial in progress, or 0 if there is none. */
+    private long trialUntil;
+    /* The tuple holding the trial in progress. */
+    private List<Browser> trialTuple;
+
+    /**
+     * Checks whether a session may be asked to the remote.
+     *
+     * @param now current time, in ms.
+     * @return true if the circuit is closed, or ready for a trial.
+     */
+    private boolean isAvailable(long now) {
+      return this.openUntil == 0 || (now >= this.openUntil && now >= this.trialUntil);
+    }
+  }
+
+}
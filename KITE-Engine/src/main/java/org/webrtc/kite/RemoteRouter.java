@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import org.apache.log4j.Logger;
+import org.webrtc.kite.config.Browser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spreads the sessions of the browser configurations offered by several remotes over all of them,
+ * as a singleton.
+ * <p>
+ * The remote of every browser of a tuple is chosen each time the tuple is dispatched, so that a
+ * retry may go elsewhere. The chosen remote is the one with the lowest expected cost, which grows
+ * with the observed session start latency, with the number of sessions in flight on the remote
+ * (as counted by SessionCapacityManager) and with its recent failure rate. Remotes whose circuit
+ * is open in RemoteHealthMonitor are only chosen if all of them are, then remotes that have
+ * reached their 'maxInstances' are only chosen if all of them have. A remote that has not started
+ * any session yet has no latency, so it gets tried first.
+ */
+public class RemoteRouter {
+
+  private static final Logger logger = Logger.getLogger(RemoteRouter.class.getName());
+
+  /* Weight of the last session start in the moving averages. */
+  private static final double ALPHA = 0.2;
+  /* The failure rate at which a remote costs twice as much. */
+  private static final double FAILURE_PENALTY = 0.1;
+
+  /* Singleton boiler plate code */
+  private static RemoteRouter instance = new RemoteRouter();
+
+  /**
+   * Gets instance.
+   *
+   * @return the instance
+   */
+  public static RemoteRouter getInstance() {
+    return instance;
+  }
+
+  private RemoteRouter() {
+  }
+  /* Singleton boiler plate code */
+
+  private final Map<Browser, List<String>> candidateMap = new HashMap<Browser, List<String>>();
+  private final Map<String, RemoteStats> statsMap = new HashMap<String, RemoteStats>();
+
+  /**
+   * Sets the remotes offering a browser configuration. A configuration offered by a single remote
+   * is left where it is.
+   *
+   * @param browser           the browser configuration.
+   * @param remoteAddressList the Selenium hub urls of the remotes, in the order of preference.
+   */
+  public synchronized void setCandidates(Browser browser, List<String> remoteAddressList) {
+    if (remoteAddressList.size() > 1) {
+      this.candidateMap.put(browser, new ArrayList<String>(remoteAddressList));
+      List<String> redactedList = new ArrayList<String>();
+      for (String remoteAddress : remoteAddressList) {
+        redactedList.add(Utility.redact(remoteAddress));
+      }
+      logger.info(browser + " is offered by " + remoteAddressList.size()
+          + " remotes, its sessions are routed to the least loaded of " + redactedList);
+    } else {
+      this.candidateMap.remove(browser);
+    }
+  }
+
+  /**
+   * Chooses the remote of every browser of the tuple that is offered by several remotes, and sets
+   * it as its remote address.
+   *
+   * @param browserList the tuple, whose browsers are not shared with other tuples.
+   */
+  public void route(List<Browser> browserList) {
+    SessionCapacityManager capacityManager = SessionCapacityManager.getInstance();
+    RemoteHealthMonitor healthMonitor = RemoteHealthMonitor.getInstance();
+    synchronized (this) {
+      if (this.candidateMap.isEmpty()) {
+        return;
+      }
+      // The sessions of the tuple itself count as in flight for the browsers that follow.
+      Map<String, Integer> demandMap = new HashMap<String, Integer>();
+      for (Browser browser : browserList) {
+        List<String> candidateList = this.candidateMap.get(browser);
+        if (candidateList == null) {
+          continue;
+        }
+        String bestAddress = null;
+        double bestCost = 0;
+        boolean bestHasRoom = false;
+        boolean bestIsAvailable = false;
+        for (String remoteAddress : candidateList) {
+          Integer demand = demandMap.get(remoteAddress);
+          int inFlight = capacityManager.getSessionsInUse(remoteAddress)
+              + (demand == null ? 0 : demand);
+          boolean isAvailable = healthMonitor.isAvailable(remoteAddress);
+          boolean hasRoom = capacityManager.hasRoom(remoteAddress, inFlight + 1);
+          double cost = this.getStats(remoteAddress).getCost(inFlight);
+          if (bestAddress == null || (isAvailable && !bestIsAvailable)
+              || (isAvailable == bestIsAvailable && hasRoom && !bestHasRoom)
+              || (isAvailable == bestIsAvailable && hasRoom == bestHasRoom && cost < bestCost)) {
+            bestAddress = remoteAddress;
+            bestCost = cost;
+            bestHasRoom = hasRoom;
+            bestIsAvailable = isAvailable;
+          }
+        }
+        Integer demand = demandMap.get(bestAddress);
+        demandMap.put(bestAddress, demand == null ? 1 : demand + 1);
+        if (logger.isDebugEnabled() && !bestAddress.equals(browser.getRemoteAddress())) {
+          logger.debug("Routing " + browser + " to " + Utility.redact(bestAddress));
+        }
+        browser.setRemoteAddress(bestAddress);
+      }
+    }
+  }
+
+  /**
+   * Records the outcome of the start of a new session.
+   *
+   * @param remoteAddress the Selenium hub url the session was asked to.
+   * @param latency       time taken to start the session or to fail, in ms.
+   * @param success       false if the session could not be started.
+   */
+  public synchronized void recordSessionStart(String remoteAddress, long latency,
+      boolean success) {
+    this.getStats(remoteAddress).add(latency, success);
+  }
+
+  /**
+   * Returns the stats of a remote, creating them if needed.
+   *
+   * @param remoteAddress the Selenium hub url.
+   * @return RemoteStats
+   */
+  private RemoteStats getStats(String remoteAddress) {
+    RemoteStats stats = this.statsMap.get(remoteAddress);
+    if (stats == null) {
+      stats = new RemoteStats();
+      this.statsMap.put(remoteAddress, stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Moving averages of the session starts on a remote.
+   */
+  private static class RemoteStats {
+
+    private double latency;
+    private double failureRate;
+    private boolean started;
+
+    /**
+     * Adds the outcome of a session start to the averages.
+     *
+     * @param latency time taken, in ms.
+     * @param success false if the session could not be started.
+     */
+    private void add(long latency, boolean success) {
+      if (!this.started) {
+        this.latency = latency;
+        this.failureRate = success ? 0 : 1;
+        this.started = true;
+      } else {
+        this.latency += ALPHA * (latency - this.latency);
+        this.failureRate += ALPHA * ((success ? 0 : 1) - this.failureRate);
+      }
+    }
+
+    /**
+     * Returns the expected cost of one more session on the remote.
+     *
+     * @param inFlight number of sessions in flight on the remote.
+     * @return the latency scaled by the load and the failure rate.
+     */
+    private double getCost(int inFlight) {
+      // 1 ms keeps the load meaningful on a remote that answers instantly.
+      return (this.latency + 1) * (inFlight + 1) * (1 + this.failureRate / FAILURE_PENALTY);
+    }
+  }
+
+}
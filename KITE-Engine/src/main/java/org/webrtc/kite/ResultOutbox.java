@@ -0,0 +1,281 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import org.apache.log4j.Logger;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only log of the results to be posted, kept on disk until the callback acknowledges
+ * them.
+ * <p>
+ * Each line is either a post record, "P sequence callbackURL json", written when a result is
+ * queued, or an ack record, "A sequence", written once the result has been posted, the fields
+ * being separated by tabs. Appending does not wait for the disk: the sender calls sync() before
+ * posting, so a single fsync covers every result appended since the previous one. The log is
+ * emptied whenever every result in it has been acknowledged, and the unacknowledged results found
+ * when it is opened are posted again.
+ */
+public class ResultOutbox {
+
+  private static final Logger logger = Logger.getLogger(ResultOutbox.class.getName());
+
+  private static final String PATH_TO_OUTBOX = "KITE-outbox.log";
+
+  private final File file;
+  private FileChannel channel;
+  private long nextSequence = 1;
+  private int unacknowledged;
+  private boolean dirty;
+
+  /**
+   * Constructs a new ResultOutbox on the default file.
+   */
+  public ResultOutbox() {
+    this(new File(PATH_TO_OUTBOX));
+  }
+
+  /**
+   * Constructs a new ResultOutbox on the given file.
+   *
+   * @param file the log file.
+   */
+  public ResultOutbox(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Opens the log, compacting it down to its unacknowledged results.
+   *
+   * @return the unacknowledged results, in the order they were appended.
+   * @throws IOException if the log cannot be read or written.
+   */
+  public synchronized List<Record> open() throws IOException {
+    Map<Long, Record> pendingMap = new LinkedHashMap<Long, Record>();
+    if (this.file.exists()) {
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(new FileInputStream(this.file), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          Record record = parse(line);
+          if (record == null) {
+            continue;
+          }
+          this.nextSequence = Math.max(this.nextSequence, record.sequence + 1);
+          if (record.jsonObject == null) {
+            pendingMap.remove(record.sequence);
+          } else {
+            pendingMap.put(record.sequence, record);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    // The compacted log is written aside and then moved over the old one, so that a crash in
+    // between loses nothing.
+    List<Record> pendingList = new ArrayList<Record>(pendingMap.values());
+    File compactFile = new File(this.file.getPath() + ".tmp");
+    this.channel = new FileOutputStream(compactFile, false).getChannel();
+    try {
+      for (Record record : pendingList) {
+        this.write(postLine(record.sequence, record.callbackURL, record.jsonObject));
+      }
+      this.channel.force(false);
+    } finally {
+      this.channel.close();
+    }
+    Files.move(compactFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    this.channel = new FileOutputStream(this.file, true).getChannel();
+    this.unacknowledged = pendingList.size();
+    if (!pendingList.isEmpty()) {
+      logger.info(pendingList.size() + " results to post again from " + this.file);
+    }
+    return pendingList;
+  }
+
+  /**
+   * Appends a result to the log without waiting for the disk.
+   *
+   * @param callbackURL a string representation of the callback URL.
+   * @param jsonObject  JsonObject
+   * @return the sequence number of the result.
+   * @throws IOException if the log cannot be written.
+   */
+  public synchronized long append(String callbackURL, JsonObject jsonObject)
+      throws IOException {
+    long sequence = this.nextSequence++;
+    this.write(postLine(sequence, callbackURL, jsonObject));
+    this.unacknowledged++;
+    this.dirty = true;
+    return sequence;
+  }
+
+  /**
+   * Forces the appended results to the disk, if any was appended since the last call.
+   *
+   * @throws IOException if the log cannot be written.
+   */
+  public synchronized void sync() throws IOException {
+    if (this.dirty) {
+      this.channel.force(false);
+      this.dirty = false;
+    }
+  }
+
+  /**
+   * Records that the results with the given sequence numbers have been posted.
+   *
+   * @param sequenceList list of sequence numbers.
+   * @throws IOException if the log cannot be written.
+   */
+  public synchronized void acknowledge(List<Long> sequenceList) throws IOException {
+    this.unacknowledged -= sequenceList.size();
+    if (this.unacknowledged <= 0) {
+      // Nothing left to post: the whole log can go.
+      this.unacknowledged = 0;
+      this.channel.truncate(0);
+      this.dirty = false;
+      return;
+    }
+    StringBuilder builder = new StringBuilder();
+    for (long sequence : sequenceList) {
+      builder.append("A\t").append(sequence).append('\n');
+    }
+    this.write(builder.toString());
+    this.dirty = true;
+  }
+
+  /**
+   * Writes a string at the end of the log.
+   *
+   * @param string string to write.
+   * @throws IOException if the log cannot be written.
+   */
+  private void write(String string) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(string.getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      this.channel.write(buffer);
+    }
+  }
+
+  /**
+   * Formats a post record. The json has no line break since javax.json escapes them in strings.
+   *
+   * @param sequence    sequence number.
+   * @param callbackURL a string representation of the callback URL.
+   * @param jsonObject  JsonObject
+   * @return the line.
+   */
+  private static String postLine(long sequence, String callbackURL, JsonObject jsonObject) {
+    return "P\t" + sequence + "\t" + callbackURL + "\t" + jsonObject.toString() + "\n";
+  }
+
+  /**
+   * Parses a line of the log.
+   *
+   * @param line the line.
+   * @return the Record, with a null jsonObject for an ack record, or null if the line is corrupt,
+   *         e.g. cut short by a crash.
+   */
+  private static Record parse(String line) {
+    String[] fields = line.split("\t", 4);
+    try {
+      if (fields.length == 2 && fields[0].equals("A")) {
+        return new Record(Long.parseLong(fields[1]), null, null);
+      }
+      if (fields.length == 4 && fields[0].equals("P")) {
+        JsonReader jsonReader = Json.createReader(new StringReader(fields[3]));
+        try {
+          return new Record(Long.parseLong(fields[1]), fields[2], jsonReader.readObject());
+        } finally {
+          jsonReader.close();
+        }
+      }
+    } catch (NumberFormatException | JsonException e) {
+      logger.warn("Skipping a corrupt line of the result outbox");
+    }
+    return null;
+  }
+
+  /**
+   * A result found in the log.
+   */
+  public static class Record {
+
+    private final long sequence;
+    private final String callbackURL;
+    private final JsonObject jsonObject;
+
+    private Record(long sequence, String callbackURL, JsonObject jsonObject) {
+      this.sequence = sequence;
+      this.callbackURL = callbackURL;
+      this.jsonObject = jsonObject;
+    }
+
+    /**
+     * Gets the sequence number.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+      return sequence;
+    }
+
+    /**
+     * Gets the callback URL.
+     *
+     * @return the callback URL
+     */
+    public String getCallbackURL() {
+      return callbackURL;
+    }
+
+    /**
+     * Gets the result.
+     *
+     * @return the result
+     */
+    public JsonObject getJsonObject() {
+      return jsonObject;
+    }
+
+  }
+
+}
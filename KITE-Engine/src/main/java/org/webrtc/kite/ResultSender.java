@@ -0,0 +1,465 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posts the results in json format to the callback URLs, as a singleton.
+ * <p>
+ * The results are queued in a bounded queue and posted in order by a single thread over a pooled,
+ * keep-alive HTTP client. Up to 'callbackBatchSize' consecutive results for the same callback URL
+ * are posted together as a json array, which requires a dashboard accepting arrays. The results
+ * carrying "meta" are always posted on their own, and the thread posting them waits until they,
+ * and every result queued before them, have been posted.
+ * <p>
+ * Every result is written to a ResultOutbox before being queued and acknowledged there once the
+ * callback has accepted it. A failed post is retried with an exponential backoff, or after the
+ * delay given by the Retry-After header of the response; a result still failing after
+ * MAX_ATTEMPTS stays in the outbox and is posted again in the background, one attempt per round
+ * with a backoff capped at MAX_REDRAIN_BACKOFF. The results queued meanwhile wait behind it, so
+ * that a callback always gets the results in the order they were queued, and the thread waiting
+ * for a "meta" result is only released once it has been posted. The results left over by a crash
+ * are posted again, the same way, the next time the engine starts. A 429 response, which the
+ * dashboard sends while its queue is full, does not count as an attempt.
+ */
+public class ResultSender {
+
+  private static final Logger logger = Logger.getLogger(ResultSender.class.getName());
+
+  private static final int QUEUE_CAPACITY = 1000;
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long INITIAL_BACKOFF = 1000;
+  private static final long MAX_BACKOFF = 30 * 1000;
+  private static final long MAX_REDRAIN_BACKOFF = 5 * 60 * 1000;
+
+  /* Singleton boiler plate code */
+  private static ResultSender instance = new ResultSender();
+
+  /**
+   * Gets instance.
+   *
+   * @return the instance
+   */
+  public static ResultSender getInstance() {
+    return instance;
+  }
+
+  private ResultSender() {
+  }
+  /* Singleton boiler plate code */
+
+  private final BlockingQueue<Delivery> queue = new ArrayBlockingQueue<Delivery>(QUEUE_CAPACITY);
+  private CloseableHttpClient client;
+  private ResultOutbox outbox;
+  private List<ResultOutbox.Record> replayList = new ArrayList<ResultOutbox.Record>();
+  private Thread senderThread;
+  private volatile int batchSize = 1;
+  /* Delay asked by the Retry-After header of the last response, in ms, 0 if none. */
+  private long retryAfter;
+  /* Results left in the outbox or given up on, and the results queued after them, in order. */
+  private final LinkedList<Delivery> redrainList = new LinkedList<Delivery>();
+  private long redrainBackoff = MAX_BACKOFF;
+  private long nextRedrain;
+
+  /**
+   * Sets the maximum number of results posted together.
+   *
+   * @param batchSize maximum number of results in a post, 1 to post them one by one.
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Queues the result to be posted, waiting for space in the queue if needed.
+   *
+   * @param callbackURL a string representation of the callback URL.
+   * @param jsonObject  JsonObject
+   * @throws InterruptedException if interrupted while waiting for space in the queue.
+   */
+  public void post(String callbackURL, JsonObject jsonObject) throws InterruptedException {
+    this.start();
+    this.queue.put(new Delivery(callbackURL, jsonObject, this.log(callbackURL, jsonObject), null));
+  }
+
+  /**
+   * Queues the result to be posted on its own and waits until it has been posted.
+   *
+   * @param callbackURL a string representation of the callback URL.
+   * @param jsonObject  JsonObject
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void postAndWait(String callbackURL, JsonObject jsonObject)
+      throws InterruptedException {
+    this.start();
+    CountDownLatch latch = new CountDownLatch(1);
+    long sequence = jsonObject == null ? -1 : this.log(callbackURL, jsonObject);
+    this.queue.put(new Delivery(callbackURL, jsonObject, sequence, latch));
+    latch.await();
+  }
+
+  /**
+   * Waits until every result queued so far has been posted, or kept in the outbox after a failed
+   * round of posting the results given up on again.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void flush() throws InterruptedException {
+    this.postAndWait(null, null);
+  }
+
+  /**
+   * Writes the result to the outbox.
+   *
+   * @param callbackURL a string representation of the callback URL.
+   * @param jsonObject  JsonObject
+   * @return the sequence number of the result in the outbox, -1 if it could not be written.
+   */
+  private long log(String callbackURL, JsonObject jsonObject) {
+    if (this.outbox != null) {
+      try {
+        return this.outbox.append(callbackURL, jsonObject);
+      } catch (IOException e) {
+        logger.error("Exception while writing the result to the outbox", e);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Opens the outbox, creates the HTTP client and starts the sender thread if it is not running
+   * yet.
+   */
+  private synchronized void start() {
+    if (this.senderThread != null) {
+      return;
+    }
+    ResultOutbox outbox = new ResultOutbox();
+    try {
+      this.replayList = outbox.open();
+      this.outbox = outbox;
+    } catch (IOException e) {
+      logger.error("Exception while opening the result outbox, results will not be kept", e);
+    }
+    PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager();
+    this.client = HttpClients.custom().setConnectionManager(connectionManager).build();
+    this.senderThread = new Thread(new Runnable() {
+      @Override public void run() {
+        sendLoop();
+      }
+    }, "ResultSender");
+    this.senderThread.setDaemon(true);
+    this.senderThread.start();
+  }
+
+  /**
+   * Takes the queued results in order and posts them, grouping the consecutive results for the
+   * same callback URL that nobody is waiting for. The results left in the outbox, the results
+   * given up on and every result queued after them are kept in order in the redrain list, which
+   * is posted again whenever its backoff has elapsed, before anything else.
+   */
+  private void sendLoop() {
+    for (ResultOutbox.Record record : this.replayList) {
+      this.redrainList.add(new Delivery(record.getCallbackURL(), record.getJsonObject(),
+          record.getSequence(), null));
+    }
+    this.replayList = null;
+
+    try {
+      while (true) {
+        if (this.redrainList.isEmpty()) {
+          Delivery delivery = this.queue.take();
+          try {
+            this.deliverBatch(delivery);
+          } catch (RuntimeException e) {
+            logger.error("Exception while posting a batch of results", e);
+            delivery.release();
+          }
+        } else {
+          long wait = this.nextRedrain - System.currentTimeMillis();
+          Delivery delivery = wait > 0 ? this.queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+          if (delivery != null) {
+            // Posted after the results queued before it.
+            this.redrainList.add(delivery);
+            this.queue.drainTo(this.redrainList);
+            continue;
+          }
+          try {
+            this.redrain();
+          } catch (RuntimeException e) {
+            logger.error("Exception while posting again the results kept in the outbox", e);
+            this.redrainList.poll().release();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      logger.warn("ResultSender interrupted, " + (this.queue.size() + this.redrainList.size())
+          + " results left in the outbox");
+    }
+  }
+
+  /**
+   * Posts the given result along with the consecutive queued results for the same callback URL
+   * that nobody is waiting for. The results are added to the redrain list if they are given up on.
+   *
+   * @param delivery the first result of the batch, taken from the queue.
+   * @throws InterruptedException if interrupted while waiting to retry.
+   */
+  private void deliverBatch(Delivery delivery) throws InterruptedException {
+    if (delivery.jsonObject == null) {
+      // A flush, everything queued before it has been posted.
+      delivery.release();
+      return;
+    }
+    List<Delivery> deliveryList = new ArrayList<Delivery>();
+    deliveryList.add(delivery);
+    int batchSize = delivery.latch == null ? this.batchSize : 1;
+    while (deliveryList.size() < batchSize) {
+      Delivery next = this.queue.peek();
+      if (next == null || next.latch != null || !next.callbackURL.equals(
+          delivery.callbackURL)) {
+        break;
+      }
+      deliveryList.add(this.queue.poll());
+    }
+
+    if (!this.deliver(deliveryList, MAX_ATTEMPTS)) {
+      this.nextRedrain = System.currentTimeMillis() + this.redrainBackoff;
+      this.redrainList.addAll(deliveryList);
+    }
+  }
+
+  /**
+   * Posts the redrain list in order, one attempt per batch, until a batch fails. The backoff
+   * before the next round doubles after a failure, up to MAX_REDRAIN_BACKOFF. The flushes waiting
+   * in the list are released on a failure, as the results before them are kept in the outbox.
+   *
+   * @throws InterruptedException if interrupted while waiting to retry.
+   */
+  private void redrain() throws InterruptedException {
+    logger.info("Posting again " + this.redrainList.size() + " results kept in the outbox");
+    while (!this.redrainList.isEmpty()) {
+      Delivery delivery = this.redrainList.peek();
+      if (delivery.jsonObject == null) {
+        this.redrainList.poll().release();
+        continue;
+      }
+      List<Delivery> deliveryList = new ArrayList<Delivery>();
+      int batchSize = delivery.latch == null ? this.batchSize : 1;
+      for (Delivery next : this.redrainList) {
+        if (deliveryList.size() == batchSize || next.jsonObject == null || (!deliveryList.isEmpty()
+            && (next.latch != null || !next.callbackURL.equals(delivery.callbackURL)))) {
+          break;
+        }
+        deliveryList.add(next);
+      }
+      if (!this.deliver(deliveryList, 1)) {
+        this.nextRedrain = System.currentTimeMillis() + this.redrainBackoff;
+        this.redrainBackoff = Math.min(this.redrainBackoff * 2, MAX_REDRAIN_BACKOFF);
+        Iterator<Delivery> iterator = this.redrainList.iterator();
+        while (iterator.hasNext()) {
+          Delivery next = iterator.next();
+          if (next.jsonObject == null) {
+            next.release();
+            iterator.remove();
+          }
+        }
+        return;
+      }
+      this.redrainList.subList(0, deliveryList.size()).clear();
+    }
+    this.redrainBackoff = MAX_BACKOFF;
+  }
+
+  /**
+   * Posts the results, retrying with an exponential backoff, then acknowledges them in the outbox
+   * and releases whoever is waiting for them.
+   *
+   * @param deliveryList results to post, as a json array if there are more than one, all for the
+   *                     same callback URL.
+   * @param maxAttempts  number of attempts before giving up.
+   * @return false if the results have been given up on.
+   * @throws InterruptedException if interrupted while waiting to retry.
+   */
+  private boolean deliver(List<Delivery> deliveryList, int maxAttempts)
+      throws InterruptedException {
+    String callbackURL = deliveryList.get(0).callbackURL;
+    String body;
+    if (deliveryList.size() == 1) {
+      body = deliveryList.get(0).jsonObject.toString();
+    } else {
+      JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
+      for (Delivery delivery : deliveryList) {
+        jsonArrayBuilder.add(delivery.jsonObject);
+      }
+      body = jsonArrayBuilder.build().toString();
+    }
+
+    if (this.outbox != null) {
+      try {
+        // One fsync for everything appended since the previous post.
+        this.outbox.sync();
+      } catch (IOException e) {
+        logger.error("Exception while syncing the result outbox", e);
+      }
+    }
+
+    long backoff = INITIAL_BACKOFF;
+    int attempt = 0;
+    while (true) {
+      int status = this.send(callbackURL, body);
+      if (status >= 200 && status < 300) {
+        break;
+      }
+      if (status >= 400 && status < 500 && status != 429) {
+        logger.error("The callback has rejected " + deliveryList.size()
+            + " results with status " + status + ", dropping them");
+        break;
+      }
+      if (status != 429 && ++attempt == maxAttempts) {
+        if (maxAttempts == MAX_ATTEMPTS) {
+          logger.error("Giving up posting " + deliveryList.size() + " results after " + attempt
+              + " attempts, they are kept in the outbox and posted again later");
+        }
+        return false;
+      }
+      long delay = this.retryAfter > 0 ? this.retryAfter : backoff;
+      logger.warn("Posting the results has failed with status " + status + ", retrying in "
+          + delay + " ms");
+      Thread.sleep(delay);
+      backoff = Math.min(backoff * 2, MAX_BACKOFF);
+    }
+
+    if (this.outbox != null) {
+      List<Long> acknowledgedList = new ArrayList<Long>();
+      for (Delivery delivery : deliveryList) {
+        if (delivery.sequence >= 0) {
+          acknowledgedList.add(delivery.sequence);
+        }
+      }
+      try {
+        this.outbox.acknowledge(acknowledgedList);
+      } catch (IOException e) {
+        logger.error("Exception while acknowledging results in the outbox", e);
+      }
+    }
+    for (Delivery delivery : deliveryList) {
+      delivery.release();
+    }
+    return true;
+  }
+
+  /**
+   * Posts the body to the callback URL.
+   *
+   * @param callbackURL a string representation of the callback URL.
+   * @param body        json object or array.
+   * @return the HTTP status code, -1 if the post has failed.
+   */
+  private int send(String callbackURL, String body) {
+    if (logger.isDebugEnabled())
+      logger.debug("Posting to '" + callbackURL + "' with body '" + body + "'");
+
+    CloseableHttpResponse response = null;
+    this.retryAfter = 0;
+    try {
+      HttpPost httpPost = new HttpPost(callbackURL);
+      httpPost.setHeader("Accept", "application/json");
+      httpPost.setHeader("Content-type", "application/json");
+      httpPost.setEntity(new StringEntity(body));
+      response = this.client.execute(httpPost);
+      if (logger.isDebugEnabled())
+        logger.debug("response->" + response);
+      // Consuming the entity gives the connection back to the pool.
+      EntityUtils.consume(response.getEntity());
+      Header retryAfterHeader = response.getFirstHeader("Retry-After");
+      if (retryAfterHeader != null) {
+        try {
+          this.retryAfter = Math.min(Long.parseLong(retryAfterHeader.getValue().trim()) * 1000,
+              MAX_BACKOFF);
+        } catch (NumberFormatException e) {
+          logger.warn("Ignoring Retry-After '" + retryAfterHeader.getValue() + "'");
+        }
+      }
+      return response.getStatusLine().getStatusCode();
+    } catch (IOException | RuntimeException e) {
+      logger.error("Exception while posting the result", e);
+      return -1;
+    } finally {
+      if (response != null) {
+        try {
+          response.close();
+        } catch (IOException e) {
+          logger.warn("Exception while closing the CloseableHttpResponse", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * A result waiting to be posted.
+   */
+  private static class Delivery {
+
+    private final String callbackURL;
+    private final JsonObject jsonObject;
+    private final long sequence;
+    private final CountDownLatch latch;
+
+    private Delivery(String callbackURL, JsonObject jsonObject, long sequence,
+        CountDownLatch latch) {
+      this.callbackURL = callbackURL;
+      this.jsonObject = jsonObject;
+      this.sequence = sequence;
+      this.latch = latch;
+    }
+
+    /**
+     * Releases whoever is waiting for the result, if anybody.
+     */
+    private void release() {
+      if (this.latch != null) {
+        this.latch.countDown();
+      }
+    }
+
+  }
+
+}
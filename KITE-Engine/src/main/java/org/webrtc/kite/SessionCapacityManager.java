@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import org.webrtc.kite.config.Browser;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the WebDriver sessions in flight as a singleton.
+ * <p>
+ * Sessions are counted per remote address and per browser configuration on a remote, as a browser
+ * configuration may be routed to several remotes. A remote is limited by
+ * the optional 'maxInstances' of its remote object while a browser configuration is limited by the
+ * optional 'maxInstances' of its browser object. A value of 0 means unlimited. On top of that, the
+ * number of tuples in flight over all the running tests is limited by 'maxConcurrentTuples'.
+ * <p>
+ * A tuple is acquired all or nothing. A remote or a browser configuration without any session in
+ * flight always admits a tuple, so that a tuple asking for more sessions than a limit still runs
+ * instead of waiting forever.
+ * <p>
+ * Idle sessions kept by WebDriverPool still occupy their slot on the remote and are counted as
+ * parked. A tuple asking for a browser configuration with parked sessions is admitted as if those
+ * slots were free; the parked slot is released once the pool hands the session out.
+ */
+public class SessionCapacityManager {
+
+  /* Singleton boiler plate code */
+  private static SessionCapacityManager instance = new SessionCapacityManager();
+
+  /**
+   * Gets instance.
+   *
+   * @return the instance
+   */
+  public static SessionCapacityManager getInstance() {
+    return instance;
+  }
+
+  private SessionCapacityManager() {
+  }
+  /* Singleton boiler plate code */
+
+  private final Map<String, Integer> remoteLimitMap = new HashMap<String, Integer>();
+  private final Map<String, Integer> remoteInUseMap = new HashMap<String, Integer>();
+  /* Counts per remote address then per browser, as Browser.equals() ignores the remote. */
+  private final Map<String, Map<Browser, Integer>> browserInUseMap =
+      new HashMap<String, Map<Browser, Integer>>();
+  private final Map<String, Map<Browser, Integer>> parkedMap =
+      new HashMap<String, Map<Browser, Integer>>();
+  private int tupleLimit;
+  private int tuplesInUse;
+
+  /**
+   * Sets the maximum number of sessions that can run at the same time on the given remote.
+   *
+   * @param remoteAddress string representation of the Selenium hub url.
+   * @param maxInstances  maximum number of sessions, 0 for unlimited.
+   */
+  public synchronized void setRemoteLimit(String remoteAddress, int maxInstances) {
+    if (maxInstances > 0) {
+      this.remoteLimitMap.put(remoteAddress, maxInstances);
+    } else {
+      this.remoteLimitMap.remove(remoteAddress);
+    }
+  }
+
+  /**
+   * Sets the maximum number of tuples in flight at the same time over all the running tests.
+   *
+   * @param maxConcurrentTuples maximum number of tuples, 0 for unlimited.
+   */
+  public synchronized void setTupleLimit(int maxConcurrentTuples) {
+    this.tupleLimit = maxConcurrentTuples;
+  }
+
+  /**
+   * Acquires one session for every browser of the tuple if all of them fit, otherwise acquires
+   * nothing.
+   *
+   * @param browserList the tuple.
+   * @return true if the sessions have been acquired.
+   */
+  public synchronized boolean tryAcquire(List<Browser> browserList) {
+    if (this.tupleLimit > 0 && this.tuplesInUse >= this.tupleLimit) {
+      return false;
+    }
+
+    Map<String, Map<Browser, Integer>> browserDemandMap =
+        new HashMap<String, Map<Browser, Integer>>();
+    for (Browser browser : browserList) {
+      incrementOnRemote(browserDemandMap, browser, 1);
+    }
+
+    // Parked sessions of the same browser configuration on the same remote can be reused, they
+    // need no new slot.
+    Map<String, Integer> remoteDemandMap = new HashMap<String, Integer>();
+    for (Map.Entry<String, Map<Browser, Integer>> remoteEntry : browserDemandMap.entrySet()) {
+      String remoteAddress = remoteEntry.getKey();
+      for (Map.Entry<Browser, Integer> entry : remoteEntry.getValue().entrySet()) {
+        Integer parked = getOnRemote(this.parkedMap, remoteAddress, entry.getKey());
+        int newDemand =
+            entry.getValue() - Math.min(entry.getValue(), parked == null ? 0 : parked);
+        int limit = entry.getKey().getMaxInstances();
+        if (limit > 0 && !fits(getOnRemote(this.browserInUseMap, remoteAddress, entry.getKey()),
+            newDemand, limit)) {
+          return false;
+        }
+        increment(remoteDemandMap, remoteAddress, newDemand);
+      }
+    }
+
+    for (Map.Entry<String, Integer> entry : remoteDemandMap.entrySet()) {
+      Integer limit = this.remoteLimitMap.get(entry.getKey());
+      if (limit != null && !fits(this.remoteInUseMap.get(entry.getKey()), entry.getValue(),
+          limit)) {
+        return false;
+      }
+    }
+
+    for (Browser browser : browserList) {
+      increment(this.remoteInUseMap, browser.getRemoteAddress(), 1);
+      incrementOnRemote(this.browserInUseMap, browser, 1);
+    }
+    this.tuplesInUse++;
+    return true;
+  }
+
+  /**
+   * Releases the sessions acquired for the tuple and wakes up the threads waiting for capacity.
+   *
+   * @param browserList the tuple.
+   */
+  public synchronized void release(List<Browser> browserList) {
+    for (Browser browser : browserList) {
+      increment(this.remoteInUseMap, browser.getRemoteAddress(), -1);
+      incrementOnRemote(this.browserInUseMap, browser, -1);
+    }
+    this.tuplesInUse--;
+    this.notifyAll();
+  }
+
+  /**
+   * Keeps the slot of a session that is parked in WebDriverPool once its tuple is released.
+   *
+   * @param browser the browser of the session.
+   */
+  public synchronized void park(Browser browser) {
+    increment(this.remoteInUseMap, browser.getRemoteAddress(), 1);
+    incrementOnRemote(this.browserInUseMap, browser, 1);
+    incrementOnRemote(this.parkedMap, browser, 1);
+  }
+
+  /**
+   * Releases the slot of a parked session that has been handed out again or quit.
+   *
+   * @param browser the browser of the session.
+   */
+  public synchronized void unpark(Browser browser) {
+    Integer parked = getOnRemote(this.parkedMap, browser.getRemoteAddress(), browser);
+    if (parked != null) {
+      incrementOnRemote(this.parkedMap, browser, -1);
+      increment(this.remoteInUseMap, browser.getRemoteAddress(), -1);
+      incrementOnRemote(this.browserInUseMap, browser, -1);
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * Gets the number of sessions in flight on a remote, parked ones included.
+   *
+   * @param remoteAddress string representation of the Selenium hub url.
+   * @return the number of sessions.
+   */
+  public synchronized int getSessionsInUse(String remoteAddress) {
+    Integer inUse = this.remoteInUseMap.get(remoteAddress);
+    return inUse == null ? 0 : inUse;
+  }
+
+  /**
+   * Checks whether a remote is allowed to run the given number of sessions at the same time.
+   *
+   * @param remoteAddress string representation of the Selenium hub url.
+   * @param sessions      number of sessions.
+   * @return true if the remote is unlimited or its limit is not exceeded.
+   */
+  public synchronized boolean hasRoom(String remoteAddress, int sessions) {
+    Integer limit = this.remoteLimitMap.get(remoteAddress);
+    return limit == null || sessions <= limit;
+  }
+
+  /**
+   * Waits until some sessions are released or the timeout elapses.
+   *
+   * @param timeout maximum time to wait in milliseconds.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public synchronized void awaitRelease(long timeout) throws InterruptedException {
+    this.wait(timeout);
+  }
+
+  /**
+   * Checks whether the demand fits next to the sessions in use.
+   *
+   * @param inUse  number of sessions in use, null if none.
+   * @param demand number of sessions asked for.
+   * @param limit  maximum number of sessions.
+   * @return true if nothing is in use or the limit is not exceeded.
+   */
+  private static boolean fits(Integer inUse, int demand, int limit) {
+    return inUse == null || inUse + demand <= limit;
+  }
+
+  /**
+   * Adds the delta to the count of the given key, removing the key when its count drops to 0.
+   *
+   * @param map   map of counts.
+   * @param key   key to update.
+   * @param delta value to add.
+   */
+  private static <K> void increment(Map<K, Integer> map, K key, int delta) {
+    Integer count = map.get(key);
+    int newCount = (count == null ? 0 : count) + delta;
+    if (newCount > 0) {
+      map.put(key, newCount);
+    } else {
+      map.remove(key);
+    }
+  }
+
+  /**
+   * Gets the count of a browser on a remote.
+   *
+   * @param map           map of counts per remote address then per browser.
+   * @param remoteAddress string representation of the Selenium hub url.
+   * @param browser       the browser.
+   * @return the count, null if none.
+   */
+  private static Integer getOnRemote(Map<String, Map<Browser, Integer>> map,
+      String remoteAddress, Browser browser) {
+    Map<Browser, Integer> browserMap = map.get(remoteAddress);
+    return browserMap == null ? null : browserMap.get(browser);
+  }
+
+  /**
+   * Adds the delta to the count of a browser on its remote, removing the entries whose count drops
+   * to 0.
+   *
+   * @param map     map of counts per remote address then per browser.
+   * @param browser the browser, whose remote address is used.
+   * @param delta   value to add.
+   */
+  private static void incrementOnRemote(Map<String, Map<Browser, Integer>> map, Browser browser,
+      int delta) {
+    Map<Browser, Integer> browserMap = map.get(browser.getRemoteAddress());
+    if (browserMap == null) {
+      browserMap = new HashMap<Browser, Integer>();
+      map.put(browser.getRemoteAddress(), browserMap);
+    }
+    increment(browserMap, browser, delta);
+    if (browserMap.isEmpty()) {
+      map.remove(browser.getRemoteAddress());
+    }
+  }
+
+}
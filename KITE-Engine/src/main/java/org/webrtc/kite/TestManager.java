@@ -25,13 +25,18 @@ import org.webrtc.kite.config.TestConf;
 import org.webrtc.kite.exception.KiteGridException;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
-import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A thread to execute an implementation of KiteTest.
@@ -39,9 +44,8 @@ import java.util.concurrent.Callable;
  * The algorithm of the thread is as follows: 1) Instantiate the WebDriver objects. 2) Instantiate
  * KiteTest implementation. 3) Set the WebDriver objects to the implementation. 4) Execute the test.
  * 5) Retrieve, parse and populate from userAgent. 6) Get the stack trace of an exception if it
- * occurs during the execution. 7) Quit all WebDrivers. 8) Develop result json. 9) Post the result
- * to the callback url synchronously for the first and last test and asynchronously for the rest of
- * the tests.
+ * occurs during the execution. 7) Quit all WebDrivers. 8) Develop result json. 9) Hand the result
+ * over to ResultSender, waiting for it to be posted for the first and last test only.
  */
 public class TestManager implements Callable<Object> {
 
@@ -56,9 +60,14 @@ public class TestManager implements Callable<Object> {
   private int retryCount;
 
   private int totalTests = 0;
+  private JsonArray tupleJsonArray;
   private boolean isLastTest = false;
 
   private long timeTaken;
+  private long[] sessionCreationTimes;
+  private long sessionStartLatency = -1;
+  private volatile boolean gridError;
+  private Future<Object> prelaunchFuture;
   /**
    * The Web driver list.
    */
@@ -77,6 +86,43 @@ public class TestManager implements Callable<Object> {
     this.testName = testName;
   }
 
+  /**
+   * Gets the browser tuple of the test.
+   *
+   * @return List<Browser>
+   */
+  public List<Browser> getBrowserList() {
+    return this.browserList;
+  }
+
+  /**
+   * Gets the longest time taken to start a new session during the last execution.
+   *
+   * @return the latency in ms, or -1 if no new session has been started.
+   */
+  public synchronized long getSessionStartLatency() {
+    return this.sessionStartLatency;
+  }
+
+  /**
+   * Checks whether the last execution ran into the grid: a session that could not be started, or
+   * a WebDriverException, e.g. a timeout, while running the test.
+   *
+   * @return true if the last execution hit a grid error.
+   */
+  public boolean hasGridError() {
+    return this.gridError;
+  }
+
+  /**
+   * Records the time taken to start a new session, keeping the longest one.
+   *
+   * @param latency time taken, in ms.
+   */
+  private synchronized void recordSessionStartLatency(long latency) {
+    this.sessionStartLatency = Math.max(this.sessionStartLatency, latency);
+  }
+
   /**
    * Sets total tests.
    *
@@ -86,6 +132,16 @@ public class TestManager implements Callable<Object> {
     this.totalTests = totalTests;
   }
 
+  /**
+   * Sets the tuples of the batch, sent along with the first test when they are not the full
+   * matrix.
+   *
+   * @param tupleJsonArray the tuples, as arrays of indexes in the browser list.
+   */
+  public void setTupleJsonArray(JsonArray tupleJsonArray) {
+    this.tupleJsonArray = tupleJsonArray;
+  }
+
   /**
    * Sets is last test.
    *
@@ -104,16 +160,163 @@ public class TestManager implements Callable<Object> {
     return this.totalTests > 0;
   }
 
+  /**
+   * Reports the outcome of the start of a new session to RemoteRouter and RemoteHealthMonitor.
+   *
+   * @param remoteAddress the Selenium hub url the session was asked to.
+   * @param startTime     time the session was asked at, in ms.
+   * @param success       false if the session could not be started.
+   */
+  private static void recordSessionStart(String remoteAddress, long startTime, boolean success) {
+    RemoteRouter.getInstance()
+        .recordSessionStart(remoteAddress, System.currentTimeMillis() - startTime, success);
+    RemoteHealthMonitor.getInstance().recordSessionStart(remoteAddress, success);
+  }
+
   /**
    * Constructs a list of web drivers against the number of provided browsers.
+   * <p>
+   * The sessions are created concurrently, or taken from WebDriverPool when the test reuses
+   * sessions, and the time taken by each of them is recorded, for RemoteRouter as well. A session
+   * aimed at a remote whose circuit is open fails straight away, see RemoteHealthMonitor. If any
+   * of them fails, the method waits for the others to finish so that the sessions which did start
+   * are part of the web driver list and can be quit by the caller.
    *
-   * @throws MalformedURLException if no protocol is specified in the remoteAddress of a browser, or
-   *                               an unknown protocol is found, or spec is null.
+   * @throws Exception the exception thrown while creating the first failed session, e.g.
+   *                   MalformedURLException if no protocol is specified in the remoteAddress of a
+   *                   browser, or WebDriverException if the remote could not create the session.
    */
-  private void populateDrivers(String testName) throws MalformedURLException {
+  private void populateDrivers(final String testName) throws Exception {
+    int size = this.browserList.size();
     this.webDriverList = new ArrayList<WebDriver>();
-    for (Browser browser : this.browserList){
-      this.webDriverList.add(WebDriverUtility.getWebDriverForBrowser(testName, browser));
+    this.sessionCreationTimes = new long[size];
+    Arrays.fill(this.sessionCreationTimes, -1);
+    synchronized (this) {
+      this.sessionStartLatency = -1;
+    }
+    this.gridError = false;
+
+    ExecutorService executorService = Executors.newFixedThreadPool(size);
+    List<Future<WebDriver>> futureList = new ArrayList<Future<WebDriver>>();
+    for (int i = 0; i < size; i++) {
+      final int index = i;
+      final Browser browser = this.browserList.get(i);
+      futureList.add(executorService.submit(new Callable<WebDriver>() {
+        @Override public WebDriver call() throws Exception {
+          long startTime = System.currentTimeMillis();
+          WebDriver webDriver = null;
+          if (testConf.isReuseSessions()) {
+            webDriver = WebDriverPool.getInstance().borrow(browser);
+          }
+          if (webDriver == null) {
+            String remoteAddress = browser.getRemoteAddress();
+            if (!RemoteHealthMonitor.getInstance().allowSession(remoteAddress, browserList)) {
+              throw new WebDriverException("The circuit of " + Utility.redact(remoteAddress)
+                  + " is open, no session is asked to it for now");
+            }
+            try {
+              webDriver = WebDriverUtility.getWebDriverForBrowser(testName, browser);
+            } catch (Exception e) {
+              gridError = true;
+              recordSessionStart(remoteAddress, startTime, false);
+              throw e;
+            }
+            recordSessionStart(remoteAddress, startTime, true);
+            recordSessionStartLatency(System.currentTimeMillis() - startTime);
+            if (testConf.isReuseSessions()) {
+              WebDriverPool.getInstance().recordCreation(webDriver, System.currentTimeMillis());
+            }
+          }
+          sessionCreationTimes[index] = System.currentTimeMillis() - startTime;
+          return webDriver;
+        }
+      }));
+    }
+    executorService.shutdown();
+
+    Exception exception = null;
+    for (Future<WebDriver> future : futureList) {
+      try {
+        this.webDriverList.add(future.get());
+      } catch (ExecutionException e) {
+        if (exception == null) {
+          exception = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  /**
+   * Starts creating the web drivers on the given executor, ahead of the execution of the test.
+   *
+   * @param executorService ExecutorService on which the sessions are created.
+   */
+  public void prelaunch(ExecutorService executorService) {
+    this.webDriverList = new ArrayList<WebDriver>();
+    this.prelaunchFuture = executorService.submit(new Callable<Object>() {
+      @Override public Object call() throws Exception {
+        populateDrivers(testName);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Waits for the prelaunched web drivers, if any, and quits them. Used when a prelaunched test is
+   * not going to be executed.
+   */
+  public void discardPrelaunch() {
+    Future<Object> future = this.prelaunchFuture;
+    this.prelaunchFuture = null;
+    if (future == null) {
+      return;
+    }
+    boolean reusable = false;
+    try {
+      future.get();
+      reusable = true;
+    } catch (Exception e) {
+      logger.warn("Exception while discarding prelaunched web drivers", e);
+    }
+    this.releaseDrivers(reusable);
+  }
+
+  /**
+   * Quits the web drivers or, when the test reuses sessions and they are still usable, gives them
+   * back to WebDriverPool.
+   *
+   * @param reusable true if the web drivers can be used by another test.
+   */
+  private void releaseDrivers(boolean reusable) {
+    if (!this.testConf.isReuseSessions()) {
+      WebDriverUtility.closeDrivers(this.webDriverList);
+    } else if (reusable) {
+      WebDriverPool.getInstance().giveBack(this.browserList, this.webDriverList);
+    } else {
+      WebDriverPool.getInstance().evict(this.webDriverList);
+    }
+  }
+
+  /**
+   * Makes the web drivers available, either by waiting for the prelaunched ones or by creating
+   * them. A prelaunch is used only once, a retry creates new web drivers.
+   *
+   * @throws Exception the exception thrown while creating the web drivers.
+   */
+  private void obtainDrivers() throws Exception {
+    Future<Object> future = this.prelaunchFuture;
+    this.prelaunchFuture = null;
+    if (future == null) {
+      this.populateDrivers(this.testName);
+      return;
+    }
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
     }
   }
 
@@ -143,8 +346,11 @@ public class TestManager implements Callable<Object> {
    * { "browserName": "firefox", "version": "48.0", "platform": "Mac OS X 10.9" } ],
    * "destination": [ { "browserName": "chrome", "version": "56.0", "platform": "Linux" },
    * { "browserName": "firefox", "version": "48.0", "platform": "Mac OS X 10.9" } ],
-   * "payload": { "timeTaken": 9953, "result": "SUCCESSFUL" }, "meta": { "totalTests": 1,
-   * "lastTest": true } }
+   * "result": { "timeTaken": 9953, "payload": { "result": "SUCCESSFUL" },
+   * "sessionCreationTime": [ 4210, 5874 ] }, "meta": { "totalTests": 1, "lastTest": true } }
+   * <p>
+   * sessionCreationTime holds the time in ms taken to create the session of each browser in the
+   * order of the target array, -1 if the session could not be created.
    *
    * @param object of type Exception or String
    * @return
@@ -229,6 +435,13 @@ public class TestManager implements Callable<Object> {
     } else {
       jsonObjectBuilder.add("payload", (String) payload);
     }
+    if (this.sessionCreationTimes != null) {
+      JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
+      for (long sessionCreationTime : this.sessionCreationTimes) {
+        jsonArrayBuilder.add(sessionCreationTime);
+      }
+      jsonObjectBuilder.add("sessionCreationTime", jsonArrayBuilder);
+    }
     return jsonObjectBuilder;
   }
 
@@ -236,7 +449,8 @@ public class TestManager implements Callable<Object> {
    * Develops meta json object. See developResult() above for details.
    * <p>
    * Sample output: {"totalTests": 1, "lastTest":true}} where; totalTests would be part of the first
-   * result while lastTest would be part of the last result from the batch.
+   * result while lastTest would be part of the last result from the batch. The first result also
+   * carries the browser list and, if the batch is a covering set, its "tuples".
    *
    * @return JsonObjectBuilder
    */
@@ -251,6 +465,9 @@ public class TestManager implements Callable<Object> {
       if (withBrowserList) {
         jsonObjectBuilder.add("browsers", Configurator.getInstance().getBrowserListJsonArray())
             .add("description", this.testConf.getDescription());
+        if (this.tupleJsonArray != null) {
+          jsonObjectBuilder.add("tuples", this.tupleJsonArray);
+        }
       }
     }
 
@@ -272,10 +489,10 @@ public class TestManager implements Callable<Object> {
 
     // Populate WebDrivers
     try {
-      this.populateDrivers(this.testName);
+      this.obtainDrivers();
     } catch (Exception e) {
       logger.error("Exception while populating web drivers", e);
-      WebDriverUtility.closeDrivers(this.webDriverList);
+      this.releaseDrivers(false);
       if (this.retryCount < this.testConf.getMaxRetryCount()) {
         this.retryCount++;
         return this;
@@ -300,11 +517,14 @@ public class TestManager implements Callable<Object> {
         this.timeTaken = System.currentTimeMillis() - startTime;
       } catch (Exception e) {
         logger.warn("Exception while running the test", e);
+        if (e instanceof WebDriverException) {
+          this.gridError = true;
+        }
         this.timeTaken = System.currentTimeMillis() - startTime;
         object = e;
       } finally {
         this.populateInfoFromNavigator();
-        WebDriverUtility.closeDrivers(this.webDriverList);
+        this.releaseDrivers(!(object instanceof Exception));
       }
     }
 
@@ -322,14 +542,12 @@ public class TestManager implements Callable<Object> {
       if (this.testConf.getCallbackURL() == null) {
         logger.warn("No callback specified for " + this.testConf);
       } else {
-        CallbackThread callbackThread =
-            new CallbackThread(this.testConf.getCallbackURL(), jsonObject);
-        // if no "meta", post result in other thread; if "meta", post result in same thread
-        // "meta" is included for the first and last tests, that are executed synchronously
-        if (jsonObject.getString("meta", null) == null) {
-          callbackThread.start();
+        // "meta" is included for the first and last tests, whose results must reach the callback
+        // before, respectively after, the results of the other tests.
+        if (jsonObject.containsKey("meta")) {
+          ResultSender.getInstance().postAndWait(this.testConf.getCallbackURL(), jsonObject);
         } else {
-          callbackThread.postResult();
+          ResultSender.getInstance().post(this.testConf.getCallbackURL(), jsonObject);
         }
       }
 
@@ -121,6 +121,17 @@ public class Utility {
     return value != null && !value.isEmpty();
   }
 
+  /**
+   * Removes the user info, e.g. the username and access key of a cloud vendor, from a Selenium hub
+   * url so that it can be logged or reported.
+   *
+   * @param remoteAddress string representation of the Selenium hub url.
+   * @return the url without its user info.
+   */
+  public static String redact(String remoteAddress) {
+    return remoteAddress == null ? null : remoteAddress.replaceFirst("//[^/]*@", "//");
+  }
+
   /**
    * Prints the stack trace of the provided exception object.
    *
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import org.apache.log4j.Logger;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.webrtc.kite.config.Browser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of idle WebDriver sessions as a singleton, used by the tests having 'reuseSessions'
+ * enabled.
+ * <p>
+ * Sessions are kept per remote address and browser configuration. A session is reset before being
+ * handed out again (storage and cookies cleared, then about:blank) and is quit instead when the
+ * reset fails, when it has been idle for too long or when it has reached its maximum age. Mobile
+ * browsers are never pooled.
+ * <p>
+ * Idle sessions keep their slot in SessionCapacityManager until they are quit.
+ */
+public class WebDriverPool {
+
+  private static final Logger logger = Logger.getLogger(WebDriverPool.class.getName());
+
+  /* Cloud grids usually end a session after 90 seconds without a command. */
+  private static final long MAX_IDLE_TIME = 60 * 1000;
+  private static final long MAX_SESSION_AGE = 15 * 60 * 1000;
+
+  /* Singleton boiler plate code */
+  private static WebDriverPool instance = new WebDriverPool();
+
+  /**
+   * Gets instance.
+   *
+   * @return the instance
+   */
+  public static WebDriverPool getInstance() {
+    return instance;
+  }
+
+  private WebDriverPool() {
+  }
+  /* Singleton boiler plate code */
+
+  private final Map<String, Map<Browser, LinkedList<PooledSession>>> idleSessionMap =
+      new HashMap<String, Map<Browser, LinkedList<PooledSession>>>();
+  private final Map<WebDriver, Long> creationTimeMap = new IdentityHashMap<WebDriver, Long>();
+
+  private int reusedSessions;
+  private int evictedSessions;
+
+  /**
+   * Returns a reset idle session for the given browser, or null if there is none.
+   *
+   * @param browser the browser, whose web driver info is updated from the session.
+   * @return WebDriver or null.
+   */
+  public WebDriver borrow(Browser browser) {
+    while (true) {
+      PooledSession pooledSession = this.pollIdle(browser);
+      if (pooledSession == null) {
+        return null;
+      }
+      long now = System.currentTimeMillis();
+      if (now - pooledSession.idleSince > MAX_IDLE_TIME
+          || now - this.getCreationTime(pooledSession.webDriver) > MAX_SESSION_AGE) {
+        this.quit(browser, pooledSession.webDriver);
+        continue;
+      }
+      try {
+        reset(pooledSession.webDriver);
+      } catch (Exception e) {
+        logger.warn("Exception while resetting a pooled WebDriver, evicting it", e);
+        this.quit(browser, pooledSession.webDriver);
+        continue;
+      }
+      // The tuple has acquired its own slot for this session.
+      SessionCapacityManager.getInstance().unpark(browser);
+      Capabilities capabilities = ((RemoteWebDriver) pooledSession.webDriver).getCapabilities();
+      browser.setWebDriverVersion(capabilities.getVersion());
+      browser.setWebDriverPlatform(capabilities.getPlatform().name());
+      synchronized (this) {
+        this.reusedSessions++;
+      }
+      return pooledSession.webDriver;
+    }
+  }
+
+  /**
+   * Gives the sessions of a successful test back to the pool. The sessions that cannot be pooled
+   * are quit.
+   *
+   * @param browserList   the tuple.
+   * @param webDriverList the sessions, in the order of the tuple.
+   */
+  public void giveBack(List<Browser> browserList, List<WebDriver> webDriverList) {
+    for (int i = 0; i < webDriverList.size(); i++) {
+      Browser browser = browserList.get(i);
+      WebDriver webDriver = webDriverList.get(i);
+      if (browser.getMobile() != null || System.currentTimeMillis() - this.getCreationTime(
+          webDriver) > MAX_SESSION_AGE) {
+        this.forget(webDriver);
+        WebDriverUtility.closeDrivers(Collections.singletonList(webDriver));
+        continue;
+      }
+      SessionCapacityManager.getInstance().park(browser);
+      synchronized (this) {
+        Map<Browser, LinkedList<PooledSession>> browserMap =
+            this.idleSessionMap.get(browser.getRemoteAddress());
+        if (browserMap == null) {
+          browserMap = new HashMap<Browser, LinkedList<PooledSession>>();
+          this.idleSessionMap.put(browser.getRemoteAddress(), browserMap);
+        }
+        LinkedList<PooledSession> sessionList = browserMap.get(browser);
+        if (sessionList == null) {
+          sessionList = new LinkedList<PooledSession>();
+          browserMap.put(browser, sessionList);
+        }
+        sessionList.add(new PooledSession(webDriver));
+      }
+    }
+  }
+
+  /**
+   * Records the time a session has been created at, from which its age is counted.
+   *
+   * @param webDriver    the session.
+   * @param creationTime time in ms.
+   */
+  public synchronized void recordCreation(WebDriver webDriver, long creationTime) {
+    this.creationTimeMap.put(webDriver, creationTime);
+  }
+
+  /**
+   * Evicts the given sessions, typically after a failure. Sessions unknown to the pool are quit
+   * as well.
+   *
+   * @param webDriverList the sessions.
+   */
+  public void evict(List<WebDriver> webDriverList) {
+    for (WebDriver webDriver : webDriverList) {
+      this.forget(webDriver);
+    }
+    WebDriverUtility.closeDrivers(webDriverList);
+  }
+
+  /**
+   * Quits the idle sessions on a remote that cannot be handed out to the given browser, to make
+   * room for it. The idle sessions of the browser itself already count as free slots for it.
+   *
+   * @param remoteAddress the Selenium hub url.
+   * @param browser       the browser waiting for a slot on the remote.
+   * @return the number of sessions quit.
+   */
+  public int evictIdle(String remoteAddress, Browser browser) {
+    List<Browser> browserList = new ArrayList<Browser>();
+    List<WebDriver> webDriverList = new ArrayList<WebDriver>();
+    synchronized (this) {
+      Map<Browser, LinkedList<PooledSession>> browserMap = this.idleSessionMap.get(remoteAddress);
+      if (browserMap == null) {
+        return 0;
+      }
+      for (Map.Entry<Browser, LinkedList<PooledSession>> entry : browserMap.entrySet()) {
+        if (entry.getKey().equals(browser)) {
+          continue;
+        }
+        for (PooledSession pooledSession : entry.getValue()) {
+          browserList.add(entry.getKey());
+          webDriverList.add(pooledSession.webDriver);
+        }
+        entry.getValue().clear();
+      }
+    }
+    for (int i = 0; i < webDriverList.size(); i++) {
+      this.quit(browserList.get(i), webDriverList.get(i));
+    }
+    return webDriverList.size();
+  }
+
+  /**
+   * Quits all the idle sessions.
+   *
+   * @return the number of sessions quit.
+   */
+  public int close() {
+    List<Browser> browserList = new ArrayList<Browser>();
+    List<WebDriver> webDriverList = new ArrayList<WebDriver>();
+    synchronized (this) {
+      for (Map<Browser, LinkedList<PooledSession>> browserMap : this.idleSessionMap.values()) {
+        for (Map.Entry<Browser, LinkedList<PooledSession>> entry : browserMap.entrySet()) {
+          for (PooledSession pooledSession : entry.getValue()) {
+            browserList.add(entry.getKey());
+            webDriverList.add(pooledSession.webDriver);
+          }
+        }
+      }
+      this.idleSessionMap.clear();
+      if (webDriverList.size() > 0 || this.reusedSessions > 0) {
+        logger.info("Closing the WebDriver pool :: " + webDriverList.size() + " idle sessions, "
+            + this.reusedSessions + " reused, " + this.evictedSessions + " evicted");
+      }
+      this.reusedSessions = 0;
+      this.evictedSessions = 0;
+    }
+    for (int i = 0; i < webDriverList.size(); i++) {
+      this.quit(browserList.get(i), webDriverList.get(i));
+    }
+    return webDriverList.size();
+  }
+
+  /**
+   * Removes and returns the oldest idle session for the given browser.
+   *
+   * @param browser the browser.
+   * @return PooledSession or null if there is none.
+   */
+  private synchronized PooledSession pollIdle(Browser browser) {
+    Map<Browser, LinkedList<PooledSession>> browserMap =
+        this.idleSessionMap.get(browser.getRemoteAddress());
+    if (browserMap == null) {
+      return null;
+    }
+    LinkedList<PooledSession> sessionList = browserMap.get(browser);
+    return sessionList == null ? null : sessionList.poll();
+  }
+
+  /**
+   * Quits an idle session and releases its slot.
+   *
+   * @param browser   the browser of the session.
+   * @param webDriver the session.
+   */
+  private void quit(Browser browser, WebDriver webDriver) {
+    this.forget(webDriver);
+    WebDriverUtility.closeDrivers(Collections.singletonList(webDriver));
+    SessionCapacityManager.getInstance().unpark(browser);
+    synchronized (this) {
+      this.evictedSessions++;
+    }
+  }
+
+  /**
+   * Returns the time at which the session has been created, or the time at which the pool first
+   * saw it if its creation has not been recorded.
+   *
+   * @param webDriver the session.
+   * @return time in ms.
+   */
+  private synchronized long getCreationTime(WebDriver webDriver) {
+    Long creationTime = this.creationTimeMap.get(webDriver);
+    if (creationTime == null) {
+      creationTime = System.currentTimeMillis();
+      this.creationTimeMap.put(webDriver, creationTime);
+    }
+    return creationTime;
+  }
+
+  /**
+   * Removes every trace of the session from the pool.
+   *
+   * @param webDriver the session.
+   */
+  private synchronized void forget(WebDriver webDriver) {
+    this.creationTimeMap.remove(webDriver);
+    for (Map<Browser, LinkedList<PooledSession>> browserMap : this.idleSessionMap.values()) {
+      for (LinkedList<PooledSession> sessionList : browserMap.values()) {
+        Iterator<PooledSession> iterator = sessionList.iterator();
+        while (iterator.hasNext()) {
+          if (iterator.next().webDriver == webDriver) {
+            iterator.remove();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Clears the storage and the cookies of the current page, then opens about:blank.
+   *
+   * @param webDriver the session.
+   */
+  private static void reset(WebDriver webDriver) {
+    ((JavascriptExecutor) webDriver).executeScript(
+        "try { window.localStorage.clear(); window.sessionStorage.clear(); } catch (e) {}");
+    webDriver.manage().deleteAllCookies();
+    webDriver.get("about:blank");
+  }
+
+  /**
+   * An idle session with the time it was given back to the pool.
+   */
+  private static class PooledSession {
+
+    private final WebDriver webDriver;
+    private final long idleSince = System.currentTimeMillis();
+
+    private PooledSession(WebDriver webDriver) {
+      this.webDriver = webDriver;
+    }
+
+  }
+
+}
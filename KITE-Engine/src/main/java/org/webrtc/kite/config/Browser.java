@@ -56,6 +56,7 @@ public class Browser extends KiteConfigObject {
   private String pathToBinary;
   private String fakeMediaFile;
   private Mobile mobile;
+  private int maxInstances;
 
   // Info from web driver
   private String webDriverVersion;
@@ -65,9 +66,6 @@ public class Browser extends KiteConfigObject {
   private String userAgentVersion;
   private String userAgentPlatform;
 
-  // Private
-  private int maxInstances;
-
   /**
    * Constructs a new Browser for the given browser name, without specifying version and platform.
    *
@@ -107,6 +105,10 @@ public class Browser extends KiteConfigObject {
     this.remoteAddress = jsonObject.getString("remoteAddress", remoteAddress);
     this.pathToBinary = jsonObject.getString("pathToBinary", "");
     this.fakeMediaFile = jsonObject.getString("fakeMediaFile", null);
+    this.maxInstances = jsonObject.getInt("maxInstances", 0);
+    if (this.maxInstances < 0) {
+      throw new KiteInsufficientValueException("maxInstances must not be negative.");
+    }
     JsonValue jsonValue = jsonObject.getOrDefault("flags", null);
     if (jsonValue != null) {
       JsonArray flagArray = (JsonArray) jsonValue;
@@ -137,6 +139,7 @@ public class Browser extends KiteConfigObject {
     this.pathToBinary = browser.getPathToBinary();
     this.fakeMediaFile =browser.getFakeMediaFile();
     this.mobile = browser.getMobile();
+    this.maxInstances = browser.getMaxInstances();
   }
 
   /**
@@ -17,6 +17,7 @@
 package org.webrtc.kite.config;
 
 import org.quartz.Job;
+import org.webrtc.kite.RemoteRouter;
 import org.webrtc.kite.grid.RemoteAddressManager;
 import org.webrtc.kite.grid.RemoteGridFetcher;
 
@@ -41,6 +42,10 @@ public abstract class ConfigHandler {
    * The Browser list.
    */
   protected List<Browser> browserList;
+  /**
+   * The Remote list.
+   */
+  protected List<Remote> remoteList;
 
   /**
    * Gets test list.
@@ -60,6 +65,15 @@ public abstract class ConfigHandler {
     return this.browserList;
   }
 
+  /**
+   * Gets remote list.
+   *
+   * @return the remote list
+   */
+  public List<Remote> getRemoteList() {
+    return this.remoteList;
+  }
+
   /**
    * Builds the browser list and sets the remote address in each of the browser object.
    * <p>
@@ -86,6 +100,7 @@ public abstract class ConfigHandler {
     Set<Browser> set = new LinkedHashSet<Browser>();
 
     List<Remote> remoteList = remoteManager.getRemoteList();
+    this.remoteList = remoteList;
     int remoteListSize = remoteList.size();
 
     if (remoteListSize == 1) {
@@ -117,9 +132,12 @@ public abstract class ConfigHandler {
             browserClass.getConstructor(new Class[] {String.class, JsonObject.class});
         Browser browser = (Browser) constructor.newInstance(null, object);
         if (browser.getRemoteAddress() == null) {
-          String remoteAddress = remoteAddressManager.findAppropriateRemoteAddress(browser);
-          browser.setRemoteAddress(
-              remoteAddress == null ? defaultRemote.getRemoteAddress() : remoteAddress);
+          List<String> remoteAddressList =
+              remoteAddressManager.findAppropriateRemoteAddresses(browser);
+          browser.setRemoteAddress(remoteAddressList.isEmpty()
+              ? defaultRemote.getRemoteAddress() : remoteAddressList.get(0));
+          // The remote is chosen again for every session when several of them offer the browser.
+          RemoteRouter.getInstance().setCandidates(browser, remoteAddressList);
         }
         set.add(browser);
       }
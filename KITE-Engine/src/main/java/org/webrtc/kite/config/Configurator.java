@@ -18,6 +18,8 @@ package org.webrtc.kite.config;
 
 import org.apache.log4j.Logger;
 import org.quartz.Job;
+import org.webrtc.kite.ResultSender;
+import org.webrtc.kite.SessionCapacityManager;
 import org.webrtc.kite.Utility;
 import org.webrtc.kite.exception.KiteGridException;
 import org.webrtc.kite.exception.KiteInsufficientValueException;
@@ -32,7 +34,6 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 
@@ -43,10 +44,19 @@ import java.util.List;
  * "name": "config_name",
  * "interval": "HOURLY|DAILY|WEEKLY",
  * "callback": "http://localhost:8080/kiteweb/datacenter",
+ * "callbackBatchSize": 20,
+ * "maxConcurrentTests": 2,
+ * "maxConcurrentTuples": 10,
  * "remotes": [],
  * "tests": [],
  * "browsers": []
  * }
+ * <p>
+ * maxConcurrentTests is the number of tests run at the same time by a job, 1 by default.
+ * maxConcurrentTuples is the number of browser tuples run at the same time over all the tests,
+ * 0 (the default) for no other limit than the noOfThreads of every test.
+ * callbackBatchSize is the maximum number of results posted together to the callback as a json
+ * array, 1 (the default) for dashboards accepting a single result per post.
  */
 public class Configurator {
 
@@ -73,6 +83,8 @@ public class Configurator {
   private int type;
   private String name;
   private int interval;
+  private int maxConcurrentTests;
+  private int maxConcurrentTuples;
 
   private ConfigHandler configHandler;
 
@@ -110,6 +122,24 @@ public class Configurator {
     return this.interval;
   }
 
+  /**
+   * Gets the number of tests run at the same time.
+   *
+   * @return the max concurrent tests
+   */
+  public int getMaxConcurrentTests() {
+    return this.maxConcurrentTests;
+  }
+
+  /**
+   * Gets the number of browser tuples run at the same time over all the tests.
+   *
+   * @return the max concurrent tuples, 0 if unlimited
+   */
+  public int getMaxConcurrentTuples() {
+    return this.maxConcurrentTuples;
+  }
+
   /**
    * Gets config handler.
    *
@@ -178,6 +208,19 @@ public class Configurator {
 
     String callbackURL = jsonObject.getString("callback", null);
 
+    int callbackBatchSize = jsonObject.getInt("callbackBatchSize", 1);
+    if (callbackBatchSize < 1)
+      throw new KiteInsufficientValueException("callbackBatchSize is less than one.");
+    ResultSender.getInstance().setBatchSize(callbackBatchSize);
+
+    this.maxConcurrentTests = jsonObject.getInt("maxConcurrentTests", 1);
+    if (this.maxConcurrentTests < 1)
+      throw new KiteInsufficientValueException("maxConcurrentTests is less than one.");
+
+    this.maxConcurrentTuples = jsonObject.getInt("maxConcurrentTuples", 0);
+    if (this.maxConcurrentTuples < 0)
+      throw new KiteInsufficientValueException("maxConcurrentTuples is a negative value.");
+
     List<JsonObject> testObjectList = (List<JsonObject>) Utility
         .throwNoKeyOrBadValueException(jsonObject, "tests", JsonArray.class, false);
     if (testObjectList.size() < 1)
@@ -205,58 +248,64 @@ public class Configurator {
     this.configHandler =
         new ConfigTypeOneHandler(callbackURL, remoteObjectList, testObjectList, browserObjectList);
 
+    for (Remote remote : this.configHandler.getRemoteList()) {
+      SessionCapacityManager.getInstance()
+          .setRemoteLimit(remote.getRemoteAddress(), remote.getMaxInstances());
+    }
+    SessionCapacityManager.getInstance().setTupleLimit(this.maxConcurrentTuples);
+
     logger.info("Finished reading the configuration file");
   }
 
   /**
-   * Creates a matrix of browser tuples.
+   * Creates a matrix of browser tuples having at least one browser in focus, in a shuffled order.
+   * The tuples are built lazily while iterating, see TupleSpace.
    *
    * @param tupleSize tuple size
-   * @return a matrix of browser tuples as List<List<Browser>>
+   * @return a matrix of browser tuples as Iterable<List<Browser>>
    */
-  public List<List<Browser>> buildTuples(int tupleSize) {
-
-    List<Browser> focusedList = new ArrayList<>();
-    List<Browser> browserList = (List<Browser>) this.configHandler.getBrowserList();
-    for (Browser browser: browserList){
-      if (browser.isFocus()){
-        focusedList.add(browser);
-      }
-    }
-
-    List<List<Browser>> listOfTuples = new ArrayList<List<Browser>>();
-
-    double totalTuples = Math.pow(this.configHandler.getBrowserList().size(), tupleSize);
-
-    logger.info(totalTuples + " test cases to run");
-
-    for (int i = 0; i < totalTuples; i++)
-      listOfTuples.add(new ArrayList<Browser>());
+  public Iterable<List<Browser>> buildTuples(int tupleSize) {
+    long seed = this.timeStamp + tupleSize;
+    TupleSpace tupleSpace =
+        new TupleSpace((List<Browser>) this.configHandler.getBrowserList(), tupleSize, seed);
+    logger.info(tupleSpace.size() + " test cases to run (shuffle seed " + seed + ")");
+    return tupleSpace;
+  }
 
-    for (int i = 0; i < tupleSize; i++) {
-      double marge = totalTuples / Math.pow(this.configHandler.getBrowserList().size(), i + 1);
-      double rep = Math.pow(this.configHandler.getBrowserList().size(), i);
-      for (int x = 0; x < rep; x++) {
-        for (int j = 0; j < this.configHandler.getBrowserList().size(); j++) {
-          for (int k = 0; k < marge; k++) {
-            (listOfTuples.get((int) (x * totalTuples / rep + j * marge + k)))
-                .add(i, new Browser(this.configHandler.getBrowserList().get(j)));
-          }
-        }
-      }
-    }
-    
-    List<List<Browser>> tempListOfTuples = new ArrayList<>(listOfTuples);
-    for (List<Browser> tuple: tempListOfTuples){
-      if (Collections.disjoint(tuple,focusedList)){
-        listOfTuples.remove(tuple);
-      }
+  /**
+   * Creates a set of browser tuples covering every combination of 'coverage' browsers at any
+   * 'coverage' positions, see CoveringArray. Falls back to the full matrix if coverage is 0 or not
+   * below the tuple size.
+   *
+   * @param tupleSize tuple size
+   * @param coverage  strength of the coverage, 2 for pairwise.
+   * @return a set of browser tuples as Iterable<List<Browser>>
+   */
+  public Iterable<List<Browser>> buildTuples(int tupleSize, int coverage) {
+    if (coverage < 1 || coverage >= tupleSize) {
+      return this.buildTuples(tupleSize);
     }
-    
-    Collections.shuffle(listOfTuples);
+    long seed = this.timeStamp + tupleSize;
+    List<List<Browser>> listOfTuples = new CoveringArray(
+        (List<Browser>) this.configHandler.getBrowserList(), tupleSize, coverage, seed).build();
+    logger.info(listOfTuples.size() + " test cases to run, covering all " + coverage
+        + "-wise combinations (seed " + seed + ")");
     return listOfTuples;
   }
 
+  /**
+   * Returns a JsonArrayBuilder of the indexes of the browsers of a tuple in the browser list.
+   *
+   * @param browserList the tuple.
+   * @return JsonArrayBuilder browser index json array
+   */
+  public JsonArrayBuilder getTupleJsonArray(List<Browser> browserList) {
+    JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
+    for (Browser browser : browserList)
+      jsonArrayBuilder.add(this.configHandler.getBrowserList().indexOf(browser));
+    return jsonArrayBuilder;
+  }
+
   /**
    * Returns a JsonArrayBuilder based on the browser list.
    *
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A t-wise covering set of browser tuples.
+ * <p>
+ * Instead of every tuple of the matrix, the covering set only guarantees that, for every t
+ * positions of the tuple and every t browsers, at least one tuple has those browsers at those
+ * positions. With a strength of 2 (pairwise) every browser meets every other browser, as caller and
+ * as callee, in a number of tuples growing with n^2 rather than n^tupleSize.
+ * <p>
+ * The set is built greedily: starting from an uncovered combination, the remaining positions are
+ * filled one by one with the browser covering the most new combinations. Like the full matrix,
+ * every tuple has at least one browser in focus.
+ */
+public class CoveringArray {
+
+  private final List<Browser> browserList;
+  private final int tupleSize;
+  private final int strength;
+  private final int browserCount;
+  private final boolean[] focused;
+  private final Random random;
+
+  private final List<int[]> combinationList = new ArrayList<int[]>();
+  private final int combinationSize;
+  private boolean[] covered;
+  private int uncoveredCount;
+
+  /**
+   * Constructs a new CoveringArray for the given browsers, tuple size, strength and seed.
+   *
+   * @param browserList list of Browser.
+   * @param tupleSize   number of browsers in a tuple.
+   * @param strength    number of positions whose combinations are covered, below tupleSize.
+   * @param seed        seed used to break the ties.
+   */
+  public CoveringArray(List<Browser> browserList, int tupleSize, int strength, long seed) {
+    this.browserList = browserList;
+    this.tupleSize = tupleSize;
+    this.strength = strength;
+    this.browserCount = browserList.size();
+    this.random = new Random(seed);
+
+    this.focused = new boolean[this.browserCount];
+    for (int i = 0; i < this.browserCount; i++) {
+      this.focused[i] = browserList.get(i).isFocus();
+    }
+
+    this.addCombinations(new int[strength], 0, 0);
+    int size = 1;
+    for (int i = 0; i < strength; i++) {
+      size *= this.browserCount;
+    }
+    this.combinationSize = size;
+  }
+
+  /**
+   * Builds the covering set.
+   *
+   * @return a list of browser tuples made of copies of the browsers.
+   */
+  public List<List<Browser>> build() {
+    List<List<Browser>> listOfTuples = new ArrayList<List<Browser>>();
+    boolean hasFocus = false;
+    for (boolean focus : this.focused) {
+      hasFocus |= focus;
+    }
+    if (!hasFocus || this.strength < 1 || this.strength >= this.tupleSize) {
+      return listOfTuples;
+    }
+
+    this.covered = new boolean[this.combinationList.size() * this.combinationSize];
+    this.uncoveredCount = this.covered.length;
+
+    int next = 0;
+    while (this.uncoveredCount > 0) {
+      while (this.covered[next]) {
+        next++;
+      }
+      int[] tuple = this.buildTuple(next);
+      this.cover(tuple);
+
+      List<Browser> browserTuple = new ArrayList<Browser>(this.tupleSize);
+      for (int browserIndex : tuple) {
+        browserTuple.add(new Browser(this.browserList.get(browserIndex)));
+      }
+      listOfTuples.add(browserTuple);
+    }
+    return listOfTuples;
+  }
+
+  /**
+   * Builds a tuple covering the given combination and as many other uncovered combinations as the
+   * greedy choice allows.
+   *
+   * @param combination index of an uncovered combination.
+   * @return browser indexes of the tuple.
+   */
+  private int[] buildTuple(int combination) {
+    int[] tuple = new int[this.tupleSize];
+    Arrays.fill(tuple, -1);
+
+    int[] positions = this.combinationList.get(combination / this.combinationSize);
+    int values = combination % this.combinationSize;
+    for (int i = positions.length - 1; i >= 0; i--) {
+      tuple[positions[i]] = values % this.browserCount;
+      values /= this.browserCount;
+    }
+
+    List<Integer> freePositions = new ArrayList<Integer>();
+    for (int position = 0; position < this.tupleSize; position++) {
+      if (tuple[position] == -1) {
+        freePositions.add(position);
+      }
+    }
+    Collections.shuffle(freePositions, this.random);
+
+    for (int position : freePositions) {
+      tuple[position] = this.bestBrowser(tuple, position, false);
+    }
+
+    if (!this.hasFocus(tuple)) {
+      int position = freePositions.get(0);
+      tuple[position] = -1;
+      tuple[position] = this.bestBrowser(tuple, position, true);
+    }
+    return tuple;
+  }
+
+  /**
+   * Chooses the browser covering the most uncovered combinations at the given position, given the
+   * positions already filled. Ties are broken at random.
+   *
+   * @param tuple       browser indexes, -1 for the positions not filled yet.
+   * @param position    position to fill.
+   * @param focusedOnly true to only consider browsers in focus.
+   * @return browser index.
+   */
+  private int bestBrowser(int[] tuple, int position, boolean focusedOnly) {
+    int best = -1;
+    int bestScore = -1;
+    int ties = 0;
+    for (int browser = 0; browser < this.browserCount; browser++) {
+      if (focusedOnly && !this.focused[browser]) {
+        continue;
+      }
+      tuple[position] = browser;
+      int score = this.countUncovered(tuple, position);
+      if (score > bestScore) {
+        best = browser;
+        bestScore = score;
+        ties = 1;
+      } else if (score == bestScore && this.random.nextInt(++ties) == 0) {
+        best = browser;
+      }
+    }
+    tuple[position] = -1;
+    return best;
+  }
+
+  /**
+   * Counts the uncovered combinations involving the given position and filled positions only.
+   *
+   * @param tuple    browser indexes, -1 for the positions not filled yet.
+   * @param position position that has just been filled.
+   * @return number of uncovered combinations.
+   */
+  private int countUncovered(int[] tuple, int position) {
+    int count = 0;
+    for (int i = 0; i < this.combinationList.size(); i++) {
+      int index = this.indexOf(i, tuple, position);
+      if (index >= 0 && !this.covered[index]) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Marks all the combinations of the tuple as covered.
+   *
+   * @param tuple browser indexes.
+   */
+  private void cover(int[] tuple) {
+    for (int i = 0; i < this.combinationList.size(); i++) {
+      int index = this.indexOf(i, tuple, -1);
+      if (!this.covered[index]) {
+        this.covered[index] = true;
+        this.uncoveredCount--;
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the combination of browsers found in the tuple at the given positions.
+   *
+   * @param positionsIndex index of the positions in the list of combinations.
+   * @param tuple          browser indexes, -1 for the positions not filled yet.
+   * @param position       position that must be part of the combination, -1 for any.
+   * @return index of the combination, -1 if it does not involve the position or is not filled.
+   */
+  private int indexOf(int positionsIndex, int[] tuple, int position) {
+    int[] positions = this.combinationList.get(positionsIndex);
+    boolean involved = position == -1;
+    int index = 0;
+    for (int p : positions) {
+      if (tuple[p] == -1) {
+        return -1;
+      }
+      involved |= p == position;
+      index = index * this.browserCount + tuple[p];
+    }
+    return involved ? positionsIndex * this.combinationSize + index : -1;
+  }
+
+  /**
+   * Checks whether the tuple has at least one browser in focus.
+   *
+   * @param tuple browser indexes.
+   * @return true if one of the browsers is in focus.
+   */
+  private boolean hasFocus(int[] tuple) {
+    for (int browser : tuple) {
+      if (this.focused[browser]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Enumerates all the sorted combinations of 'strength' positions out of 'tupleSize'.
+   *
+   * @param positions combination being built.
+   * @param depth     number of positions already chosen.
+   * @param start     first position that can be chosen.
+   */
+  private void addCombinations(int[] positions, int depth, int start) {
+    if (depth == positions.length) {
+      this.combinationList.add(positions.clone());
+      return;
+    }
+    for (int position = start; position < this.tupleSize; position++) {
+      positions[depth] = position;
+      this.addCombinations(positions, depth + 1, position + 1);
+    }
+  }
+
+}
@@ -36,10 +36,15 @@ import java.util.Map;
  * "name": "local",
  * "username": "xxx",
  * "accesskey": "xxx",
- * "remoteAddress": "http://localhost:4444/wd/hub"
+ * "remoteAddress": "http://localhost:4444/wd/hub",
+ * "maxInstances": 5,
+ * "catalogTtl": 24
  * }
  * <p>
- * If name is 'local' then remoteAddress is mandatory to provide.
+ * If name is 'local' then remoteAddress is mandatory to provide. 'maxInstances' is optional and
+ * limits the number of sessions running at the same time on the remote, 0 means unlimited.
+ * 'catalogTtl' is optional and is the number of hours the list of browsers supported by a cloud
+ * remote is used before it is checked for changes, 24 by default.
  * <p>
  * See SupportedRemote for possible values of the name.
  */
@@ -58,6 +63,8 @@ public class Remote extends KiteConfigObject {
   private String username;
   private String accesskey;
   private String remoteAddress;
+  private int maxInstances;
+  private int catalogTtl;
 
   /**
    * Constructs a new Remote with given JsonObject.
@@ -79,6 +86,8 @@ public class Remote extends KiteConfigObject {
       this.remoteAddress =
           SupportedRemote.valueOf(this.name).remoteAddress(this.username, this.accesskey);
     }
+    this.maxInstances = Math.max(0, jsonObject.getInt("maxInstances", 0));
+    this.catalogTtl = Math.max(0, jsonObject.getInt("catalogTtl", 24));
   }
 
   /**
@@ -99,6 +108,15 @@ public class Remote extends KiteConfigObject {
     return remoteAddress;
   }
 
+  /**
+   * Gets max instances.
+   *
+   * @return the max instances, 0 if unlimited
+   */
+  public int getMaxInstances() {
+    return maxInstances;
+  }
+
   /**
    * Checks whether the Remote represents 'local'.
    *
@@ -114,19 +132,25 @@ public class Remote extends KiteConfigObject {
    * @return RemoteGridFetcher grid fetcher
    */
   public RemoteGridFetcher getGridFetcher() {
+    RemoteGridFetcher fetcher;
     switch (this.name) {
       case "saucelabs":
-        return new SauceLabsGridFetcher(PATH_TO_DB, this.remoteAddress,
+        fetcher = new SauceLabsGridFetcher(PATH_TO_DB, this.remoteAddress,
             SupportedRemote.saucelabs.restApiUrl());
+        break;
       case "browserstack":
-        return new BrowserStackGridFetcher(PATH_TO_DB, this.remoteAddress,
+        fetcher = new BrowserStackGridFetcher(PATH_TO_DB, this.remoteAddress,
             SupportedRemote.browserstack.restApiUrl(), this.username, this.accesskey);
+        break;
       case "testingbot":
-        return new TestingBotGridFetcher(PATH_TO_DB, this.remoteAddress,
+        fetcher = new TestingBotGridFetcher(PATH_TO_DB, this.remoteAddress,
             SupportedRemote.testingbot.restApiUrl());
+        break;
       default:
         return null;
     }
+    fetcher.setCatalogTtl(this.catalogTtl * 3600000L);
+    return fetcher;
   }
 
   @Override public JsonObjectBuilder getJsonObjectBuilder() {
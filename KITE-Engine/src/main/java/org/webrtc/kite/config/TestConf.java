@@ -31,9 +31,30 @@ import javax.json.JsonObjectBuilder;
  * "testImpl": "org.webrtc.kite.IceConnectionTest",
  * "payload": "A custom json object",
  * "noOfThreads": 10,
+ * "minThreads": 2,
  * "maxRetryCount": 2,
+ * "prelaunch": 2,
+ * "reuseSessions": true,
+ * "coverage": 2,
  * "callback": "http://test.com/resulthandler"
  * }
+ * <p>
+ * minThreads, when below noOfThreads, makes the number of browser tuples run at the same time
+ * adaptive: it starts at minThreads and grows up to noOfThreads while the grid keeps up, and is
+ * cut down as soon as sessions start slowly or fail, see AdaptiveConcurrency. It defaults to
+ * noOfThreads, which keeps the number fixed.
+ * <p>
+ * prelaunch is the number of queued browser tuples whose sessions are started ahead of time, while
+ * the running tests are still busy, so that the next test can start as soon as a thread frees up.
+ * It defaults to 0, which disables the pipelining.
+ * <p>
+ * reuseSessions keeps the sessions of a successful test open for the next tuples using the same
+ * browser configurations, see WebDriverPool. Only tests that do not depend on a fresh browser
+ * should enable it. It defaults to false.
+ * <p>
+ * coverage replaces the full matrix of browser tuples with a set covering every combination of
+ * that many browsers at any positions, e.g. 2 for pairwise. It only applies when it is below
+ * tupleSize and defaults to 0, which runs the full matrix.
  */
 public class TestConf extends Test {
 
@@ -42,7 +63,11 @@ public class TestConf extends Test {
 
   // Optional
   private int noOfThreads;
+  private int minThreads;
   private int maxRetryCount;
+  private int prelaunch;
+  private boolean reuseSessions;
+  private int coverage;
 
   /**
    * Constructs a new TestConf with the given callback url and JsonObject.
@@ -61,10 +86,27 @@ public class TestConf extends Test {
       throw new KiteInsufficientValueException(
           "noOfThreads for " + this.name + " is less than one.");
 
+    this.minThreads = jsonObject.getInt("minThreads", this.noOfThreads);
+    if (this.minThreads < 1 || this.minThreads > this.noOfThreads)
+      throw new KiteInsufficientValueException(
+          "minThreads for " + this.name + " is less than one or above noOfThreads.");
+
     this.maxRetryCount = jsonObject.getInt("maxRetryCount", 1);
     if (this.maxRetryCount < 0)
       throw new KiteInsufficientValueException(
           "maxRetryCount for " + this.name + " is a negative value.");
+
+    this.prelaunch = jsonObject.getInt("prelaunch", 0);
+    if (this.prelaunch < 0)
+      throw new KiteInsufficientValueException(
+          "prelaunch for " + this.name + " is a negative value.");
+
+    this.reuseSessions = jsonObject.getBoolean("reuseSessions", false);
+
+    this.coverage = jsonObject.getInt("coverage", 0);
+    if (this.coverage < 0)
+      throw new KiteInsufficientValueException(
+          "coverage for " + this.name + " is a negative value.");
   }
 
   /**
@@ -103,6 +145,24 @@ public class TestConf extends Test {
     this.noOfThreads = noOfThreads;
   }
 
+  /**
+   * Gets the minimum number of threads of the adaptive concurrency.
+   *
+   * @return the min threads, equal to noOfThreads if the concurrency is fixed
+   */
+  public int getMinThreads() {
+    return minThreads;
+  }
+
+  /**
+   * Sets the minimum number of threads of the adaptive concurrency.
+   *
+   * @param minThreads the min threads
+   */
+  public void setMinThreads(int minThreads) {
+    this.minThreads = minThreads;
+  }
+
   /**
    * Gets max retry count.
    *
@@ -121,6 +181,69 @@ public class TestConf extends Test {
     this.maxRetryCount = maxRetryCount;
   }
 
+  /**
+   * Gets the number of browser tuples to prelaunch.
+   *
+   * @return the prelaunch
+   */
+  public int getPrelaunch() {
+    return prelaunch;
+  }
+
+  /**
+   * Sets the number of browser tuples to prelaunch.
+   *
+   * @param prelaunch the prelaunch
+   */
+  public void setPrelaunch(int prelaunch) {
+    this.prelaunch = prelaunch;
+  }
+
+  /**
+   * Checks whether the test reuses WebDriver sessions.
+   *
+   * @return true if the sessions are reused
+   */
+  public boolean isReuseSessions() {
+    return reuseSessions;
+  }
+
+  /**
+   * Sets whether the test reuses WebDriver sessions.
+   *
+   * @param reuseSessions the reuse sessions
+   */
+  public void setReuseSessions(boolean reuseSessions) {
+    this.reuseSessions = reuseSessions;
+  }
+
+  /**
+   * Gets the strength of the coverage of the browser tuples.
+   *
+   * @return the coverage, 0 for the full matrix
+   */
+  public int getCoverage() {
+    return coverage;
+  }
+
+  /**
+   * Checks whether the browser tuples are a covering set rather than the full matrix.
+   *
+   * @return true if the coverage is set and below the tuple size
+   */
+  public boolean isCovering() {
+    return coverage >= 1 && coverage < this.getTupleSize();
+  }
+
+  /**
+   * Sets the strength of the coverage of the browser tuples.
+   *
+   * @param coverage the coverage
+   */
+  public void setCoverage(int coverage) {
+    this.coverage = coverage;
+  }
+
   /**
    * Returns an identifier for the TestConf in the following format:
    * name + "_" + last four digits of the Configurator's timestamp + "_" + index.
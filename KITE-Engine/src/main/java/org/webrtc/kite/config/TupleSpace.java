@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite.config;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * The space of all the browser tuples of a given size, iterated lazily in a shuffled order.
+ * <p>
+ * Every tuple is identified by an index in [0, n^tupleSize) whose digits in base n are the indexes
+ * of its browsers. The iterator walks the indexes through a seeded permutation, p(i) = (a * i + b)
+ * mod n^tupleSize with a coprime with n^tupleSize, on top of a seeded shuffle of the browsers for
+ * every position of the tuple. Tuples without any browser in focus are skipped while iterating, so
+ * only the tuples handed out are ever built and the memory used does not depend on the number of
+ * tuples.
+ */
+public class TupleSpace implements Iterable<List<Browser>> {
+
+  private final List<Browser> browserList;
+  private final int tupleSize;
+  private final boolean[] focused;
+  private final int[][] positionOrder;
+  private final long totalTuples;
+  private final long size;
+  private final long multiplier;
+  private final long increment;
+
+  /**
+   * Constructs a new TupleSpace for the given browsers, tuple size and seed.
+   *
+   * @param browserList list of Browser.
+   * @param tupleSize   number of browsers in a tuple.
+   * @param seed        seed of the shuffle.
+   * @throws IllegalArgumentException if there are more than Integer.MAX_VALUE tuples.
+   */
+  public TupleSpace(List<Browser> browserList, int tupleSize, long seed) {
+    this.browserList = browserList;
+    this.tupleSize = tupleSize;
+
+    int browserCount = browserList.size();
+    int unfocusedCount = 0;
+    this.focused = new boolean[browserCount];
+    for (int i = 0; i < browserCount; i++) {
+      this.focused[i] = browserList.get(i).isFocus();
+      if (!this.focused[i]) {
+        unfocusedCount++;
+      }
+    }
+
+    BigInteger total = BigInteger.valueOf(browserCount).pow(tupleSize);
+    if (total.compareTo(BigInteger.valueOf(Integer.MAX_VALUE)) > 0) {
+      throw new IllegalArgumentException(
+          browserCount + " browsers in tuples of " + tupleSize + " are too many test cases.");
+    }
+    this.totalTuples = total.longValue();
+    this.size = this.totalTuples - BigInteger.valueOf(unfocusedCount).pow(tupleSize).longValue();
+
+    Random random = new Random(seed);
+    this.positionOrder = new int[tupleSize][browserCount];
+    for (int position = 0; position < tupleSize; position++) {
+      int[] order = this.positionOrder[position];
+      for (int i = 0; i < browserCount; i++) {
+        order[i] = i;
+      }
+      for (int i = browserCount - 1; i > 0; i--) {
+        int j = random.nextInt(i + 1);
+        int temp = order[i];
+        order[i] = order[j];
+        order[j] = temp;
+      }
+    }
+
+    long multiplier = 1;
+    long increment = 0;
+    if (this.totalTuples > 1) {
+      BigInteger bigTotal = BigInteger.valueOf(this.totalTuples);
+      do {
+        multiplier = 1 + (long) (random.nextDouble() * (this.totalTuples - 1));
+      } while (!BigInteger.valueOf(multiplier).gcd(bigTotal).equals(BigInteger.ONE));
+      increment = (long) (random.nextDouble() * this.totalTuples);
+    }
+    this.multiplier = multiplier;
+    this.increment = increment;
+  }
+
+  /**
+   * Returns the number of tuples having at least one browser in focus.
+   *
+   * @return number of tuples.
+   */
+  public long size() {
+    return this.size;
+  }
+
+  /**
+   * Builds the tuple of the given index if it has at least one browser in focus.
+   *
+   * @param index index in [0, n^tupleSize).
+   * @return List<Browser> made of copies of the browsers, or null if none of them is in focus.
+   */
+  private List<Browser> buildTuple(long index) {
+    int browserCount = this.browserList.size();
+    int[] browserIndexes = new int[this.tupleSize];
+    boolean hasFocus = false;
+    for (int position = this.tupleSize - 1; position >= 0; position--) {
+      browserIndexes[position] = this.positionOrder[position][(int) (index % browserCount)];
+      hasFocus |= this.focused[browserIndexes[position]];
+      index /= browserCount;
+    }
+    if (!hasFocus) {
+      return null;
+    }
+
+    List<Browser> tuple = new ArrayList<Browser>(this.tupleSize);
+    for (int browserIndex : browserIndexes) {
+      tuple.add(new Browser(this.browserList.get(browserIndex)));
+    }
+    return tuple;
+  }
+
+  @Override public Iterator<List<Browser>> iterator() {
+    return new Iterator<List<Browser>>() {
+
+      private long position = 0;
+      private List<Browser> next = this.advance();
+
+      private List<Browser> advance() {
+        while (this.position < totalTuples) {
+          long index = (multiplier * this.position + increment) % totalTuples;
+          this.position++;
+          List<Browser> tuple = buildTuple(index);
+          if (tuple != null) {
+            return tuple;
+          }
+        }
+        return null;
+      }
+
+      @Override public boolean hasNext() {
+        return this.next != null;
+      }
+
+      @Override public List<Browser> next() {
+        if (this.next == null) {
+          throw new NoSuchElementException();
+        }
+        List<Browser> tuple = this.next;
+        this.next = this.advance();
+        return tuple;
+      }
+
+      @Override public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite.grid;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory copy of the browsers supported by a remote, indexed by browser name, major version
+ * and platform so that resolving a browser does not query the database.
+ */
+class BrowserCatalog {
+
+  private static final String ANY_VERSION = "*";
+
+  /* Platforms and platform types supported for every name and major version. */
+  private final Map<String, Set<String>> platformMap = new HashMap<String, Set<String>>();
+  private int size;
+
+  /**
+   * Adds a supported browser, as stored in the table of the remote.
+   *
+   * @param name         name of the browser, in lower case.
+   * @param version      version of the browser, in lower case.
+   * @param platform     platform of the browser.
+   * @param platformType WINDOWS, MAC or the platform itself.
+   */
+  void add(String name, String version, String platform, String platformType) {
+    for (String key : new String[] {getKey(name, getMajorVersion(version)),
+        getKey(name, ANY_VERSION)}) {
+      Set<String> platformSet = this.platformMap.get(key);
+      if (platformSet == null) {
+        platformSet = new HashSet<String>();
+        this.platformMap.put(key, platformSet);
+      }
+      platformSet.add("PLATFORM:" + platform);
+      platformSet.add("PLATFORM_TYPE:" + platformType);
+    }
+    this.size++;
+  }
+
+  /**
+   * Checks whether the given browser is supported.
+   *
+   * @param name     name of the browser.
+   * @param version  version of the browser, any version if null or empty.
+   * @param platform platform of the browser, any platform if null, empty or ANY. WINDOWS and MAC
+   *                 match any version of these systems.
+   * @return true if the browser is supported.
+   */
+  boolean contains(String name, String version, String platform) {
+    if (version == null || version.trim().isEmpty())
+      version = ANY_VERSION;
+    Set<String> platformSet =
+        this.platformMap.get(getKey(name.trim().toLowerCase(), getMajorVersion(version)));
+    if (platformSet == null)
+      return false;
+    if (platform == null || platform.trim().isEmpty() || platform.equals("ANY"))
+      return true;
+    switch (platform) {
+      case "WINDOWS":
+      case "MAC":
+        return platformSet.contains("PLATFORM_TYPE:" + platform);
+      default:
+        return platformSet.contains("PLATFORM:" + platform);
+    }
+  }
+
+  /**
+   * Gets the number of browsers in the catalog.
+   *
+   * @return the number of browsers.
+   */
+  int size() {
+    return this.size;
+  }
+
+  private static String getMajorVersion(String version) {
+    return version == null ? "" : version.trim().toLowerCase().split("\\.")[0];
+  }
+
+  private static String getKey(String name, String majorVersion) {
+    return name + "\t" + majorVersion;
+  }
+}
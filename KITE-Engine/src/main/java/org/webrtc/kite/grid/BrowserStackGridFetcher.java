@@ -21,7 +21,6 @@ import javax.json.JsonObject;
 import org.webrtc.kite.config.Browser;
 
 import java.io.IOException;
-import java.util.List;
 
 /**
  * browserstack implementation of RemoteGridFetcher.
@@ -49,47 +48,44 @@ public class BrowserStackGridFetcher extends RemoteGridFetcher {
     this.accesskey = pass;
   }
 
-  @Override public void fetchConfig() throws IOException {
-
-    List<JsonObject> availableConfigList =
-        this.getAvailableConfigList(this.username, this.accesskey);
+  @Override public boolean fetchConfig() throws IOException {
+    return this.fetchAvailableConfigs(this.username, this.accesskey);
+  }
 
+  @Override protected Browser toBrowser(JsonObject jsonObject) {
     /* might be not necessary, depending on data format it DB */
-    for (JsonObject jsonObject : availableConfigList) {
-      String name = jsonObject.getString("browser", "").trim().toLowerCase();
-      if (name.equalsIgnoreCase("edge"))
-        name = "microsoftedge";
-      if (name.equalsIgnoreCase("ie"))
-        name = "iexplore";
+    String name = jsonObject.getString("browser", "").trim().toLowerCase();
+    if (name.equalsIgnoreCase("edge"))
+      name = "microsoftedge";
+    if (name.equalsIgnoreCase("ie"))
+      name = "iexplore";
 
-      Browser browser = new Browser(name);
-      browser.setVersion(jsonObject.getString("browser_version", ""));
+    Browser browser = new Browser(name);
+    browser.setVersion(jsonObject.getString("browser_version", ""));
 
-      String os = jsonObject.getString("os", "");
-      String platform = jsonObject.getString("os_version", "").toUpperCase();
-      if (os.equalsIgnoreCase("OS X")) {
-        platform = platform.replaceAll(" ", "_");
-      } else if (os.equalsIgnoreCase("Windows")) {
-        switch (platform) {
-          case "7":
-            platform = "VISTA";
-            break;
-          case "8":
-            platform = "WIN8";
-            break;
-          case "8.1":
-            platform = "WIN8_1";
-            break;
-          case "10":
-            platform = "WIN10";
-            break;
-        }
+    String os = jsonObject.getString("os", "");
+    String platform = jsonObject.getString("os_version", "").toUpperCase();
+    if (os.equalsIgnoreCase("OS X")) {
+      platform = platform.replaceAll(" ", "_");
+    } else if (os.equalsIgnoreCase("Windows")) {
+      switch (platform) {
+        case "7":
+          platform = "VISTA";
+          break;
+        case "8":
+          platform = "WIN8";
+          break;
+        case "8.1":
+          platform = "WIN8_1";
+          break;
+        case "10":
+          platform = "WIN10";
+          break;
       }
-      browser.setPlatform(platform.toUpperCase());
-
-      this.browserList.add(browser);
     }
+    browser.setPlatform(platform.toUpperCase());
 
+    return browser;
   }
 
 }
@@ -17,6 +17,7 @@
 package org.webrtc.kite.grid;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -90,21 +91,34 @@ public class RemoteAddressManager {
    * supports the given browser.
    */
   public String findAppropriateRemoteAddress(Browser browser) {
+    List<String> remoteAddressList = this.findAppropriateRemoteAddresses(browser);
+    return remoteAddressList.isEmpty() ? null : remoteAddressList.get(0);
+  }
+
+  /**
+   * Finds all the remote addresses supporting the given Browser object.
+   *
+   * @param browser Browser
+   * @return string representations of the Selenium hub urls, in the order of the remotes, empty if
+   * none of the external grids supports the given browser.
+   */
+  public List<String> findAppropriateRemoteAddresses(Browser browser) {
+    List<String> remoteAddressList = new ArrayList<String>();
     for (RemoteGridFetcher fetcher : this.fetcherList)
       try {
         if (fetcher.search(browser)) {
           if (fetcher instanceof BrowserStackGridFetcher && browser.getPlatform() != null) {
             if (RemoteAddressManager.BROWSER_STACK_PLATFORMS.get(browser.getPlatform()) != null)
-              return fetcher.getRemoteAddress();
+              remoteAddressList.add(fetcher.getRemoteAddress());
           } else {
-            return fetcher.getRemoteAddress();
+            remoteAddressList.add(fetcher.getRemoteAddress());
           }
         }
       } catch (SQLException e) {
         logger.warn("SQLException while searching for: " + fetcher.getClass().getName(),
             e);
       }
-    return null;
+    return remoteAddressList;
   }
 
 }
@@ -22,7 +22,8 @@ import org.webrtc.kite.config.Browser;
 
 import javax.json.Json;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonParser;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,13 +33,16 @@ import java.net.HttpURLConnection;
 import java.net.PasswordAuthentication;
 import java.net.URL;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.Callable;
 
 /**
  * Parent class dealing with remote API communication.
+ * <p>
+ * The supported browsers of a remote are kept in a table of their own, refreshed once they are
+ * older than the TTL of the catalog. The refresh is a conditional request using the ETag and
+ * Last-Modified of the previous response, kept in the GRID_CATALOGS table, and only the browsers
+ * that were added or removed since are written.
  */
 public abstract class RemoteGridFetcher implements Callable<Object> {
 
@@ -48,9 +52,15 @@ public abstract class RemoteGridFetcher implements Callable<Object> {
       .asList("SNOW_LEOPARD", "LION", "MOUNTAIN_LION", "MAVERICKS", "YOSEMITE", "EL_CAPITAN",
           "SIERRA");
 
+  private static final String STATE_TABLE = "GRID_CATALOGS";
+
   private String pathToDB;
   private String tableName;
   private String remoteAddress;
+  private BrowserCatalog catalog;
+  private long catalogTtl = 86400000;
+  private String etag;
+  private String lastModified;
 
   /**
    * The Rest api url.
@@ -89,6 +99,15 @@ public abstract class RemoteGridFetcher implements Callable<Object> {
     return remoteAddress;
   }
 
+  /**
+   * Sets how long the catalog fetched from the remote is used before it is checked again.
+   *
+   * @param catalogTtl the TTL in ms.
+   */
+  public void setCatalogTtl(long catalogTtl) {
+    this.catalogTtl = catalogTtl;
+  }
+
   /**
    * Returns a database connection.
    *
@@ -121,13 +140,15 @@ public abstract class RemoteGridFetcher implements Callable<Object> {
   }
 
   /**
-   * Deletes all the rows from the table.
+   * Creates the table keeping the validators of the last response of every remote if it doesn't
+   * already exist.
    *
    * @param c Connection
    * @throws SQLException if a database access error occurs.
    */
-  private void clearTable(Connection c) throws SQLException {
-    String sql = "DELETE FROM " + this.tableName + ";";
+  private static void createStateTableIfNotExists(Connection c) throws SQLException {
+    String sql = "CREATE TABLE IF NOT EXISTS " + STATE_TABLE + "(TABLE_NAME TEXT NOT NULL, "
+        + " ETAG TEXT, LAST_MODIFIED TEXT, LAST_UPDATE INTEGER, PRIMARY KEY (TABLE_NAME));";
 
     Statement s = null;
     try {
@@ -139,36 +160,92 @@ public abstract class RemoteGridFetcher implements Callable<Object> {
   }
 
   /**
-   * Insert values into the table.
+   * Returns the platform type of a platform, WINDOWS or MAC for their versions and the platform
+   * itself otherwise.
+   *
+   * @param platform platform of a browser.
+   * @return the platform type.
+   */
+  private static String getPlatformType(String platform) {
+    if (platform.contains("XP") || platform.contains("VISTA") || platform.contains("WIN"))
+      return "WINDOWS";
+    if (RemoteGridFetcher.OS_X_CODENAME.contains(platform))
+      return "MAC";
+    return platform;
+  }
+
+  /**
+   * Returns the row of a browser as stored in the table.
+   *
+   * @param browser Browser
+   * @return browser name, version, platform and platform type.
+   */
+  private static List<String> toRow(Browser browser) {
+    String platform = browser.getPlatform().trim();
+    return Arrays.asList(browser.getBrowserName().trim().toLowerCase(),
+        browser.getVersion().trim().toLowerCase(), platform, getPlatformType(platform));
+  }
+
+  /**
+   * Brings the table in line with the fetched browser list, deleting the browsers that are no
+   * longer supported and inserting the new ones.
    *
    * @param c Connection
+   * @return the number of rows deleted and inserted.
    * @throws SQLException if a database access error occurs.
    */
-  private void insertValues(Connection c) throws SQLException {
+  private int[] updateValues(Connection c) throws SQLException {
+    Set<List<String>> newRowSet = new LinkedHashSet<List<String>>();
+    for (Browser browser : this.browserList)
+      newRowSet.add(toRow(browser));
+
+    List<Long> deletedRowIdList = new ArrayList<Long>();
+    Statement s = null;
+    ResultSet rs = null;
+    try {
+      s = c.createStatement();
+      rs = s.executeQuery(
+          "SELECT ROWID, BROWSER, VERSION, PLATFORM, PLATFORM_TYPE FROM " + this.tableName + ";");
+      while (rs.next()) {
+        List<String> row = Arrays.asList(rs.getString("BROWSER"), rs.getString("VERSION"),
+            rs.getString("PLATFORM"), rs.getString("PLATFORM_TYPE"));
+        // A browser already stored is left as it is, and so are the others stored twice.
+        if (!newRowSet.remove(row))
+          deletedRowIdList.add(rs.getLong("ROWID"));
+      }
+    } finally {
+      Utility.closeDBResources(s, rs);
+    }
+
+    PreparedStatement ps = null;
+    try {
+      ps = c.prepareStatement("DELETE FROM " + this.tableName + " WHERE ROWID = ?;");
+      for (Long rowId : deletedRowIdList) {
+        ps.setLong(1, rowId);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+    } finally {
+      Utility.closeDBResources(ps, null);
+    }
+
     String sql = "INSERT INTO " + this.tableName
         + "(BROWSER, VERSION, PLATFORM, PLATFORM_TYPE, LAST_UPDATE) " + "VALUES "
         + "(?, ?, ?, ?, ?);";
-
-    PreparedStatement ps = null;
+    ps = null;
     try {
       ps = c.prepareStatement(sql);
-      for (Browser browser : browserList) {
-        String platformType = browser.getPlatform();
-        if (platformType.contains("XP") || platformType.contains("VISTA") || platformType
-            .contains("WIN"))
-          platformType = "WINDOWS";
-        if (RemoteGridFetcher.OS_X_CODENAME.contains(platformType))
-          platformType = "MAC";
-        ps.setString(1, browser.getBrowserName().trim().toLowerCase());
-        ps.setString(2, browser.getVersion().trim().toLowerCase());
-        ps.setString(3, browser.getPlatform().trim());
-        ps.setString(4, platformType);
+      for (List<String> row : newRowSet) {
+        for (int i = 0; i < row.size(); i++)
+          ps.setString(i + 1, row.get(i));
         ps.setLong(5, System.currentTimeMillis());
-        ps.executeUpdate();
+        ps.addBatch();
       }
+      ps.executeBatch();
     } finally {
       Utility.closeDBResources(ps, null);
     }
+    return new int[] {deletedRowIdList.size(), newRowSet.size()};
   }
 
   /**
@@ -197,51 +274,83 @@ public abstract class RemoteGridFetcher implements Callable<Object> {
   }
 
   /**
-   * Checks whether the table was updated in last 24 hours.
+   * Reads the validators of the last response of the remote and tells whether the table is still
+   * within its TTL.
    *
-   * @return true if the table is updated within last 24 hours.
+   * @return true if the table was updated within the TTL of the catalog.
    * @throws SQLException if a database access error occurs.
    */
-  private boolean isUpdatedInLast24h() throws SQLException {
+  private boolean loadState() throws SQLException {
     Connection c = null;
-    Statement s = null;
+    PreparedStatement ps = null;
     ResultSet rs = null;
     try {
       c = this.getDatabaseConnection();
-
-      if (this.checkTableExist(c)) {
-        String sql = "SELECT * FROM " + this.tableName + " LIMIT 1;";
-        s = c.createStatement();
-        rs = s.executeQuery(sql);
-        if (rs.next())
-          return (System.currentTimeMillis() - rs.getLong("LAST_UPDATE") < 86400000);
-        else
-          return false;
-      } else
+      createStateTableIfNotExists(c);
+      // The validators are only of use if the browsers they were given with are still there.
+      if (!this.checkTableExist(c))
+        return false;
+      ps = c.prepareStatement(
+          "SELECT ETAG, LAST_MODIFIED, LAST_UPDATE FROM " + STATE_TABLE + " WHERE TABLE_NAME = ?;");
+      ps.setString(1, this.tableName);
+      rs = ps.executeQuery();
+      if (!rs.next())
         return false;
+      this.etag = rs.getString("ETAG");
+      this.lastModified = rs.getString("LAST_MODIFIED");
+      return System.currentTimeMillis() - rs.getLong("LAST_UPDATE") < this.catalogTtl;
     } finally {
-      Utility.closeDBResources(s, rs);
+      Utility.closeDBResources(ps, rs);
       if (c != null)
         c.close();
     }
   }
 
   /**
-   * Creates the table if doesn't already exist. If it exists then clear it. Insert the values into
-   * it.
+   * Saves the validators of the last response of the remote, and when it was received.
+   *
+   * @param c Connection
+   * @throws SQLException if a database access error occurs.
+   */
+  private void saveState(Connection c) throws SQLException {
+    PreparedStatement ps = null;
+    try {
+      ps = c.prepareStatement("INSERT OR REPLACE INTO " + STATE_TABLE
+          + "(TABLE_NAME, ETAG, LAST_MODIFIED, LAST_UPDATE) VALUES (?, ?, ?, ?);");
+      ps.setString(1, this.tableName);
+      ps.setString(2, this.etag);
+      ps.setString(3, this.lastModified);
+      ps.setLong(4, System.currentTimeMillis());
+      ps.executeUpdate();
+    } finally {
+      Utility.closeDBResources(ps, null);
+    }
+  }
+
+  /**
+   * Writes the changes of the fetched browser list, or only the time of the response if the
+   * remote answered that the list has not changed, along with the validators of the response.
    *
+   * @param modified whether the browser list was fetched.
    * @throws SQLException if a database access error occurs.
    */
-  private void createAndFillTable() throws SQLException {
+  private void updateTable(boolean modified) throws SQLException {
     Connection c = null;
     try {
       c = this.getDatabaseConnection();
       this.createTableIfNotExists(c);
+      createStateTableIfNotExists(c);
       try {
         // begin transaction
         c.setAutoCommit(false);
-        this.clearTable(c);
-        this.insertValues(c);
+        if (modified) {
+          int[] counts = this.updateValues(c);
+          logger.info("Updated " + this.tableName + ": " + counts[0] + " browsers removed, "
+              + counts[1] + " added");
+        } else {
+          logger.info(this.tableName + " has not changed");
+        }
+        this.saveState(c);
         c.commit();
         // end transaction
       } finally {
@@ -259,71 +368,74 @@ public abstract class RemoteGridFetcher implements Callable<Object> {
   }
 
   /**
-   * Checks whether the given browser is supported by the remote.
+   * Reads the table into a catalog, empty if the table does not exist.
    *
-   * @param browser Browser
-   * @return true if the browser is supported by the remote.
+   * @return BrowserCatalog
    * @throws SQLException if a database access error occurs.
    */
-  public boolean search(Browser browser) throws SQLException {
-    String name = browser.getBrowserName().toLowerCase();
-    String version = browser.getVersion();
-    if (version != null)
-      version = version.trim().split("\\.")[0];
-    String platform = browser.getPlatform();
-    boolean result = false;
-
-    String sql =
-        "SELECT * FROM " + this.tableName + " WHERE BROWSER = '" + name.trim().toLowerCase() + "'";
-    if (version != null && !version.trim().isEmpty())
-      sql += " AND VERSION LIKE '" + version + "%'";
-    if (platform != null && !platform.trim().isEmpty() && platform != "ANY") {
-      switch (platform) {
-        case "WINDOWS":
-          sql += " AND PLATFORM_TYPE = 'WINDOWS'";
-          break;
-        case "MAC":
-          sql += " AND PLATFORM_TYPE = 'MAC'";
-          break;
-        default:
-          sql += " AND PLATFORM = '" + platform + "'";
-          break;
-      }
-    }
-    sql += ";";
-
+  private BrowserCatalog loadCatalog() throws SQLException {
+    BrowserCatalog catalog = new BrowserCatalog();
     Connection c = null;
     Statement s = null;
     ResultSet rs = null;
     try {
       c = this.getDatabaseConnection();
-      s = c.createStatement();
-      rs = s.executeQuery(sql);
-      if (rs.next())
-        result = true;
+      if (this.checkTableExist(c)) {
+        s = c.createStatement();
+        rs = s.executeQuery(
+            "SELECT BROWSER, VERSION, PLATFORM, PLATFORM_TYPE FROM " + this.tableName + ";");
+        while (rs.next())
+          catalog.add(rs.getString("BROWSER"), rs.getString("VERSION"), rs.getString("PLATFORM"),
+              rs.getString("PLATFORM_TYPE"));
+      }
     } finally {
       Utility.closeDBResources(s, rs);
       if (c != null)
         c.close();
     }
+    logger.info("Loaded " + catalog.size() + " browsers from " + this.tableName);
+    return catalog;
+  }
 
-    return result;
+  /**
+   * Gets the catalog of the remote, reading it from the database if call() has not.
+   *
+   * @return BrowserCatalog
+   * @throws SQLException if a database access error occurs.
+   */
+  private synchronized BrowserCatalog getCatalog() throws SQLException {
+    if (this.catalog == null)
+      this.catalog = this.loadCatalog();
+    return this.catalog;
   }
 
   /**
-   * Gets available config list.
+   * Checks whether the given browser is supported by the remote.
+   *
+   * @param browser Browser
+   * @return true if the browser is supported by the remote.
+   * @throws SQLException if a database access error occurs while loading the catalog.
+   */
+  public boolean search(Browser browser) throws SQLException {
+    return this.getCatalog()
+        .contains(browser.getBrowserName(), browser.getVersion(), browser.getPlatform());
+  }
+
+  /**
+   * Fetches the supported browser list from the rest API, unless it has not changed since the
+   * last response, and parses it as it is read. Every object of the list goes through
+   * toBrowser().
    *
    * @param username  the username
    * @param accesskey the accesskey
-   * @return the available config list
+   * @return false if the remote answered that the list has not changed.
    * @throws IOException the io exception
    */
-  protected List<JsonObject> getAvailableConfigList(String username, String accesskey)
+  protected boolean fetchAvailableConfigs(String username, String accesskey)
       throws IOException {
     URL myurl = new URL(this.restApiUrl);
 
-    JsonReader reader = null;
-    List<JsonObject> availableConfigList = null;
+    JsonParser parser = null;
 
     HttpURLConnection con = null;
     InputStream is = null;
@@ -337,14 +449,23 @@ public abstract class RemoteGridFetcher implements Callable<Object> {
           }
         });
       con = (HttpURLConnection) myurl.openConnection();
+      if (this.etag != null)
+        con.setRequestProperty("If-None-Match", this.etag);
+      if (this.lastModified != null)
+        con.setRequestProperty("If-Modified-Since", this.lastModified);
+      if (con.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+        return false;
       is = con.getInputStream();
       isr = new InputStreamReader(is);
       br = new BufferedReader(isr);
-      reader = Json.createReader(br);
-      availableConfigList = reader.readArray().getValuesAs(JsonObject.class);
+      parser = Json.createParser(br);
+      this.browserList.clear();
+      this.parseConfigs(parser);
+      this.etag = con.getHeaderField("ETag");
+      this.lastModified = con.getHeaderField("Last-Modified");
     } finally {
-      if (reader != null)
-        reader.close();
+      if (parser != null)
+        parser.close();
       if (br != null)
         try {
           br.close();
@@ -367,13 +488,82 @@ public abstract class RemoteGridFetcher implements Callable<Object> {
         con.disconnect();
     }
 
-    return availableConfigList;
+    return true;
+  }
+
+  /**
+   * Reads an array of objects, passing each of them to toBrowser() as soon as it is read. Only the
+   * top level members of the objects are kept, the nested objects and arrays are skipped.
+   *
+   * @param parser JsonParser positioned before the array.
+   * @throws IOException if the response is not an array.
+   */
+  private void parseConfigs(JsonParser parser) throws IOException {
+    if (!parser.hasNext() || parser.next() != JsonParser.Event.START_ARRAY)
+      throw new IOException("Expected an array of browsers from " + this.restApiUrl);
+    // Depth 1 is the array, 2 the members of a browser.
+    int depth = 1;
+    JsonObjectBuilder builder = null;
+    String key = null;
+    while (depth > 0 && parser.hasNext()) {
+      JsonParser.Event event = parser.next();
+      switch (event) {
+        case START_OBJECT:
+          if (depth == 1)
+            builder = Json.createObjectBuilder();
+          depth++;
+          break;
+        case START_ARRAY:
+          depth++;
+          break;
+        case END_OBJECT:
+          depth--;
+          if (depth == 1) {
+            Browser browser = this.toBrowser(builder.build());
+            if (browser != null)
+              this.browserList.add(browser);
+            builder = null;
+          }
+          break;
+        case END_ARRAY:
+          depth--;
+          break;
+        case KEY_NAME:
+          key = parser.getString();
+          break;
+        default:
+          if (depth == 2 && builder != null)
+            addValue(builder, key, event, parser);
+      }
+    }
+  }
+
+  private static void addValue(JsonObjectBuilder builder, String key, JsonParser.Event event,
+      JsonParser parser) {
+    switch (event) {
+      case VALUE_STRING:
+        builder.add(key, parser.getString());
+        break;
+      case VALUE_NUMBER:
+        builder.add(key, parser.getBigDecimal());
+        break;
+      case VALUE_TRUE:
+        builder.add(key, true);
+        break;
+      case VALUE_FALSE:
+        builder.add(key, false);
+        break;
+      default:
+        builder.addNull(key);
+    }
   }
 
   @Override public Object call() throws Exception {
-    if (!this.isUpdatedInLast24h()) {
-      this.fetchConfig();
-      this.createAndFillTable();
+    if (!this.loadState())
+      this.updateTable(this.fetchConfig());
+    BrowserCatalog catalog = this.loadCatalog();
+    synchronized (this) {
+      this.catalog = catalog;
     }
     return "";
   }
@@ -381,8 +571,17 @@ public abstract class RemoteGridFetcher implements Callable<Object> {
   /**
    * Fetches and parses the supported browser list from the remote.
    *
+   * @return false if the remote answered that the list has not changed.
    * @throws IOException if an I/O error occurs.
    */
-  public abstract void fetchConfig() throws IOException;
+  public abstract boolean fetchConfig() throws IOException;
+
+  /**
+   * Reads a browser of the list returned by the rest API.
+   *
+   * @param jsonObject the top level members of an object of the list.
+   * @return the browser, or null to skip it.
+   */
+  protected abstract Browser toBrowser(JsonObject jsonObject);
 
 }
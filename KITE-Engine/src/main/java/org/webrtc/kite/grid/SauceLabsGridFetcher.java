@@ -21,7 +21,6 @@ import javax.json.JsonObject;
 import org.webrtc.kite.config.Browser;
 
 import java.io.IOException;
-import java.util.List;
 
 /**
  * saucelabs implementation of RemoteGridFetcher.
@@ -40,57 +39,55 @@ public class SauceLabsGridFetcher extends RemoteGridFetcher {
     super(pathToDB, "SAUCE_LABS", remoteAddress, restApiUrl);
   }
 
-  @Override public void fetchConfig() throws IOException {
-
-    List<JsonObject> availableConfigList
-        = this.getAvailableConfigList(null, null);
+  @Override public boolean fetchConfig() throws IOException {
+    return this.fetchAvailableConfigs(null, null);
+  }
 
+  @Override protected Browser toBrowser(JsonObject jsonObject) {
     /* might be not necessary, depending on data format it DB */
-    for (JsonObject jsonObject : availableConfigList) {
-      String name = jsonObject.getString("api_name", "").trim().toLowerCase();
-      if (name.equalsIgnoreCase("internet explorer"))
-        name = "iexplore";
+    String name = jsonObject.getString("api_name", "").trim().toLowerCase();
+    if (name.equalsIgnoreCase("internet explorer"))
+      name = "iexplore";
 
-      Browser browser = new Browser(name);
-      browser.setVersion(jsonObject.getString("short_version", ""));
+    Browser browser = new Browser(name);
+    browser.setVersion(jsonObject.getString("short_version", ""));
 
-      String platform = jsonObject.getString("os", "");
-      switch (platform) {
-        case "Windows 2003":
-          platform = "XP";
-          break;
-        case "Windows 2008":
-          platform = "VISTA";
-          break;
-        case "Windows 2012":
-          platform = "WIN8";
-          break;
-        case "Windows 2012 R2":
-          platform = "WIN8_1";
-          break;
-        case "Windows 10":
-          platform = "WIN10";
-          break;
-        case "Mac 10.8":
-          platform = "MOUNTAIN_LION";
-          break;
-        case "Mac 10.9":
-          platform = "MAVERICKS";
-          break;
-        case "Mac 10.10":
-          platform = "YOSEMITE";
-          break;
-        case "Mac 10.11":
-          platform = "EL_CAPITAN";
-          break;
-        case "Mac 10.12":
-          platform = "SIERRA";
-          break;
-      }
-      browser.setPlatform(platform.toUpperCase());
-
-      this.browserList.add(browser);
+    String platform = jsonObject.getString("os", "");
+    switch (platform) {
+      case "Windows 2003":
+        platform = "XP";
+        break;
+      case "Windows 2008":
+        platform = "VISTA";
+        break;
+      case "Windows 2012":
+        platform = "WIN8";
+        break;
+      case "Windows 2012 R2":
+        platform = "WIN8_1";
+        break;
+      case "Windows 10":
+        platform = "WIN10";
+        break;
+      case "Mac 10.8":
+        platform = "MOUNTAIN_LION";
+        break;
+      case "Mac 10.9":
+        platform = "MAVERICKS";
+        break;
+      case "Mac 10.10":
+        platform = "YOSEMITE";
+        break;
+      case "Mac 10.11":
+        platform = "EL_CAPITAN";
+        break;
+      case "Mac 10.12":
+        platform = "SIERRA";
+        break;
     }
+    browser.setPlatform(platform.toUpperCase());
+
+    return browser;
   }
 
 }
@@ -21,7 +21,6 @@ import javax.json.JsonObject;
 import org.webrtc.kite.config.Browser;
 
 import java.io.IOException;
-import java.util.List;
 
 /**
  * testingbot implementation of RemoteGridFetcher.
@@ -40,28 +39,26 @@ public class TestingBotGridFetcher extends RemoteGridFetcher {
     super(pathToDB, "TESTING_BOT", remoteAddress, restApiUrl);
   }
 
-  @Override public void fetchConfig() throws IOException {
-
-    List<JsonObject> availableConfigList
-        = this.getAvailableConfigList(null, null);
+  @Override public boolean fetchConfig() throws IOException {
+    return this.fetchAvailableConfigs(null, null);
+  }
 
+  @Override protected Browser toBrowser(JsonObject jsonObject) {
     /* might be not necessary, depending on data format it DB */
-    for (JsonObject jsonObject : availableConfigList) {
-      String name = jsonObject.getString("name", "").trim().toLowerCase();
-      if (name.equalsIgnoreCase("googlechrome"))
-        name = "chrome";
+    String name = jsonObject.getString("name", "").trim().toLowerCase();
+    if (name.equalsIgnoreCase("googlechrome"))
+      name = "chrome";
 
-      Browser browser = new Browser(name);
-      browser.setVersion(jsonObject.getString("version", ""));
+    Browser browser = new Browser(name);
+    browser.setVersion(jsonObject.getString("version", ""));
 
-      String platform = jsonObject.getString("platform", "").toUpperCase();
-      if (platform.equalsIgnoreCase("CAPITAN"))
-        platform = "EL_CAPITAN";
+    String platform = jsonObject.getString("platform", "").toUpperCase();
+    if (platform.equalsIgnoreCase("CAPITAN"))
+      platform = "EL_CAPITAN";
 
-      browser.setPlatform(platform);
+    browser.setPlatform(platform);
 
-      this.browserList.add(browser);
-    }
+    return browser;
   }
 
 }
@@ -20,15 +20,28 @@ import org.apache.log4j.Logger;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.webrtc.kite.MatrixRunner;
+import org.webrtc.kite.RemoteHealthMonitor;
+import org.webrtc.kite.ResultSender;
+import org.webrtc.kite.WebDriverPool;
 import org.webrtc.kite.config.Configurator;
+import org.webrtc.kite.config.Remote;
 import org.webrtc.kite.config.TestConf;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 /**
  * A Quartz job incapsulating Matrix Runner.
+ * <p>
+ * The tests of the config file are run by up to 'maxConcurrentTests' threads, each of them with its
+ * own MatrixRunner. The tests share the session capacity of the remotes and the
+ * 'maxConcurrentTuples' budget through SessionCapacityManager, while the first and last tests of
+ * each of them keep being executed on their own.
  */
 public class MatrixRunnerJob extends KiteJob {
 
@@ -39,46 +52,86 @@ public class MatrixRunnerJob extends KiteJob {
 
     this.makeUpTheGrid();
     Configurator.getInstance().setTimeStamp();
+    for (Remote remote : Configurator.getInstance().getConfigHandler().getRemoteList()) {
+      RemoteHealthMonitor.getInstance().watch(remote.getRemoteAddress());
+    }
 
-    for (TestConf testConf : (List<TestConf>) Configurator.getInstance().getConfigHandler()
-        .getTestList()) {
-      try {
-        if (logger.isInfoEnabled()) {
-          logger.info("Running " + testConf + " ...");
-        }
+    List<TestConf> testConfList =
+        (List<TestConf>) Configurator.getInstance().getConfigHandler().getTestList();
+    int noOfThreads =
+        Math.min(Configurator.getInstance().getMaxConcurrentTests(), testConfList.size());
+    ExecutorService executorService = Executors.newFixedThreadPool(noOfThreads);
 
-        List<Future<Object>> listOfResults = new MatrixRunner(testConf,
-            Configurator.getInstance().buildTuples(testConf.getTupleSize()), testConf.getName())
-            .run();
-
-        if (listOfResults != null) {
-          if (logger.isInfoEnabled()) {
-            String testResults = "The following are results for " + testConf + ":\n";
-            for (Future<Object> future : listOfResults) {
-              try {
-                testResults += "\r\n" + future.get().toString();
-              } catch (Exception e) {
-                logger.error("Exception while test execution", e);
-              }
-            }
-            testResults += "\r\nEND OF RESULTS\r\n";
-            logger.info(testResults);
-          }
-        } else {
-          logger.warn("No test case was found.");
+    List<Future<Object>> futureList = new ArrayList<Future<Object>>();
+    for (final TestConf testConf : testConfList) {
+      futureList.add(executorService.submit(new Callable<Object>() {
+        @Override public Object call() {
+          runTest(testConf);
+          return null;
         }
-      } catch (InterruptedException e) {
-        logger.fatal("Error [Interruption]: The execution has been interrupted with the "
-            + "following error: " + e.getLocalizedMessage(), e);
-      } catch (ExecutionException e) {
-        logger.fatal(
-            "Error [Execution]: The execution has been ended with the following error: "
-                + e.getLocalizedMessage(), e);
+      }));
+    }
+    executorService.shutdown();
+
+    try {
+      for (Future<Object> future : futureList) {
+        future.get();
       }
+      ResultSender.getInstance().flush();
+    } catch (InterruptedException e) {
+      logger.fatal("Error [Interruption]: The execution has been interrupted with the "
+          + "following error: " + e.getLocalizedMessage(), e);
+      executorService.shutdownNow();
+    } catch (ExecutionException e) {
+      logger.fatal("Error [Execution]: The execution has been ended with the following error: "
+          + e.getLocalizedMessage(), e);
     }
 
+    WebDriverPool.getInstance().close();
+    RemoteHealthMonitor.getInstance().stop();
     this.makeDownTheGrid();
 
   }
 
+  /**
+   * Runs the browser matrix of the given test and logs its results.
+   *
+   * @param testConf TestConf
+   */
+  private void runTest(TestConf testConf) {
+    try {
+      if (logger.isInfoEnabled()) {
+        logger.info("Running " + testConf + " ...");
+      }
+
+      List<Future<Object>> listOfResults = new MatrixRunner(testConf, Configurator.getInstance()
+          .buildTuples(testConf.getTupleSize(), testConf.getCoverage()), testConf.getName())
+          .run();
+
+      if (listOfResults != null) {
+        if (logger.isInfoEnabled()) {
+          String testResults = "The following are results for " + testConf + ":\n";
+          for (Future<Object> future : listOfResults) {
+            try {
+              testResults += "\r\n" + future.get().toString();
+            } catch (Exception e) {
+              logger.error("Exception while test execution", e);
+            }
+          }
+          testResults += "\r\nEND OF RESULTS\r\n";
+          logger.info(testResults);
+        }
+      } else {
+        logger.warn("No test case was found.");
+      }
+    } catch (InterruptedException e) {
+      logger.fatal("Error [Interruption]: The execution has been interrupted with the "
+          + "following error: " + e.getLocalizedMessage(), e);
+    } catch (ExecutionException e) {
+      logger.fatal(
+          "Error [Execution]: The execution has been ended with the following error: "
+              + e.getLocalizedMessage(), e);
+    }
+  }
+
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.webrtc.kite.config.Browser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit test for the circuit breaker of RemoteHealthMonitor.
+ */
+public class RemoteHealthMonitorTest extends TestCase {
+
+  private static final String REMOTE = "http://circuit.test:4444/wd/hub";
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public RemoteHealthMonitorTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(RemoteHealthMonitorTest.class);
+  }
+
+  /**
+   * Drives the circuit of a remote from closed to open, then half open with a tuple of two
+   * browsers on the remote holding the trial, then closed again.
+   */
+  public void testTrialTupleWithTwoBrowsersOnTheRemote() {
+    RemoteHealthMonitor monitor = RemoteHealthMonitor.getInstance();
+    List<Browser> trialTuple = newTuple();
+    List<Browser> otherTuple = newTuple();
+
+    // Closed
+    assertTrue(monitor.tryAdmit(trialTuple));
+    assertTrue(monitor.allowSession(REMOTE, trialTuple));
+
+    // Open
+    for (int i = 0; i < 3; i++) {
+      monitor.recordSessionStart(REMOTE, false);
+    }
+    assertFalse(monitor.isAvailable(REMOTE));
+    assertFalse(monitor.tryAdmit(trialTuple));
+    assertFalse(monitor.allowSession(REMOTE, trialTuple));
+
+    // Half open, the first tuple dispatched holds the trial for both of its sessions
+    monitor.recordProbe(REMOTE, null);
+    assertTrue(monitor.isAvailable(REMOTE));
+    assertTrue(monitor.tryAdmit(trialTuple));
+    assertTrue(monitor.allowSession(REMOTE, trialTuple));
+    assertTrue(monitor.allowSession(REMOTE, trialTuple));
+    assertFalse(monitor.tryAdmit(otherTuple));
+    assertFalse(monitor.allowSession(REMOTE, otherTuple));
+
+    // Closed by the first session of the trial
+    monitor.recordSessionStart(REMOTE, true);
+    assertTrue(monitor.allowSession(REMOTE, trialTuple));
+    assertTrue(monitor.tryAdmit(otherTuple));
+    assertTrue(monitor.allowSession(REMOTE, otherTuple));
+  }
+
+  private static List<Browser> newTuple() {
+    List<Browser> browserList = new ArrayList<Browser>();
+    for (String name : new String[] {"chrome", "firefox"}) {
+      Browser browser = new Browser(name);
+      browser.setRemoteAddress(REMOTE);
+      browserList.add(browser);
+    }
+    return browserList;
+  }
+
+}
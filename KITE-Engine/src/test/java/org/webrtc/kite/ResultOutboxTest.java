@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webrtc.kite;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit test for the append-only log of ResultOutbox.
+ */
+public class ResultOutboxTest extends TestCase {
+
+  private static final String CALLBACK = "http://outbox.test:8080/kiteweb/datacenter";
+
+  private File file;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ResultOutboxTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ResultOutboxTest.class);
+  }
+
+  @Override
+  protected void setUp() throws IOException {
+    this.file = File.createTempFile("KITE-outbox", ".log");
+    this.file.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    this.file.delete();
+    new File(this.file.getPath() + ".tmp").delete();
+  }
+
+  /**
+   * Appends three results and acknowledges the second one, then reopens the log: the first and
+   * the third are replayed in the order they were appended, and the sequence numbers go on.
+   */
+  public void testAppendAckReopen() throws IOException {
+    ResultOutbox outbox = new ResultOutbox(this.file);
+    assertTrue(outbox.open().isEmpty());
+    long first = outbox.append(CALLBACK, result(1));
+    long second = outbox.append(CALLBACK, result(2));
+    long third = outbox.append(CALLBACK, result(3));
+    assertTrue(first < second && second < third);
+    outbox.sync();
+    outbox.acknowledge(Arrays.asList(second));
+
+    ResultOutbox reopened = new ResultOutbox(this.file);
+    List<ResultOutbox.Record> recordList = reopened.open();
+    assertEquals(2, recordList.size());
+    assertEquals(first, recordList.get(0).getSequence());
+    assertEquals(result(1), recordList.get(0).getJsonObject());
+    assertEquals(CALLBACK, recordList.get(0).getCallbackURL());
+    assertEquals(third, recordList.get(1).getSequence());
+    assertEquals(result(3), recordList.get(1).getJsonObject());
+    assertTrue(reopened.append(CALLBACK, result(4)) > third);
+  }
+
+  /**
+   * Opens a log whose last line was cut short by a crash: the torn line is dropped, the
+   * acknowledged results are compacted away and the compacted log replaces the old one.
+   */
+  public void testCompactionWithTornLastLine() throws IOException {
+    String log = "P\t1\t" + CALLBACK + "\t" + result(1) + "\n"
+        + "P\t2\t" + CALLBACK + "\t" + result(2) + "\n"
+        + "A\t1\n"
+        + "P\t3\t" + CALLBACK + "\t{\"id\":";
+    Files.write(this.file.toPath(), log.getBytes(StandardCharsets.UTF_8));
+
+    ResultOutbox outbox = new ResultOutbox(this.file);
+    List<ResultOutbox.Record> recordList = outbox.open();
+    assertEquals(1, recordList.size());
+    assertEquals(2, recordList.get(0).getSequence());
+    assertEquals(result(2), recordList.get(0).getJsonObject());
+    assertFalse(new File(this.file.getPath() + ".tmp").exists());
+    assertEquals(Arrays.asList("P\t2\t" + CALLBACK + "\t" + result(2)),
+        Files.readAllLines(this.file.toPath(), StandardCharsets.UTF_8));
+
+    // The torn result was never acknowledged, its sequence number can be reused.
+    assertEquals(3, outbox.append(CALLBACK, result(3)));
+    recordList = new ResultOutbox(this.file).open();
+    assertEquals(2, recordList.size());
+    assertEquals(2, recordList.get(0).getSequence());
+    assertEquals(3, recordList.get(1).getSequence());
+  }
+
+  /**
+   * Acknowledges every result appended: the log is emptied and nothing is replayed.
+   */
+  public void testTruncatedWhenAllAcknowledged() throws IOException {
+    ResultOutbox outbox = new ResultOutbox(this.file);
+    outbox.open();
+    long first = outbox.append(CALLBACK, result(1));
+    long second = outbox.append(CALLBACK, result(2));
+    outbox.acknowledge(Arrays.asList(first));
+    assertTrue(this.file.length() > 0);
+    outbox.acknowledge(Arrays.asList(second));
+    assertEquals(0, this.file.length());
+    assertTrue(new ResultOutbox(this.file).open().isEmpty());
+  }
+
+  private static JsonObject result(int id) {
+    return Json.createObjectBuilder().add("id", id).add("result", "SUCCESSFUL").build();
+  }
+
+}